@@ -0,0 +1,84 @@
+package com.zenplanner.sql;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Synthetic tables and keys for the benchmarks
+ */
+public class BenchmarkData {
+
+    /**
+     * @param shape One of "bigint", "uniqueidentifier", "nvarchar" or "composite" (int, uniqueidentifier)
+     * @return A table with that primary key, plus a few ordinary columns
+     */
+    public static Table createTable(String shape) {
+        Table table = new Table("bench_" + shape);
+        if ("composite".equals(shape)) {
+            addColumn(table, "partitionid", "int", true);
+            addColumn(table, "id", "uniqueidentifier", true);
+        } else {
+            addColumn(table, "id", shape, true);
+        }
+        addColumn(table, "name", "nvarchar", false);
+        addColumn(table, "amount", "bigint", false);
+        addColumn(table, "modified", "datetime", false);
+        return table;
+    }
+
+    private static void addColumn(Table table, String name, String type, boolean pk) {
+        Column col = new Column();
+        col.setColumnName(name);
+        col.setDataType(type);
+        col.setPrimaryKey(pk);
+        table.put(name, col);
+    }
+
+    /**
+     * @return A random key for the table
+     */
+    public static Key randomKey(Table table, Random rand) {
+        Key key = new Key();
+        for (Column col : table.getPk()) {
+            switch (col.getDataType()) {
+                case "int":
+                    key.add(rand.nextInt(16));
+                    break;
+                case "bigint":
+                    key.add(rand.nextLong());
+                    break;
+                case "uniqueidentifier":
+                    key.add(new UUID(rand.nextLong(), rand.nextLong()));
+                    break;
+                default:
+                    key.add(Long.toHexString(rand.nextLong()));
+                    break;
+            }
+        }
+        return key;
+    }
+
+    /**
+     * @return Distinct random keys for the table, sorted in T-SQL order
+     */
+    public static List<Key> sortedKeys(Table table, Random rand, int count) {
+        List<Key> keys = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            keys.add(randomKey(table, rand));
+        }
+        Collections.sort(keys, table.getKeyComparator());
+        return keys;
+    }
+
+    /**
+     * @return A random 16 byte MD5-sized hash
+     */
+    public static byte[] randomHash(Random rand) {
+        byte[] hash = new byte[16];
+        rand.nextBytes(hash);
+        return hash;
+    }
+}
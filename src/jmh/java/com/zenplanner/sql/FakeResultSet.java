@@ -0,0 +1,133 @@
+package com.zenplanner.sql;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An in-memory ResultSet for benchmarks, built on a dynamic proxy so that only the handful of methods the sync code
+ * calls need to be implemented. Values are returned as stored, so each column must hold the type that Column.getValue()
+ * asks for: Integer, Long, String, or the SQL byte layout of a uniqueidentifier.
+ */
+public class FakeResultSet implements InvocationHandler {
+    private final List<String> columns;
+    private final List<Object[]> rows;
+    private final ResultSet proxy;
+    private int row;
+
+    /**
+     * @param columns The column names, in ordinal order
+     * @param rows The rows, each with one value per column
+     */
+    public FakeResultSet(List<String> columns, List<Object[]> rows) {
+        this.columns = columns;
+        this.rows = rows;
+        this.proxy = (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(),
+                new Class<?>[]{ResultSet.class}, this);
+    }
+
+    /**
+     * @return The ResultSet, positioned before the first row
+     */
+    public ResultSet rewind() {
+        row = 0;
+        return proxy;
+    }
+
+    @Override
+    public Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        switch (method.getName()) {
+            case "next":
+                return ++row <= rows.size();
+            case "findColumn":
+                return ordinal(args[0]);
+            case "getRow":
+                return row <= rows.size() ? row : 0;
+            case "isBeforeFirst":
+                return row == 0 && rows.size() > 0;
+            case "isAfterLast":
+                return row > rows.size() && rows.size() > 0;
+            case "isClosed":
+            case "wasNull":
+                return false;
+            case "close":
+                return null;
+            case "getInt":
+            case "getLong":
+            case "getString":
+            case "getBytes":
+            case "getObject":
+            case "getDate":
+                return rows.get(row - 1)[ordinal(args[0]) - 1];
+            default:
+                throw new UnsupportedOperationException(method.getName());
+        }
+    }
+
+    private int ordinal(Object column) {
+        if (column instanceof Integer) {
+            return (Integer) column;
+        }
+        for (int i = 0; i < columns.size(); i++) {
+            if (columns.get(i).equalsIgnoreCase((String) column)) {
+                return i + 1;
+            }
+        }
+        throw new IllegalArgumentException("No such column: " + column);
+    }
+
+    /**
+     * Builds the rows of a hashed query: the primary key columns of the table in order, followed by the hash
+     *
+     * @param table The table whose PK columns are used
+     * @param keys The keys, already in T-SQL order
+     * @param hashes The hash of each row
+     */
+    public static FakeResultSet hashed(Table table, List<Key> keys, List<byte[]> hashes) {
+        List<String> names = new ArrayList<>();
+        for (Column col : table.getPk()) {
+            names.add(col.getColumnName());
+        }
+        names.add("Hash");
+        List<Object[]> rows = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i++) {
+            Key key = keys.get(i);
+            Object[] vals = new Object[names.size()];
+            for (int c = 0; c < key.size(); c++) {
+                vals[c] = Table.javaToSql(key.get(c));
+            }
+            vals[key.size()] = hashes.get(i);
+            rows.add(vals);
+        }
+        return new FakeResultSet(names, rows);
+    }
+
+    /**
+     * @return A connection whose prepared statements accept any parameters and do nothing else
+     */
+    public static Connection nullConnection() {
+        InvocationHandler stmtHandler = (target, method, args) -> {
+            if (method.getReturnType() == boolean.class) {
+                return false;
+            }
+            if (method.getReturnType() == int.class) {
+                return 0;
+            }
+            return null;
+        };
+        PreparedStatement stmt = (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                new Class<?>[]{PreparedStatement.class}, stmtHandler);
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, (target, method, args) -> {
+                    if ("prepareStatement".equals(method.getName())) {
+                        return stmt;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+    }
+}
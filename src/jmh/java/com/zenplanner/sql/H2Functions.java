@@ -0,0 +1,203 @@
+package com.zenplanner.sql;
+
+import org.h2.api.AggregateFunction;
+import org.h2.tools.SimpleResultSet;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.Types;
+
+/**
+ * Stand-ins for the SQL Server objects that dbsync depends on, so that it can run against an embedded H2 database in
+ * MSSQLServer mode
+ */
+public class H2Functions {
+    /**
+     * A column type that behaves like ROWVERSION, for tables created after install()
+     */
+    public static final String ROWVERSION = "binary(8) DEFAULT CAST(NEXT VALUE FOR dbsync_rowversion AS binary(8))"
+            + " ON UPDATE CAST(NEXT VALUE FOR dbsync_rowversion AS binary(8))";
+    private static final char[] hexDigits = "0123456789abcdef".toCharArray();
+
+    /**
+     * Creates the stand-ins in an H2 database
+     *
+     * @param con A connection to the database
+     */
+    public static void install(Connection con) throws Exception {
+        String cls = H2Functions.class.getName();
+        try (Statement stmt = con.createStatement()) {
+            stmt.execute("CREATE ALIAS IF NOT EXISTS hashbytes FOR \"" + cls + ".hashbytes\"");
+            stmt.execute("CREATE ALIAS IF NOT EXISTS binary_checksum FOR \"" + cls + ".binaryChecksum\"");
+            stmt.execute("CREATE AGGREGATE IF NOT EXISTS checksum_agg FOR \"" + ChecksumAgg.class.getName() + "\"");
+            stmt.execute("CREATE AGGREGATE IF NOT EXISTS count_big FOR \"" + CountBig.class.getName() + "\"");
+            stmt.execute("CREATE ALIAS IF NOT EXISTS sp_dbsyncgetobjects FOR \"" + cls + ".getObjects\"");
+            stmt.execute("CREATE ALIAS IF NOT EXISTS object_name FOR \"" + cls + ".objectName\"");
+            stmt.execute("CREATE ALIAS IF NOT EXISTS objectproperty FOR \"" + cls + ".objectProperty\"");
+            stmt.execute("CREATE ALIAS IF NOT EXISTS min_active_rowversion FOR \"" + cls + ".minActiveRowVersion\"");
+
+            // Numbers every insert and update of a column declared with ROWVERSION, like the database's @@DBTS
+            stmt.execute("CREATE SEQUENCE IF NOT EXISTS dbsync_rowversion");
+
+            // Empty, so that GetConstraints.sql finds no constraints to disable
+            stmt.execute("CREATE TABLE IF NOT EXISTS sysobjects (id int, parent_obj int, name nvarchar(128), xtype nvarchar(2))");
+            stmt.execute("CREATE TABLE IF NOT EXISTS sysconstraints (constid int)");
+            stmt.execute("CREATE TABLE IF NOT EXISTS sysforeignkeys (constid int, fkeyid int, rkeyid int)");
+        }
+    }
+
+    /**
+     * HASHBYTES, returning the hash as hex. H2 has no + for binary values, so the hashes of the columns are
+     * concatenated as strings, and H2 turns the hex back into bytes when they are hashed again.
+     */
+    public static String hashbytes(String algorithm, byte[] data) throws Exception {
+        if (data == null) {
+            return null;
+        }
+        byte[] hash = MessageDigest.getInstance(algorithm).digest(data);
+        char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            hex[i * 2] = hexDigits[(hash[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = hexDigits[hash[i] & 0xF];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * BINARY_CHECKSUM, over the text of each value rather than its bytes
+     */
+    public static int binaryChecksum(String... vals) {
+        int checksum = 0;
+        for (String val : vals) {
+            checksum = checksum * 31 + (val == null ? 0 : val.hashCode());
+        }
+        return checksum;
+    }
+
+    /**
+     * sp_DbSyncGetObjects: the columns of every table, with their SQL Server type names
+     */
+    public static ResultSet getObjects(Connection con) throws Exception {
+        SimpleResultSet result = new SimpleResultSet();
+        result.addColumn("table_name", Types.VARCHAR, 128, 0);
+        result.addColumn("column_name", Types.VARCHAR, 128, 0);
+        result.addColumn("data_type", Types.VARCHAR, 128, 0);
+        result.addColumn("primary_key", Types.BOOLEAN, 1, 0);
+        if (con.getMetaData().getURL().equals("jdbc:columnlist:connection")) {
+            return result; // H2 is only asking for the columns
+        }
+
+        String sql = "SELECT c.table_name, c.column_name, c.data_type,\n" +
+                "\tCASE WHEN k.column_name IS NULL THEN FALSE ELSE TRUE END AS primary_key\n" +
+                "FROM information_schema.columns c\n" +
+                "LEFT JOIN information_schema.table_constraints t\n" +
+                "\tON t.table_name = c.table_name AND t.table_schema = c.table_schema AND t.constraint_type = 'PRIMARY KEY'\n" +
+                "LEFT JOIN information_schema.key_column_usage k\n" +
+                "\tON k.constraint_name = t.constraint_name AND k.table_schema = t.table_schema\n" +
+                "\tAND k.column_name = c.column_name\n" +
+                "WHERE c.table_schema = 'public' AND c.table_name NOT IN ('sysobjects', 'sysconstraints', 'sysforeignkeys')\n" +
+                "ORDER BY c.table_name, c.column_name";
+        try (Statement stmt = con.createStatement(); ResultSet rs = stmt.executeQuery(sql)) {
+            while (rs.next()) {
+                result.addRow(rs.getString("table_name"), rs.getString("column_name"),
+                        sqlServerType(rs.getString("data_type")), rs.getBoolean("primary_key"));
+            }
+        }
+        return result;
+    }
+
+    private static String sqlServerType(String h2Type) {
+        switch (h2Type.toUpperCase()) {
+            case "BIGINT":
+                return "bigint";
+            case "INTEGER":
+                return "int";
+            case "UUID":
+                return "uniqueidentifier";
+            case "CHARACTER VARYING":
+                return "nvarchar";
+            case "BINARY":
+                return "timestamp"; // Only used for ROWVERSION columns
+            default:
+                throw new IllegalArgumentException("No SQL Server type for: " + h2Type);
+        }
+    }
+
+    /**
+     * MIN_ACTIVE_ROWVERSION, as the next value of the sequence. H2 has no transactions in flight to hold it back.
+     */
+    public static byte[] minActiveRowVersion(Connection con) throws Exception {
+        try (Statement stmt = con.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT NEXT VALUE FOR dbsync_rowversion")) {
+            rs.next();
+            return ByteBuffer.allocate(8).putLong(rs.getLong(1)).array();
+        }
+    }
+
+    public static String objectName(Integer id) {
+        return null;
+    }
+
+    public static Integer objectProperty(Integer id, String property) {
+        return 0;
+    }
+
+    /**
+     * CHECKSUM_AGG, an order independent aggregate of int checksums
+     */
+    public static class ChecksumAgg implements AggregateFunction {
+        private int checksum;
+
+        @Override
+        public void init(Connection con) {
+        }
+
+        @Override
+        public int getType(int[] inputTypes) {
+            return Types.INTEGER;
+        }
+
+        @Override
+        public void add(Object value) {
+            if (value != null) {
+                checksum ^= ((Number) value).intValue();
+            }
+        }
+
+        @Override
+        public Object getResult() {
+            return checksum;
+        }
+    }
+
+    /**
+     * COUNT_BIG, of the non-null values like COUNT
+     */
+    public static class CountBig implements AggregateFunction {
+        private long count;
+
+        @Override
+        public void init(Connection con) {
+        }
+
+        @Override
+        public int getType(int[] inputTypes) {
+            return Types.BIGINT;
+        }
+
+        @Override
+        public void add(Object value) {
+            if (value != null) {
+                count++;
+            }
+        }
+
+        @Override
+        public Object getResult() {
+            return count;
+        }
+    }
+}
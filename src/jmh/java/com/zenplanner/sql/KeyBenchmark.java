@@ -0,0 +1,58 @@
+package com.zenplanner.sql;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Key comparisons, which the merge-join makes several of per row. Pairs are drawn from a sorted list so that
+ * neighbours share leading columns about as often as they do in a real merge-join.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class KeyBenchmark {
+    private static final int size = 1024;
+
+    @Param({"bigint", "uniqueidentifier", "nvarchar", "composite"})
+    public String shape;
+
+    private Key[] keys;
+    private KeyComparator comparator;
+    private int index;
+
+    @Setup
+    public void setup() {
+        Table table = BenchmarkData.createTable(shape);
+        List<Key> sorted = BenchmarkData.sortedKeys(table, new Random(42), size + 1);
+        keys = sorted.toArray(new Key[sorted.size()]);
+        comparator = table.getKeyComparator();
+    }
+
+    @Benchmark
+    public int keyCompareTo() {
+        int i = index++ & (size - 1);
+        return keys[i].compareTo(keys[i + 1]);
+    }
+
+    @Benchmark
+    public int keyComparator() {
+        int i = index++ & (size - 1);
+        return comparator.compare(keys[i], keys[i + 1]);
+    }
+}
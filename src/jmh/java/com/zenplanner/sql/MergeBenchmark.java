@@ -0,0 +1,176 @@
+package com.zenplanner.sql;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The merge-join over two hashed queries, using in-memory ResultSets so that only the client side is measured. Scores
+ * are per source row.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MergeBenchmark {
+    private static final int rows = 10000;
+
+    @Param({"bigint", "uniqueidentifier", "composite"})
+    public String shape;
+
+    /** The fraction of rows that are inserted, updated or deleted, in equal parts */
+    @Param({"0.01", "0.3"})
+    public double drift;
+
+    private Table table;
+    private FakeResultSet src;
+    private FakeResultSet dst;
+    private Key[] keys;
+    private byte[][] srcHashes;
+    private byte[][] dstHashes;
+
+    @Setup
+    public void setup() {
+        table = BenchmarkData.createTable(shape);
+        Random rand = new Random(42);
+        List<Key> srcKeys = BenchmarkData.sortedKeys(table, rand, rows);
+        List<byte[]> srcHashList = new ArrayList<>();
+        List<Key> dstKeys = new ArrayList<>();
+        List<byte[]> dstHashList = new ArrayList<>();
+        for (Key key : srcKeys) {
+            byte[] hash = BenchmarkData.randomHash(rand);
+            srcHashList.add(hash);
+            double roll = rand.nextDouble();
+            if (roll < drift / 3) {
+                continue; // Insert: only in the source
+            }
+            dstKeys.add(key);
+            dstHashList.add(roll < drift * 2 / 3 ? BenchmarkData.randomHash(rand) : hash); // Update, or unchanged
+        }
+        for (int i = 0; i < rows * drift / 3; i++) {
+            dstKeys.add(BenchmarkData.randomKey(table, rand)); // Delete: only in the destination
+            dstHashList.add(BenchmarkData.randomHash(rand));
+        }
+        sortTogether(dstKeys, dstHashList);
+        src = FakeResultSet.hashed(table, srcKeys, srcHashList);
+        dst = FakeResultSet.hashed(table, dstKeys, dstHashList);
+
+        // Matching pairs for detectChange on its own
+        keys = srcKeys.toArray(new Key[srcKeys.size()]);
+        srcHashes = srcHashList.toArray(new byte[0][]);
+        dstHashes = new byte[rows][];
+        for (int i = 0; i < rows; i++) {
+            dstHashes[i] = i % 2 == 0 ? srcHashes[i] : BenchmarkData.randomHash(rand);
+        }
+    }
+
+    private void sortTogether(List<Key> keys, List<byte[]> hashes) {
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i++) {
+            order.add(i);
+        }
+        KeyComparator cmp = table.getKeyComparator();
+        Collections.sort(order, (left, right) -> cmp.compare(keys.get(left), keys.get(right)));
+        List<Key> sortedKeys = new ArrayList<>();
+        List<byte[]> sortedHashes = new ArrayList<>();
+        for (int i : order) {
+            sortedKeys.add(keys.get(i));
+            sortedHashes.add(hashes.get(i));
+        }
+        keys.clear();
+        keys.addAll(sortedKeys);
+        hashes.clear();
+        hashes.addAll(sortedHashes);
+    }
+
+    /**
+     * The merge loop as DbComparator.mergeRange() runs it, on rows decoded once by a RowCursor
+     */
+    @Benchmark
+    @OperationsPerInvocation(rows)
+    public int mergeLoop() throws Exception {
+        RowCursor srs = new RowCursor(table, src.rewind());
+        RowCursor drs = new RowCursor(table, dst.rewind());
+        KeyComparator cmp = table.getKeyComparator();
+        int changes = 0;
+        srs.next();
+        drs.next();
+        while (srs.getKey() != null || drs.getKey() != null) {
+            Key spk = srs.getKey();
+            Key dpk = drs.getKey();
+            DbComparator.ChangeType change = table.detectChange(spk, srs.getHash(), dpk, drs.getHash());
+            if (change != DbComparator.ChangeType.NONE) {
+                changes++;
+            }
+            int val = cmp.compare(spk, dpk);
+            if (val <= 0) {
+                srs.next();
+            }
+            if (val >= 0) {
+                drs.next();
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * The same merge loop working straight off the ResultSets, decoding keys and hashes by column name each time
+     * they are needed, for comparison
+     */
+    @Benchmark
+    @OperationsPerInvocation(rows)
+    public int mergeLoopResultSet() throws Exception {
+        ResultSet srs = src.rewind();
+        ResultSet drs = dst.rewind();
+        int changes = 0;
+        srs.next();
+        drs.next();
+        while (srs.getRow() > 0 || drs.getRow() > 0) {
+            DbComparator.ChangeType change = table.detectChange(srs, drs);
+            if (change != DbComparator.ChangeType.NONE && table.getPk(srs, drs) != null) {
+                changes++;
+            }
+            int val = Key.compare(table.getPk(srs), table.getPk(drs));
+            if (val <= 0) {
+                srs.next();
+            }
+            if (val >= 0) {
+                drs.next();
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Detects the change for rows whose keys match, half with equal hashes
+     */
+    @Benchmark
+    @OperationsPerInvocation(rows)
+    public int detectChange() {
+        int changes = 0;
+        for (int i = 0; i < rows; i++) {
+            if (table.detectChange(keys[i], srcHashes[i], keys[i], dstHashes[i]) != DbComparator.ChangeType.NONE) {
+                changes++;
+            }
+        }
+        return changes;
+    }
+}
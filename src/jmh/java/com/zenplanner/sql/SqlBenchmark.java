@@ -0,0 +1,58 @@
+package com.zenplanner.sql;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SQL generation: the OR-chained key lookup built by createQuery(), and the hashed query
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SqlBenchmark {
+    @Param({"bigint", "composite"})
+    public String shape;
+
+    private Table table;
+    private List<Key> keys;
+    private Connection con;
+    private Map<String, List<Object>> filters;
+
+    @Setup
+    public void setup() {
+        table = BenchmarkData.createTable(shape);
+        keys = BenchmarkData.sortedKeys(table, new Random(42), table.getRowLimit());
+        con = FakeResultSet.nullConnection();
+        filters = Collections.<String, List<Object>>singletonMap("partitionid", Collections.<Object>singletonList(1));
+    }
+
+    @Benchmark
+    public PreparedStatement createSelectQuery() {
+        return table.createSelectQuery(con, keys.iterator(), keys.size());
+    }
+
+    @Benchmark
+    public String writeHashedQuery() {
+        return table.writeHashedQuery(filters);
+    }
+}
@@ -0,0 +1,297 @@
+package com.zenplanner.sql;
+
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs DbComparator.synchronize() end to end between two databases, and reports the rows per second of each phase and
+ * the peak heap. Arguments are name=value pairs:
+ *
+ * rows=100000                          Rows per source table
+ * shapes=bigint,uniqueidentifier,composite  One table per primary key shape
+ * insert=1 update=1 delete=1           The percentage of rows the sync has to insert, update and delete
+ * runs=1                               Syncs to run, with the same drift applied to the source before each later run
+ * rowversion=false                     Give each table a rowversion column, for RowVersionDelta=true
+ * source= dest=                        JDBC URLs of two SQL Server databases, to use instead of embedded H2
+ *
+ * Anything else is passed to SyncOptions, for example Threads=4 or PartitionRows=20000. Against SQL Server the options
+ * are used as given, so the defaults are what is measured. Against H2 in MSSQLServer mode, staged keys and set based
+ * apply modes need SQL Server temp tables, so KeyStaging is off and ApplyMode is ROW; and the H2 HASHBYTES returns hex
+ * rather than binary, which the bucket aggregates can't sum, so BucketCompare is off.
+ *
+ * Run with: mvn -Pjmh compile exec:exec -Djmh.main=com.zenplanner.sql.SyncHarness -Djmh.args="rows=100000"
+ */
+public class SyncHarness {
+    private static final String urlFormat = "jdbc:h2:mem:%s;MODE=MSSQLServer;DB_CLOSE_DELAY=-1;DATABASE_TO_LOWER=TRUE";
+
+    public static void main(String[] args) throws Exception {
+        Properties props = new Properties();
+        for (String arg : args) {
+            String[] parts = arg.split("=", 2);
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Expected name=value: " + arg);
+            }
+            props.setProperty(parts[0], parts[1]);
+        }
+        int rows = Integer.parseInt(props.getProperty("rows", "100000"));
+        String[] shapes = props.getProperty("shapes", "bigint,uniqueidentifier,composite").split(",");
+        double insert = Double.parseDouble(props.getProperty("insert", "1")) / 100;
+        double update = Double.parseDouble(props.getProperty("update", "1")) / 100;
+        double delete = Double.parseDouble(props.getProperty("delete", "1")) / 100;
+        int runs = Integer.parseInt(props.getProperty("runs", "1"));
+        boolean rowVersion = Boolean.parseBoolean(props.getProperty("rowversion", "false"));
+        boolean embedded = !props.containsKey("source");
+
+        SyncOptions options = SyncOptions.fromProperties(props);
+        if (embedded) {
+            options.setKeyStaging(false);
+            options.setBucketCompare(false);
+            options.setApplyMode(SyncOptions.ApplyMode.ROW);
+        }
+        if (!props.containsKey("SnapshotDir")) {
+            options.setSnapshotDir(Files.createTempDirectory("dbsync-snapshots").toFile());
+        }
+        if (!props.containsKey("StateFile")) {
+            options.setStateFile(Files.createTempFile("dbsync-state", ".properties").toFile());
+        }
+
+        String srcUrl = embedded ? String.format(urlFormat, "dbsync_src") : props.getProperty("source");
+        String dstUrl = embedded ? String.format(urlFormat, "dbsync_dst") : props.getProperty("dest");
+        if (dstUrl == null) {
+            throw new IllegalArgumentException("Expected dest= with source=");
+        }
+        try (Connection scon = DriverManager.getConnection(srcUrl); Connection dcon = DriverManager.getConnection(dstUrl)) {
+            if (embedded) {
+                H2Functions.install(scon);
+                H2Functions.install(dcon);
+            }
+            Random rand = new Random(42);
+            for (String shape : shapes) {
+                System.out.println("Generating " + rows + " rows for " + shape);
+                generate(scon, dcon, shape, rows, insert, update, delete, rowVersion, embedded, rand);
+            }
+
+            DbComparator comp = new DbComparator();
+            comp.setOptions(options);
+            for (int run = 1; run <= runs; run++) {
+                if (run > 1) {
+                    for (String shape : shapes) {
+                        drift(scon, shape, rows * (run + 1), insert, update, delete, embedded, rand);
+                    }
+                }
+                HeapSampler heap = new HeapSampler();
+                heap.start();
+                long start = System.nanoTime();
+                comp.synchronize(new ConnectionFactory(srcUrl, dstUrl), new HashMap<String, List<Object>>(),
+                        new ArrayList<String>(), true);
+                long elapsed = System.nanoTime() - start;
+                heap.interrupt();
+                heap.join();
+
+                for (String shape : shapes) {
+                    verify(scon, dcon, shape);
+                }
+                System.out.println();
+                System.out.println("Run " + run);
+                System.out.print(comp.getStats());
+                System.out.println(String.format("%-8s %,12d rows %,10d ms", "TOTAL", comp.getRowCount(),
+                        elapsed / 1000000));
+                System.out.println(String.format("Modified %,d rows, peak heap %,d MB", comp.getModCount(),
+                        heap.getPeak() / 1024 / 1024));
+                System.out.println(comp.getStatementCache());
+            }
+        }
+    }
+
+    private static String tableName(String shape) {
+        return "sync_" + shape;
+    }
+
+    /**
+     * @return The columns that are copied, in primary key order
+     */
+    private static String columnList(String shape) {
+        return "composite".equals(shape) ? "[partitionid], [id], [name], [amount]" : "[id], [name], [amount]";
+    }
+
+    private static String writeInsert(String shape) {
+        return String.format("INSERT INTO [%s] (%s) VALUES (%s?, ?)", tableName(shape), columnList(shape),
+                "composite".equals(shape) ? "?, ?, " : "?, ");
+    }
+
+    /**
+     * Creates a table in both databases, with rows in the destination left out, changed and added according to the
+     * drift percentages
+     */
+    private static void generate(Connection scon, Connection dcon, String shape, int rows, double insert,
+                                 double update, double delete, boolean rowVersion, boolean embedded, Random rand)
+            throws Exception {
+        String name = tableName(shape);
+        String pk = "composite".equals(shape) ? "[partitionid] int, [id] uniqueidentifier" : "[id] " + shape;
+        String keys = "composite".equals(shape) ? "[partitionid], [id]" : "[id]";
+        String rv = rowVersion ? ", [rv] " + (embedded ? H2Functions.ROWVERSION : "rowversion") : "";
+        String ddl = String.format("CREATE TABLE [%s] (%s, [name] nvarchar(100), [amount] bigint%s, PRIMARY KEY (%s))",
+                name, pk, rv, keys);
+        String dml = writeInsert(shape);
+        for (Connection con : new Connection[]{scon, dcon}) {
+            try (Statement stmt = con.createStatement()) {
+                stmt.execute(String.format("DROP TABLE IF EXISTS [%s]", name));
+                stmt.execute(ddl);
+            }
+        }
+        try (PreparedStatement sstmt = scon.prepareStatement(dml); PreparedStatement dstmt = dcon.prepareStatement(dml)) {
+            int extra = (int) (rows * delete);
+            for (int i = 0; i < rows + extra; i++) {
+                Object[] key = createKey(shape, i, embedded);
+                String text = Long.toHexString(rand.nextLong());
+                long amount = rand.nextLong();
+                if (i >= rows) {
+                    add(dstmt, key, text, amount); // Only in the destination, so deleted
+                    continue;
+                }
+                add(sstmt, key, text, amount);
+                double roll = rand.nextDouble();
+                if (roll < insert) {
+                    continue; // Only in the source, so inserted
+                }
+                add(dstmt, key, text, roll < insert + update ? amount + 1 : amount);
+            }
+            sstmt.executeBatch();
+            dstmt.executeBatch();
+        }
+    }
+
+    /**
+     * Changes the source between runs: inserts new rows, and updates and deletes random existing ones
+     *
+     * @param first The index of the first new key, past any key used so far
+     */
+    private static void drift(Connection scon, String shape, int first, double insert, double update, double delete,
+                              boolean embedded, Random rand) throws Exception {
+        String name = tableName(shape);
+        int rows;
+        try (Statement stmt = scon.createStatement()) {
+            stmt.executeUpdate(String.format("UPDATE [%s] SET [amount] = [amount] + 1 WHERE %s", name,
+                    writeSample(update, embedded)));
+            stmt.executeUpdate(String.format("DELETE FROM [%s] WHERE %s", name, writeSample(delete, embedded)));
+            try (ResultSet rs = stmt.executeQuery(String.format("SELECT COUNT(*) FROM [%s]", name))) {
+                rs.next();
+                rows = rs.getInt(1);
+            }
+        }
+        try (PreparedStatement stmt = scon.prepareStatement(writeInsert(shape))) {
+            for (int i = 0; i < rows * insert; i++) {
+                add(stmt, createKey(shape, first + i, embedded), Long.toHexString(rand.nextLong()), rand.nextLong());
+            }
+            stmt.executeBatch();
+        }
+    }
+
+    /**
+     * @return A predicate that is true for about the given fraction of rows. SQL Server evaluates RAND() once per
+     * query, so there it is derived from NEWID() instead.
+     */
+    private static String writeSample(double fraction, boolean embedded) {
+        if (embedded) {
+            return String.format("RAND() < %f", fraction);
+        }
+        return String.format("ABS(CHECKSUM(NEWID())) %% 1000000 < %d", (long) (fraction * 1000000));
+    }
+
+    /**
+     * UUIDs differ only in their last six bytes, which both T-SQL and H2 compare first, so that the two sort alike.
+     * jTDS takes them as strings.
+     */
+    private static Object[] createKey(String shape, int i, boolean embedded) {
+        UUID id = new UUID(0, 0x8000000000000000L | i);
+        Object val = embedded ? id : id.toString();
+        switch (shape) {
+            case "bigint":
+                return new Object[]{(long) i};
+            case "uniqueidentifier":
+                return new Object[]{val};
+            case "composite":
+                return new Object[]{i % 16, val};
+            default:
+                throw new IllegalArgumentException("Unknown shape: " + shape);
+        }
+    }
+
+    private static void add(PreparedStatement stmt, Object[] key, String text, long amount) throws Exception {
+        int i = 1;
+        for (Object val : key) {
+            stmt.setObject(i++, val);
+        }
+        stmt.setString(i++, text);
+        stmt.setLong(i, amount);
+        stmt.addBatch();
+    }
+
+    /**
+     * Checks that the destination table now holds exactly the rows of the source table, apart from rowversions
+     */
+    private static void verify(Connection scon, Connection dcon, String shape) throws Exception {
+        String name = tableName(shape);
+        String sql = String.format("SELECT %s FROM [%s] ORDER BY 1, 2", columnList(shape), name);
+        try (Statement sstmt = scon.createStatement(); Statement dstmt = dcon.createStatement();
+             ResultSet srs = sstmt.executeQuery(sql); ResultSet drs = dstmt.executeQuery(sql)) {
+            int cols = srs.getMetaData().getColumnCount();
+            int count = 0;
+            while (srs.next()) {
+                if (!drs.next()) {
+                    throw new IllegalStateException(name + " is missing rows after row " + count);
+                }
+                for (int i = 1; i <= cols; i++) {
+                    if (!Objects.equals(srs.getObject(i), drs.getObject(i))) {
+                        throw new IllegalStateException(name + " differs at row " + count);
+                    }
+                }
+                count++;
+            }
+            if (drs.next()) {
+                throw new IllegalStateException(name + " has extra rows after row " + count);
+            }
+            System.out.println(name + " matches (" + count + " rows)");
+        }
+    }
+
+    /**
+     * Samples the used heap until interrupted
+     */
+    private static class HeapSampler extends Thread {
+        private final AtomicLong peak = new AtomicLong();
+
+        public HeapSampler() {
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            Runtime runtime = Runtime.getRuntime();
+            while (!isInterrupted()) {
+                peak.accumulateAndGet(runtime.totalMemory() - runtime.freeMemory(), Math::max);
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+        }
+
+        public long getPeak() {
+            return peak.get();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.zenplanner.sql;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversions between Java UUIDs and the SQL Server byte layout, and the T-SQL ordering of UUIDs
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UuidBenchmark {
+    private static final int size = 1024;
+
+    private UUID[] uuids;
+    private byte[][] bytes;
+    private int index;
+
+    @Setup
+    public void setup() {
+        Random rand = new Random(42);
+        uuids = new UUID[size + 1];
+        bytes = new byte[size][];
+        for (int i = 0; i < uuids.length; i++) {
+            uuids[i] = new UUID(rand.nextLong(), rand.nextLong());
+        }
+        for (int i = 0; i < size; i++) {
+            bytes[i] = UuidUtil.uuidToByteArray(uuids[i]);
+        }
+    }
+
+    @Benchmark
+    public int sqlUuidCompare() {
+        int i = index++ & (size - 1);
+        return UuidUtil.sqlUuidCompare(uuids[i], uuids[i + 1]);
+    }
+
+    @Benchmark
+    public byte[] uuidToByteArray() {
+        return UuidUtil.uuidToByteArray(uuids[index++ & (size - 1)]);
+    }
+
+    @Benchmark
+    public UUID byteArrayToUuid() {
+        return UuidUtil.byteArrayToUuid(bytes[index++ & (size - 1)]);
+    }
+}
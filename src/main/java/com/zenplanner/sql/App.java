@@ -3,8 +3,6 @@ package com.zenplanner.sql;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.sql.Connection;
-import java.sql.DriverManager;
 import java.util.*;
 
 public class App {
@@ -66,28 +64,27 @@ public class App {
 
             boolean delete = (properties.getProperty("Delete")).equalsIgnoreCase("true");
 
-            try (Connection scon = DriverManager.getConnection(sourceCon)) {
-                System.out.println("Established source connection");
-                scon.setTransactionIsolation(Connection.TRANSACTION_READ_UNCOMMITTED);
-                try (Connection dcon = DriverManager.getConnection(destCon)) {
-                    System.out.println("Established destination connection");
-                    System.out.println("Filter Column");
-                    Set<String> filterColumnNames = filters.keySet();
-                    for (String filterColumnName : filterColumnNames) {
-                        System.out.println("- " + filterColumnName);
-                        List<Object> filterColumnValues = filters.get(filterColumnName);
-                        for (Object filterColumnValue : filterColumnValues) {
-                            System.out.println("-- " + filterColumnValue);
-                        }
-                    }
-                    System.out.println("Ignore Tables");
-                    for (String ignoreTable : ignoreTables) {
-                        System.out.println("- " + ignoreTable);
-                    }
-                    System.out.println("Delete=" + delete);
-                    comp.synchronize(scon, dcon, filters, ignoreTables, delete);
+            System.out.println("Filter Column");
+            Set<String> filterColumnNames = filters.keySet();
+            for (String filterColumnName : filterColumnNames) {
+                System.out.println("- " + filterColumnName);
+                List<Object> filterColumnValues = filters.get(filterColumnName);
+                for (Object filterColumnValue : filterColumnValues) {
+                    System.out.println("-- " + filterColumnValue);
                 }
             }
+            System.out.println("Ignore Tables");
+            for (String ignoreTable : ignoreTables) {
+                System.out.println("- " + ignoreTable);
+            }
+            System.out.println("Delete=" + delete);
+
+            SyncOptions options = SyncOptions.fromProperties(properties);
+            System.out.println("Threads=" + options.getThreads());
+            comp.setOptions(options);
+            comp.synchronize(new ConnectionFactory(sourceCon, destCon), filters, ignoreTables, delete);
+            System.out.print(comp.getStats());
+            System.out.println(comp.getStatementCache());
         }
         System.out.println("Done.");
     }
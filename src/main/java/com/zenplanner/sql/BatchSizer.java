@@ -0,0 +1,100 @@
+package com.zenplanner.sql;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Chooses how many rows a table reads and writes per batch in each phase, from how long its full batches have been
+ * taking. After each full batch, the size moves toward the number of rows that would take BatchMillis at the measured
+ * time per row, by no more than half or double at a time. Wide tables end up with small batches, and narrow ones with
+ * large batches. With BatchMillis at 0, every batch is the row limit.
+ *
+ * A batch whose keys are sent as parameters can't grow past the table's row limit, so it starts at half of it. A batch
+ * that is streamed from a single query, as reloads and key staged writes are, starts at the row limit and can grow to
+ * maxStreamedRows.
+ */
+public class BatchSizer {
+    private static final int maxStreamedRows = 50000; // Rows read into one batch when no key list bounds it
+
+    private final Table table;
+    private final Map<SyncStats.Phase, Integer> sizes = new EnumMap<>(SyncStats.Phase.class);
+
+    public BatchSizer(Table table) {
+        this.table = table;
+    }
+
+    /**
+     * @return True if batch sizes follow the measured latency
+     */
+    public boolean isEnabled() {
+        return table.getOptions().getBatchMillis() > 0;
+    }
+
+    /**
+     * @param phase The phase
+     * @return The number of rows for the next batch of the phase
+     */
+    public synchronized int getSize(SyncStats.Phase phase) {
+        if (!isEnabled()) {
+            return table.getRowLimit();
+        }
+        int maxSize = getMaxSize(phase);
+        Integer size = sizes.get(phase);
+        if (size == null) {
+            return Math.max(1, Math.min(table.getRowLimit(), maxSize / 2));
+        }
+        return Math.min(size, maxSize);
+    }
+
+    /**
+     * @param phase The phase
+     * @return The largest batch the phase allows: the row limit if its keys are sent as parameters, otherwise
+     * maxStreamedRows
+     */
+    public int getMaxSize(SyncStats.Phase phase) {
+        boolean streamed = phase == SyncStats.Phase.RELOAD || (table.getOptions().isKeyStaging()
+                && (phase == SyncStats.Phase.INSERT || phase == SyncStats.Phase.UPDATE
+                || phase == SyncStats.Phase.MERGE));
+        return streamed ? Math.max(maxStreamedRows, table.getRowLimit()) : table.getRowLimit();
+    }
+
+    /**
+     * Adjusts the size of the phase's batches after one has been run
+     *
+     * @param phase The phase
+     * @param size The size the batch was given by getSize()
+     * @param rows The number of rows in the batch, which is less than size for the last one
+     * @param start The System.nanoTime() when the batch started
+     */
+    public synchronized void record(SyncStats.Phase phase, int size, int rows, long start) {
+        if (!isEnabled() || rows <= 0 || rows < size) {
+            return; // A short batch pays the same overhead for fewer rows, which would understate its size
+        }
+        long nanos = Math.max(1, System.nanoTime() - start);
+        double target = table.getOptions().getBatchMillis() * 1000000.0 * rows / nanos;
+        int next = (int) Math.max(size / 2, Math.min(size * 2L, Math.round(target)));
+        sizes.put(phase, Math.max(1, Math.min(next, getMaxSize(phase))));
+    }
+
+    /**
+     * Forgets the measured sizes, so that the next run starts again from the initial sizes
+     */
+    public synchronized void reset() {
+        sizes.clear();
+    }
+
+    /**
+     * @return The current size of each phase that has been measured
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<SyncStats.Phase, Integer> entry : sizes.entrySet()) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        return sb.length() == 0 ? "none measured" : sb.toString();
+    }
+}
@@ -0,0 +1,91 @@
+package com.zenplanner.sql;
+
+import java.sql.Connection;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects every change for a table, and applies them all once the merge-join is complete. The keys are packed into
+ * ChangeSets that share the ChangeMemoryMB budget, and spill to disk beyond it.
+ */
+public class ChangeCollector extends ChangeSink {
+    private final Connection scon;
+    private final Connection dcon;
+    private final Map<DbComparator.ChangeType, ChangeSet> changes = new HashMap<>();
+    private final long budget;
+
+    public ChangeCollector(Table table, Connection scon, Connection dcon, boolean delete,
+                           AtomicLong modCount, AtomicLong currentMod) {
+        super(table, delete, modCount, currentMod);
+        this.scon = scon;
+        this.dcon = dcon;
+        budget = table.getOptions().getChangeMemoryMb() * 1024L * 1024L / 3;
+        changes.put(DbComparator.ChangeType.INSERT, new ChangeSet(table, budget));
+        changes.put(DbComparator.ChangeType.UPDATE, new ChangeSet(table, budget));
+        changes.put(DbComparator.ChangeType.DELETE, new ChangeSet(table, budget));
+    }
+
+    @Override
+    protected void accept(DbComparator.ChangeType change, Key key) {
+        changes.get(change).add(key);
+    }
+
+    @Override
+    public void finish() throws Exception {
+        try {
+            if (table.getOptions().getApplyMode() == SyncOptions.ApplyMode.MERGE) {
+                // One statement per batch handles everything
+                ChangeSet upserts = mergeUpserts(confirmUpdates(scon, dcon, changes.get(DbComparator.ChangeType.UPDATE)));
+                ChangeSet deletes = changes.get(DbComparator.ChangeType.DELETE);
+                table.mergeRows(scon, dcon, upserts, deletes, currentMod);
+                table.commit(dcon);
+                return;
+            }
+            apply(scon, dcon, DbComparator.ChangeType.DELETE, changes.get(DbComparator.ChangeType.DELETE));
+            apply(scon, dcon, DbComparator.ChangeType.INSERT, changes.get(DbComparator.ChangeType.INSERT));
+            apply(scon, dcon, DbComparator.ChangeType.UPDATE, changes.get(DbComparator.ChangeType.UPDATE));
+            table.commit(dcon);
+        } finally {
+            cancel();
+        }
+    }
+
+    /**
+     * Merges the inserts and the updates into one set, and puts it in place of the inserts. Keys found by the merge-join
+     * arrive in primary key order, and the merged set keeps them in that order.
+     *
+     * @param updates The keys of the rows to update, in the order they were found
+     * @return The merged set
+     */
+    private ChangeSet mergeUpserts(Collection<Key> updates) {
+        ChangeSet inserts = changes.get(DbComparator.ChangeType.INSERT);
+        ChangeSet upserts = new ChangeSet(table, budget);
+        KeyComparator cmp = table.getKeyComparator();
+        Iterator<Key> left = inserts.iterator();
+        Iterator<Key> right = updates.iterator();
+        Key insert = left.hasNext() ? left.next() : null;
+        Key update = right.hasNext() ? right.next() : null;
+        while (insert != null || update != null) {
+            if (update == null || (insert != null && cmp.compare(insert, update) <= 0)) {
+                upserts.add(insert);
+                insert = left.hasNext() ? left.next() : null;
+            } else {
+                upserts.add(update);
+                update = right.hasNext() ? right.next() : null;
+            }
+        }
+        inserts.close();
+        changes.put(DbComparator.ChangeType.INSERT, upserts);
+        return upserts;
+    }
+
+    @Override
+    public void cancel() {
+        for (ChangeSet keys : changes.values()) {
+            keys.close();
+        }
+    }
+}
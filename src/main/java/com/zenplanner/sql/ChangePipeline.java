@@ -0,0 +1,128 @@
+package com.zenplanner.sql;
+
+import java.sql.Connection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Streams batches of changes from the merge-join into a bounded queue, which an apply stage drains on its own
+ * connection pair at the same time. Reads and writes overlap, and memory use is capped by the queue capacity rather
+ * than by how far the tables have drifted apart.
+ */
+public class ChangePipeline extends ChangeSink {
+    private static final Batch END = new Batch(DbComparator.ChangeType.NONE, null);
+
+    private final int batchSize;
+    private final BlockingQueue<Batch> queue;
+    private final Map<DbComparator.ChangeType, ChangeSet> pending = new HashMap<>();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Future<Void> applier;
+
+    /**
+     * @param table The table being synchronized
+     * @param scon A source connection for the apply stage, must not be the one used by the merge-join
+     * @param dcon A destination connection for the apply stage, must not be the one used by the merge-join
+     * @param delete True if rows that are not in the source should be deleted
+     * @param depth The maximum number of batches waiting to be applied
+     */
+    public ChangePipeline(Table table, Connection scon, Connection dcon, boolean delete, int depth,
+                          AtomicLong modCount, AtomicLong currentMod) {
+        super(table, delete, modCount, currentMod);
+        this.batchSize = table.getRowLimit();
+        this.queue = new ArrayBlockingQueue<>(depth);
+        this.applier = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                while (true) {
+                    Batch batch = queue.take();
+                    if (batch == END) {
+                        table.commit(dcon);
+                        return null;
+                    }
+                    try {
+                        apply(scon, dcon, batch.change, batch.keys);
+                    } finally {
+                        batch.keys.close();
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    protected void accept(DbComparator.ChangeType change, Key key) throws Exception {
+        ChangeSet keys = pending.get(change);
+        if (keys == null) {
+            keys = new ChangeSet(table, Long.MAX_VALUE); // Bounded by batchSize, so never spills
+            pending.put(change, keys);
+        }
+        keys.add(key);
+        if (keys.size() >= batchSize) {
+            pending.remove(change);
+            put(new Batch(change, keys));
+        }
+    }
+
+    @Override
+    public void finish() throws Exception {
+        try {
+            for (DbComparator.ChangeType change : DbComparator.ChangeType.values()) {
+                ChangeSet keys = pending.remove(change);
+                if (keys != null) {
+                    put(new Batch(change, keys));
+                }
+            }
+            put(END);
+            applier.get();
+        } catch (ExecutionException ex) {
+            throw (Exception) ex.getCause();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Override
+    public void cancel() {
+        pending.clear();
+        applier.cancel(true);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Hands a batch to the apply stage, waiting while the queue is full
+     *
+     * @param batch The batch to apply
+     * @throws Exception If the apply stage has failed
+     */
+    private void put(Batch batch) throws Exception {
+        while (!queue.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+            if (applier.isDone()) {
+                try {
+                    applier.get();
+                } catch (ExecutionException ex) {
+                    throw (Exception) ex.getCause();
+                }
+                throw new IllegalStateException("Apply stage stopped unexpectedly for " + table.getName());
+            }
+        }
+    }
+
+    private static class Batch {
+        private final DbComparator.ChangeType change;
+        private final ChangeSet keys;
+
+        private Batch(DbComparator.ChangeType change, ChangeSet keys) {
+            this.change = change;
+            this.keys = keys;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package com.zenplanner.sql;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * An append-only collection of changed keys, packed with a KeyCodec. Keys are kept on the heap until the memory budget
+ * is used up, after which new keys go to a memory-mapped temp file. Iteration returns the keys in the order they were
+ * added, which for the merge-join is primary key order.
+ *
+ * The temp file is opened with DELETE_ON_CLOSE, and closing the set drops its mapped segments and closes the file.
+ * The file is gone at once where the OS allows deleting a mapped file, and otherwise once the segments are collected.
+ */
+public class ChangeSet extends AbstractCollection<Key> implements AutoCloseable {
+    private static final int minSegment = 4 * 1024;
+    private static final int maxHeapSegment = 1024 * 1024;
+    private static final int fileSegment = 64 * 1024 * 1024;
+
+    private final Table table;
+    private final KeyCodec codec;
+    private final long memoryBudget;
+    private final List<ByteBuffer> segments = new ArrayList<>();
+    private ByteBuffer current;
+    private long heapBytes;
+    private long count;
+    private File file;
+    private FileChannel channel;
+    private long fileBytes;
+
+    /**
+     * @param table The table the keys belong to
+     * @param memoryBudget The number of bytes of heap to use before spilling to disk
+     */
+    public ChangeSet(Table table, long memoryBudget) {
+        this.table = table;
+        this.codec = table.getKeyCodec();
+        this.memoryBudget = memoryBudget;
+    }
+
+    @Override
+    public boolean add(Key key) {
+        int size = codec.sizeOf(key);
+        if (current == null || current.remaining() < size) {
+            current = allocate(size);
+            segments.add(current);
+        }
+        codec.encode(key, current);
+        count++;
+        return true;
+    }
+
+    /**
+     * Starts a new segment, on the heap if the budget allows, otherwise in the spill file
+     *
+     * @param size The size of the record that needs to fit
+     */
+    private ByteBuffer allocate(int size) {
+        int heapSize = Math.max(size, current == null ? minSegment : Math.min(maxHeapSegment, current.capacity() * 2));
+        if (file == null && heapBytes + heapSize <= memoryBudget) {
+            heapBytes += heapSize;
+            return ByteBuffer.allocate(heapSize);
+        }
+        try {
+            if (file == null) {
+                file = File.createTempFile("dbsync-" + table.getName() + "-", ".keys");
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE,
+                        StandardOpenOption.DELETE_ON_CLOSE);
+                System.out.println("Spilling changes for " + table.getName() + " to " + file.getAbsolutePath());
+            }
+            int mapSize = Math.max(size, fileSegment);
+            ByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE, fileBytes, mapSize);
+            fileBytes += mapSize;
+            return buf;
+        } catch (IOException ex) {
+            throw new RuntimeException("Error spilling changes to disk for " + table.getName(), ex);
+        }
+    }
+
+    @Override
+    public Iterator<Key> iterator() {
+        final List<ByteBuffer> views = new ArrayList<>();
+        for (ByteBuffer segment : segments) {
+            ByteBuffer view = segment.duplicate();
+            view.flip();
+            views.add(view);
+        }
+        final long total = count;
+        return new Iterator<Key>() {
+            private long index;
+            private int segment;
+
+            @Override
+            public boolean hasNext() {
+                return index < total;
+            }
+
+            @Override
+            public Key next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                while (!views.get(segment).hasRemaining()) {
+                    segment++;
+                }
+                index++;
+                return codec.decode(views.get(segment));
+            }
+        };
+    }
+
+    /**
+     * @return The number of keys, which unlike size() is not capped at Integer.MAX_VALUE
+     */
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.min(count, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return The number of keys in a collection, which for a ChangeSet may be more than its size() can report
+     */
+    public static long count(Collection<Key> keys) {
+        return keys instanceof ChangeSet ? ((ChangeSet) keys).getCount() : keys.size();
+    }
+
+    /**
+     * @return True if some of the keys have been written to disk
+     */
+    public boolean isSpilled() {
+        return file != null;
+    }
+
+    @Override
+    public void clear() {
+        close();
+    }
+
+    /**
+     * Drops every key, and then closes the spill file if there is one, which deletes it
+     */
+    @Override
+    public void close() {
+        segments.clear();
+        current = null;
+        heapBytes = 0;
+        count = 0;
+        if (file != null) {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                System.err.println("Error closing " + file.getAbsolutePath() + ": " + ex.getMessage());
+            }
+            file = null;
+            channel = null;
+            fileBytes = 0;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.zenplanner.sql;
+
+import java.sql.Connection;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Receives the changed keys found by the merge-join in DbComparator.syncTable, and applies them to the destination
+ */
+public abstract class ChangeSink {
+    protected final Table table;
+    protected final boolean delete;
+    private final AtomicLong modCount;
+    protected final AtomicLong currentMod;
+
+    protected ChangeSink(Table table, boolean delete, AtomicLong modCount, AtomicLong currentMod) {
+        this.table = table;
+        this.delete = delete;
+        this.modCount = modCount;
+        this.currentMod = currentMod;
+    }
+
+    /**
+     * Accepts the key of one row, and the change that needs to be made to it
+     *
+     * @param change The type of change
+     * @param key The primary key of the row
+     * @throws Exception
+     */
+    public void add(DbComparator.ChangeType change, Key key) throws Exception {
+        if (change == DbComparator.ChangeType.NONE) {
+            return;
+        }
+        if (change == DbComparator.ChangeType.DELETE && !delete) {
+            return;
+        }
+        modCount.incrementAndGet();
+        accept(change, key);
+    }
+
+    protected abstract void accept(DbComparator.ChangeType change, Key key) throws Exception;
+
+    /**
+     * Called once the merge-join is complete, returns after all changes have been applied
+     *
+     * @throws Exception
+     */
+    public abstract void finish() throws Exception;
+
+    /**
+     * Called if the merge-join fails, to stop applying changes
+     */
+    public abstract void cancel();
+
+    /**
+     * Drops the updates that a prefilter row hash found but its confirmation does not, see RowHashStrategy.isPrefilter()
+     *
+     * @param scon The source connection
+     * @param dcon The destination connection
+     * @param keys The keys of the rows to update
+     * @return The keys of the rows that really need updating
+     * @throws Exception
+     */
+    protected Collection<Key> confirmUpdates(Connection scon, Connection dcon, Collection<Key> keys) throws Exception {
+        if (!table.getRowHash().isPrefilter() || keys.isEmpty()) {
+            return keys;
+        }
+        List<Key> confirmed = table.confirmChanges(scon, dcon, keys);
+        modCount.addAndGet(confirmed.size() - ChangeSet.count(keys));
+        return confirmed;
+    }
+
+    /**
+     * Applies one set of changes to the destination
+     *
+     * @param scon The source connection, used to read the changed rows
+     * @param dcon The destination connection
+     * @param change The type of change
+     * @param keys The keys of the changed rows
+     * @throws Exception
+     */
+    protected void apply(Connection scon, Connection dcon, DbComparator.ChangeType change, Collection<Key> keys)
+            throws Exception {
+        switch (change) {
+            case DELETE:
+                table.deleteRows(dcon, keys, currentMod);
+                break;
+            case INSERT:
+                table.insertRows(scon, dcon, keys, currentMod);
+                break;
+            case UPDATE:
+                table.updateRows(scon, dcon, confirmUpdates(scon, dcon, keys), currentMod);
+                break;
+            default:
+                break;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.zenplanner.sql;
+
+import java.sql.Connection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reports the keys of the rows that have changed in a source table since an earlier version, so that a table can be
+ * synced without a hashed scan of both sides. A version is an opaque token read from the source before any of the
+ * table's rows, and saved in the SyncState once the table has been synced.
+ *
+ * Inserted and updated keys are checked against both sides before anything is written, so a source may report a row
+ * that has not really changed, or an insert as an update. Deleted keys are deleted from the destination as reported.
+ */
+public abstract class ChangeSource {
+
+    /**
+     * Receives the changed keys, in any order
+     */
+    public interface Listener {
+        void changed(DbComparator.ChangeType change, Key key) throws Exception;
+    }
+
+    /**
+     * @return The name the source's versions are saved under
+     */
+    public abstract String getName();
+
+    /**
+     * @param con The source connection
+     * @param table The table
+     * @return True if this source can report the changes to the table
+     * @throws Exception
+     */
+    public abstract boolean canTrack(Connection con, Table table) throws Exception;
+
+    /**
+     * @param con The source connection
+     * @return The version of the source now, below which no change can still be committed
+     * @throws Exception
+     */
+    public abstract byte[] readVersion(Connection con) throws Exception;
+
+    /**
+     * @param con The source connection
+     * @param table The table
+     * @param since A version from an earlier run
+     * @return True if every change since the version can still be read
+     * @throws Exception
+     */
+    public boolean isValid(Connection con, Table table, byte[] since) throws Exception {
+        return true;
+    }
+
+    /**
+     * @return True if deleted rows are not reported, so they have to be found by reading every key
+     */
+    public boolean isMissingDeletes() {
+        return false;
+    }
+
+    /**
+     * Reports the keys of the filtered rows that have changed since a version
+     *
+     * @param con The source connection
+     * @param table The table
+     * @param filters The filters of the sync
+     * @param since A version from an earlier run
+     * @param listener Receives each key, with the change that was made to it
+     * @throws Exception
+     */
+    public abstract void readChanges(Connection con, Table table, Map<String, List<Object>> filters, byte[] since,
+                                     Listener listener) throws Exception;
+}
@@ -0,0 +1,109 @@
+package com.zenplanner.sql;
+
+import com.google.common.base.Joiner;
+
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads SQL Server Change Tracking, for source tables that have it enabled. The version is the database's
+ * CHANGE_TRACKING_CURRENT_VERSION() as a bigint, and the changes since it come from CHANGETABLE(CHANGES ...).
+ *
+ * Filters are applied to inserts and updates by joining the changes back to the table. A deleted row can't be
+ * filtered, so every deleted key is reported, which does nothing to a destination that never held it.
+ */
+public class ChangeTrackingSource extends ChangeSource {
+
+    @Override
+    public String getName() {
+        return "ChangeVersion";
+    }
+
+    @Override
+    public boolean canTrack(Connection con, Table table) throws Exception {
+        return readMinValidVersion(con, table) != null;
+    }
+
+    @Override
+    public byte[] readVersion(Connection con) throws Exception {
+        try (Statement stmt = con.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT CHANGE_TRACKING_CURRENT_VERSION()")) {
+            rs.next();
+            return ByteBuffer.allocate(8).putLong(rs.getLong(1)).array();
+        }
+    }
+
+    /**
+     * @return False if the changes since the version have been cleaned up, or tracking was turned off and on again
+     */
+    @Override
+    public boolean isValid(Connection con, Table table, byte[] since) throws Exception {
+        Long min = readMinValidVersion(con, table);
+        return min != null && min <= ByteBuffer.wrap(since).getLong();
+    }
+
+    private static Long readMinValidVersion(Connection con, Table table) throws Exception {
+        try (PreparedStatement stmt = con.prepareStatement("SELECT CHANGE_TRACKING_MIN_VALID_VERSION(OBJECT_ID(?))")) {
+            stmt.setString(1, table.getName());
+            try (ResultSet rs = stmt.executeQuery()) {
+                rs.next();
+                long version = rs.getLong(1);
+                return rs.wasNull() ? null : version;
+            }
+        }
+    }
+
+    @Override
+    public void readChanges(Connection con, Table table, Map<String, List<Object>> filters, byte[] since,
+                            Listener listener) throws Exception {
+        String sql = writeChangesQuery(table, filters);
+        try (PreparedStatement stmt = con.prepareStatement(sql)) {
+            stmt.setLong(1, ByteBuffer.wrap(since).getLong());
+            table.setFilterParams(stmt, filters, 2);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    String op = rs.getString("Operation");
+                    DbComparator.ChangeType change = "D".equals(op) ? DbComparator.ChangeType.DELETE
+                            : "I".equals(op) ? DbComparator.ChangeType.INSERT : DbComparator.ChangeType.UPDATE;
+                    listener.changed(change, table.getPk(rs));
+                }
+            }
+        } catch (Exception ex) {
+            throw new RuntimeException("Error selecting tracked changes: " + sql, ex);
+        }
+    }
+
+    /**
+     * @return The query for the changed keys and their operations, with the version followed by the filter parameters
+     */
+    private static String writeChangesQuery(Table table, Map<String, List<Object>> filters) {
+        List<String> keyCols = new ArrayList<>();
+        List<String> joinCols = new ArrayList<>();
+        for (Column col : table.getPk()) {
+            keyCols.add("ct.[" + col.getColumnName() + "]");
+            joinCols.add(String.format("t.[%s] = ct.[%s]", col.getColumnName(), col.getColumnName()));
+        }
+        String sql = String.format("SELECT\n\t%s,\n\tct.SYS_CHANGE_OPERATION AS [Operation]\n" +
+                "FROM CHANGETABLE(CHANGES [%s], ?) AS ct\n", Joiner.on(", ").join(keyCols), table.getName());
+        if (!table.hasAllColumns(filters.keySet()) || filters.isEmpty()) {
+            return sql;
+        }
+        List<String> clauses = new ArrayList<>();
+        for (Map.Entry<String, List<Object>> filter : filters.entrySet()) {
+            List<String> terms = new ArrayList<>();
+            for (Object val : filter.getValue()) {
+                terms.add("?");
+            }
+            clauses.add("t.[" + filter.getKey() + "] IN (" + Joiner.on(",").join(terms) + ")");
+        }
+        sql += String.format("LEFT OUTER JOIN [%s] t ON %s\n", table.getName(), Joiner.on(" AND ").join(joinCols));
+        sql += String.format("WHERE ct.SYS_CHANGE_OPERATION = 'D' OR (%s)", Joiner.on("\n\t AND ").join(clauses));
+        return sql;
+    }
+}
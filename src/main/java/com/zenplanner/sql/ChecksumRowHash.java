@@ -0,0 +1,43 @@
+package com.zenplanner.sql;
+
+import com.google.common.base.Joiner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The server computes a BINARY_CHECKSUM of each row, which costs far less CPU than MD5, and bucket compares sum the
+ * same checksum. BINARY_CHECKSUM ignores text, ntext, image and xml columns, so those go in as the MD5 of their bytes.
+ * Rows whose checksums differ are confirmed with ClientRowHash before they are copied, which reads the full columns of
+ * just those rows, so a change which leaves the 32 bit checksum the same is missed, but no other.
+ */
+public class ChecksumRowHash extends RowHashStrategy {
+
+    @Override
+    public String writeSelect(Table table) {
+        return writeBucketHash(table) + " AS [Hash]";
+    }
+
+    @Override
+    public String writeBucketHash(Table table) {
+        List<String> colNames = new ArrayList<>();
+        for (Column col : table.values()) {
+            if (col.isNoncomparable()) {
+                colNames.add(String.format("HASHBYTES('md5', CAST([%s] AS varbinary(max)))", col.getColumnName()));
+            } else {
+                colNames.add("[" + col.getColumnName() + "]");
+            }
+        }
+        return String.format("CAST(BINARY_CHECKSUM(%s) AS binary(4))", Joiner.on(", ").join(colNames));
+    }
+
+    @Override
+    public RowHashStrategy getConfirmation() {
+        return new ClientRowHash();
+    }
+
+    @Override
+    public boolean isPrefilter() {
+        return true;
+    }
+}
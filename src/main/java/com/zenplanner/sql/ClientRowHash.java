@@ -0,0 +1,86 @@
+package com.zenplanner.sql;
+
+import com.google.common.base.Joiner;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The server streams the raw columns, and the hash is computed here with 128 bit MurmurHash3, which moves the hashing
+ * CPU off the database. Every character of every column is hashed, so unlike Md5RowHash it sees changes past the
+ * first 500 characters of long strings. The primary key is not hashed, since the merge-join compares it already.
+ *
+ * The server can't compute this hash, so bucket compares still sum the MD5 of Md5RowHash. With BucketCompare on, a
+ * change past the first 500 characters is only found if the bucket it falls in differs for some other reason.
+ */
+public class ClientRowHash extends RowHashStrategy {
+    private static final HashFunction hashFunction = Hashing.murmur3_128();
+    private static final byte[] emptyHash = new byte[16];
+
+    @Override
+    public String writeSelect(Table table) {
+        List<String> colNames = new ArrayList<>();
+        for (Column col : getColumns(table)) {
+            colNames.add("[" + col.getColumnName() + "]");
+        }
+        if (colNames.isEmpty()) {
+            return "0 AS [Hash]"; // Nothing but the key
+        }
+        return Joiner.on(", ").join(colNames);
+    }
+
+    @Override
+    public HashReader createReader(Table table, ResultSet rs) throws Exception {
+        List<Column> cols = getColumns(table);
+        final int[] ordinals = new int[cols.size()];
+        for (int i = 0; i < ordinals.length; i++) {
+            ordinals[i] = rs.findColumn(cols.get(i).getColumnName());
+        }
+        return new HashReader() {
+            @Override
+            public byte[] read() throws Exception {
+                if (ordinals.length == 0) {
+                    return emptyHash;
+                }
+                Hasher hasher = hashFunction.newHasher();
+                for (int ordinal : ordinals) {
+                    putValue(hasher, rs.getObject(ordinal));
+                }
+                return hasher.hash().asBytes();
+            }
+        };
+    }
+
+    private static List<Column> getColumns(Table table) {
+        List<Column> cols = new ArrayList<>();
+        for (Column col : table.values()) {
+            if (!col.isPrimaryKey()) {
+                cols.add(col);
+            }
+        }
+        return cols;
+    }
+
+    /**
+     * Adds one column to the hash, with a marker for nulls and a length for variable sized values, so that values can't
+     * run into each other
+     */
+    private static void putValue(Hasher hasher, Object val) {
+        if (val == null) {
+            hasher.putByte((byte) 0);
+            return;
+        }
+        hasher.putByte((byte) 1);
+        if (val instanceof byte[]) {
+            byte[] bytes = (byte[]) val;
+            hasher.putInt(bytes.length).putBytes(bytes);
+            return;
+        }
+        String text = val.toString();
+        hasher.putInt(text.length()).putUnencodedChars(text);
+    }
+}
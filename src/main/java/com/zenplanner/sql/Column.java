@@ -13,6 +13,7 @@ public class Column {
             "int", "decimal", "bit", "money", "smallmoney", "char", "float", "image", "nchar", "datetimeoffset"
     });
     private static final List<String> bigTypes = Arrays.asList(new String[]{"varchar", "nvarchar", "text"});
+    private static final List<String> noncomparableTypes = Arrays.asList(new String[]{"text", "ntext", "image", "xml"});
 
     private String columnName;
     private String dataType;
@@ -36,33 +37,43 @@ public class Column {
     }
 
     public Comparable<?> getValue(ResultSet rs) throws Exception {
+        return getValue(rs, rs.findColumn(columnName));
+    }
+
+    /**
+     * @param rs A ResultSet positioned on a row
+     * @param ordinal The position of this column in the ResultSet, from ResultSet.findColumn()
+     * @return The value of this column in the current row
+     * @throws Exception
+     */
+    public Comparable<?> getValue(ResultSet rs, int ordinal) throws Exception {
         if("int".equals(dataType)) {
-            return rs.getInt(columnName);
+            return rs.getInt(ordinal);
         }
         if("bigint".equals(dataType)) {
-            return rs.getLong(columnName);
+            return rs.getLong(ordinal);
         }
         if("nchar".equals(dataType)) {
-            return rs.getString(columnName);
+            return rs.getString(ordinal);
         }
         if("varchar".equals(dataType)) {
-            return rs.getString(columnName);
+            return rs.getString(ordinal);
         }
         if("nvarchar".equals(dataType)) {
-            return rs.getString(columnName);
+            return rs.getString(ordinal);
         }
         if("uniqueidentifier".equals(dataType)) {
-            byte[] bytes = rs.getBytes(columnName);
+            byte[] bytes = rs.getBytes(ordinal);
             UUID uuid = UuidUtil.byteArrayToUuid(bytes);
             return uuid;
         }
         if("datetimeoffset".equals(dataType))
         {
-            return rs.getDate(columnName);
+            return rs.getDate(ordinal);
         }
         if("date".equals(dataType))
         {
-        	return rs.getDate(columnName);
+        	return rs.getDate(ordinal);
         }
         throw new RuntimeException("Type not recognized: " + dataType);
     }
@@ -83,6 +94,20 @@ public class Column {
         this.dataType = dataType;
     }
 
+    /**
+     * @return True if this is a rowversion (timestamp) column, which can't be written, only compared
+     */
+    public boolean isRowVersion() {
+        return "timestamp".equalsIgnoreCase(dataType) || "rowversion".equalsIgnoreCase(dataType);
+    }
+
+    /**
+     * @return True if SQL Server can't compare values of this column's type, so BINARY_CHECKSUM ignores it
+     */
+    public boolean isNoncomparable() {
+        return noncomparableTypes.contains(getDataType().toLowerCase());
+    }
+
     public boolean isPrimaryKey() {
         return isPrimaryKey;
     }
@@ -0,0 +1,44 @@
+package com.zenplanner.sql;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+
+/**
+ * Opens connections to the source and destination databases, so that each worker can own its own pair
+ */
+public class ConnectionFactory {
+    private final String sourceUrl;
+    private final String destUrl;
+
+    public ConnectionFactory(String sourceUrl, String destUrl) {
+        this.sourceUrl = sourceUrl;
+        this.destUrl = destUrl;
+    }
+
+    /**
+     * @return A new connection to the source database, with the minimum transaction isolation level
+     * @throws SQLException
+     */
+    public Connection openSource() throws SQLException {
+        Connection con = DriverManager.getConnection(sourceUrl);
+        con.setTransactionIsolation(Connection.TRANSACTION_READ_UNCOMMITTED);
+        return con;
+    }
+
+    /**
+     * @return A new connection to the destination database
+     * @throws SQLException
+     */
+    public Connection openDestination() throws SQLException {
+        return DriverManager.getConnection(destUrl);
+    }
+
+    public String getSourceUrl() {
+        return sourceUrl;
+    }
+
+    public String getDestUrl() {
+        return destUrl;
+    }
+}
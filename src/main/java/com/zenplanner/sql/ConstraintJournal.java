@@ -0,0 +1,131 @@
+package com.zenplanner.sql;
+
+import com.google.common.base.Charsets;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An append-only record of the constraints a sync has disabled and enabled again. A constraint is written down before
+ * it is disabled, and again after it is enabled, each line synced to disk, so after a crash the journal names every
+ * constraint that may still be disabled. Enabling a constraint that is already enabled does nothing, so restoring
+ * from the journal is safe to repeat.
+ *
+ * Each line is DISABLE or ENABLE, the table name and the constraint name, tab separated.
+ */
+public class ConstraintJournal {
+    private static final String disable = "DISABLE";
+    private static final String enable = "ENABLE";
+
+    private final File file;
+
+    public ConstraintJournal(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Records constraints that are about to be disabled
+     *
+     * @param tableName The table the constraints belong to
+     * @param names The constraint names
+     */
+    public synchronized void disabling(String tableName, List<String> names) {
+        append(disable, tableName, names);
+    }
+
+    /**
+     * Records constraints that have been enabled again
+     *
+     * @param tableName The table the constraints belong to
+     * @param names The constraint names
+     */
+    public synchronized void enabled(String tableName, List<String> names) {
+        append(enable, tableName, names);
+    }
+
+    private void append(String action, String tableName, List<String> names) {
+        if (names.isEmpty()) {
+            return;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String name : names) {
+            sb.append(action).append('\t').append(tableName).append('\t').append(name).append('\n');
+        }
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            if (!endsWithNewline()) {
+                sb.insert(0, '\n'); // Leave any line cut short by a crash on its own
+            }
+            out.write(sb.toString().getBytes(Charsets.UTF_8));
+            out.getFD().sync();
+        } catch (Exception ex) {
+            throw new RuntimeException("Error writing constraint journal " + file.getAbsolutePath(), ex);
+        }
+    }
+
+    private boolean endsWithNewline() throws Exception {
+        if (file.length() == 0) {
+            return true;
+        }
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            in.seek(file.length() - 1);
+            return in.read() == '\n';
+        }
+    }
+
+    /**
+     * @return The constraints that were disabled and not enabled again, by table, or an empty map if there are none
+     */
+    public synchronized Map<String, List<String>> readDisabled() {
+        Map<String, Set<String>> open = new LinkedHashMap<>();
+        if (file.exists()) {
+            try {
+                for (String line : Files.readAllLines(file.toPath(), Charsets.UTF_8)) {
+                    String[] parts = line.split("\t");
+                    if (parts.length != 3) {
+                        continue; // A line cut short by a crash
+                    }
+                    Set<String> names = open.get(parts[1]);
+                    if (names == null) {
+                        names = new LinkedHashSet<>();
+                        open.put(parts[1], names);
+                    }
+                    if (disable.equals(parts[0])) {
+                        names.add(parts[2]);
+                    } else if (enable.equals(parts[0])) {
+                        names.remove(parts[2]);
+                    }
+                }
+            } catch (Exception ex) {
+                throw new RuntimeException("Error reading constraint journal " + file.getAbsolutePath(), ex);
+            }
+        }
+        Map<String, List<String>> disabled = new LinkedHashMap<>();
+        for (Map.Entry<String, Set<String>> entry : open.entrySet()) {
+            if (!entry.getValue().isEmpty()) {
+                disabled.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+            }
+        }
+        return disabled;
+    }
+
+    /**
+     * Removes the journal, once every constraint in it is enabled
+     */
+    public synchronized void delete() {
+        if (file.exists() && !file.delete()) {
+            System.out.println("Unable to delete constraint journal " + file.getAbsolutePath());
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.zenplanner.sql;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Resources;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Disables the destination's constraints only while the tables they involve are being synced. A check constraint
+ * involves the table it belongs to, and a foreign key also involves the table it references, since deleting from that
+ * table is checked against it. A constraint is disabled when the first of its tables starts, and enabled again when
+ * the last of them is done, so tables can still be synced in any order. Each change is a single round trip for all the
+ * constraints involved, and is recorded in a ConstraintJournal.
+ */
+public class ConstraintManager {
+    private final ConstraintJournal journal;
+    private final Map<String, List<Constraint>> byTable = new HashMap<>();
+    private final Map<Constraint, Integer> pending = new HashMap<>();
+    private final Set<Constraint> disabled = new HashSet<>();
+
+    /**
+     * @param con The destination connection
+     * @param tableNames The names of the tables being synced
+     * @param journal Records each change
+     * @throws Exception
+     */
+    public ConstraintManager(Connection con, Collection<String> tableNames, ConstraintJournal journal) throws Exception {
+        this.journal = journal;
+        for (Constraint constraint : readConstraints(con)) {
+            Set<String> tables = new HashSet<>();
+            for (String tableName : new String[]{constraint.table, constraint.referenced}) {
+                if (tableName != null && tableNames.contains(tableName)) {
+                    tables.add(tableName);
+                }
+            }
+            for (String tableName : tables) {
+                List<Constraint> constraints = byTable.get(tableName);
+                if (constraints == null) {
+                    constraints = new ArrayList<>();
+                    byTable.put(tableName, constraints);
+                }
+                constraints.add(constraint);
+            }
+            pending.put(constraint, tables.size());
+        }
+    }
+
+    /**
+     * Disables the constraints that involve a table, if they aren't already, before the table is synced
+     *
+     * @param con A destination connection
+     * @param tableName The table
+     */
+    public synchronized void begin(Connection con, String tableName) {
+        Map<String, List<String>> changes = new LinkedHashMap<>();
+        for (Constraint constraint : get(tableName)) {
+            if (pending.get(constraint) > 0 && disabled.add(constraint)) {
+                add(changes, constraint);
+            }
+        }
+        for (Map.Entry<String, List<String>> entry : changes.entrySet()) {
+            journal.disabling(entry.getKey(), entry.getValue());
+        }
+        setConstraints(con, changes, false);
+    }
+
+    /**
+     * Enables the constraints that involve a table again, once every table they involve has been synced
+     *
+     * @param con A destination connection
+     * @param tableName The table, which has been synced
+     */
+    public synchronized void finish(Connection con, String tableName) {
+        Map<String, List<String>> changes = new LinkedHashMap<>();
+        for (Constraint constraint : get(tableName)) {
+            int remaining = pending.get(constraint) - 1;
+            pending.put(constraint, remaining);
+            if (remaining <= 0 && disabled.remove(constraint)) {
+                add(changes, constraint);
+            }
+        }
+        setConstraints(con, changes, true);
+        for (Map.Entry<String, List<String>> entry : changes.entrySet()) {
+            journal.enabled(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Enables every constraint that is still disabled, for when the sync stops early
+     *
+     * @param con A destination connection
+     */
+    public synchronized void restore(Connection con) {
+        Map<String, List<String>> changes = new LinkedHashMap<>();
+        for (Constraint constraint : disabled) {
+            add(changes, constraint);
+        }
+        setConstraints(con, changes, true);
+        for (Map.Entry<String, List<String>> entry : changes.entrySet()) {
+            journal.enabled(entry.getKey(), entry.getValue());
+        }
+        disabled.clear();
+    }
+
+    private List<Constraint> get(String tableName) {
+        List<Constraint> constraints = byTable.get(tableName);
+        return constraints == null ? new ArrayList<Constraint>() : constraints;
+    }
+
+    private static void add(Map<String, List<String>> changes, Constraint constraint) {
+        List<String> names = changes.get(constraint.table);
+        if (names == null) {
+            names = new ArrayList<>();
+            changes.put(constraint.table, names);
+        }
+        names.add(constraint.name);
+    }
+
+    /**
+     * Enables or disables constraints, with a single round trip for all of them
+     *
+     * @param con The destination connection
+     * @param tables The constraint names by table
+     * @param enabled True to enable the constraints, false to disable them
+     */
+    public static void setConstraints(Connection con, Map<String, List<String>> tables, boolean enabled) {
+        String state = enabled ? "CHECK" : "NOCHECK";
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, List<String>> entry : tables.entrySet()) {
+            for (String constraintName : entry.getValue()) {
+                sb.append(String.format("ALTER TABLE [%s] %s CONSTRAINT [%s];\n", entry.getKey(), state,
+                        constraintName));
+            }
+        }
+        if (sb.length() == 0) {
+            return;
+        }
+        try (Statement stmt = con.createStatement()) {
+            stmt.executeUpdate(sb.toString());
+        } catch (Exception ex) {
+            throw new RuntimeException("Error setting constraints enabled: " + enabled, ex);
+        }
+    }
+
+    /**
+     * @return The destination's enabled constraints, other than primary keys, unique keys and defaults
+     * @throws Exception
+     */
+    private static List<Constraint> readConstraints(Connection con) throws Exception {
+        List<Constraint> constraints = new ArrayList<>();
+        try (Statement stmt = con.createStatement()) {
+            String sql = Resources.toString(Resources.getResource("GetConstraints.sql"), Charsets.UTF_8);
+            try (ResultSet rs = stmt.executeQuery(sql)) {
+                while (rs.next()) {
+                    constraints.add(new Constraint(rs.getString("table_name"), rs.getString("constraint_name"),
+                            rs.getString("referenced_table")));
+                }
+            }
+        }
+        return constraints;
+    }
+
+    private static class Constraint {
+        private final String table;
+        private final String name;
+        private final String referenced;
+
+        private Constraint(String table, String name, String referenced) {
+            this.table = table;
+            this.name = name;
+            this.referenced = referenced;
+        }
+
+        @Override
+        public int hashCode() {
+            return table.hashCode() * 31 + name.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Constraint)) {
+                return false;
+            }
+            Constraint other = (Constraint) obj;
+            return table.equals(other.table) && name.equals(other.name);
+        }
+    }
+}
@@ -1,55 +1,86 @@
 package com.zenplanner.sql;
 
-import com.google.common.base.Charsets;
-import com.google.common.io.Resources;
 
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.*;
-import java.sql.CallableStatement;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.Statement;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class DbComparator {
 
     private String currentTableName;
-    private final AtomicInteger rowCount = new AtomicInteger();
+    private final AtomicLong rowCount = new AtomicLong();
     private final AtomicInteger tableCount = new AtomicInteger();
     private final AtomicInteger currentTable = new AtomicInteger();
-    private final AtomicInteger currentRow = new AtomicInteger();
-    private final AtomicInteger modCount = new AtomicInteger();
-    private final AtomicInteger currentMod = new AtomicInteger();
+    private final AtomicLong currentRow = new AtomicLong();
+    private final AtomicLong modCount = new AtomicLong();
+    private final AtomicLong currentMod = new AtomicLong();
     private final Set<ActionListener> listeners = Collections.synchronizedSet(new HashSet<ActionListener>());
+    private final Map<String, HashSnapshot> snapshots = new ConcurrentHashMap<>();
+    private final Map<String, ChangeSource> tableSources = new ConcurrentHashMap<>();
+    private final Map<String, byte[]> pendingVersions = new ConcurrentHashMap<>();
+    private final Set<String> keyPasses = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private volatile SyncState state;
+    private volatile RowCounter counter;
+    private final SchemaCache schemaCache = new SchemaCache();
+    private volatile StatementCache statements = new StatementCache();
+    private final Map<String, Table> lcds = new ConcurrentHashMap<>();
+    private Map<String, Table> schemaSrc;
+    private Map<String, Table> schemaDst;
+    private Map<String, Table> syncableSrc;
+    private volatile String stateId;
+    private volatile SyncOptions options = new SyncOptions();
+    private volatile List<ChangeSource> changeSources;
+    private final SyncStats stats = new SyncStats();
+    private static final int maxPartitions = 64;
+    private static final int maxBucketDepth = 8;
 
     public enum ChangeType {
         INSERT, UPDATE, DELETE, NONE
     }
 
+    /**
+     * How a table is brought in sync
+     */
+    public enum Strategy {
+        /** Compare the hashes of every row, and copy only the rows that differ */
+        DIFF,
+        /** Delete the filtered rows from the destination, and copy every filtered row from the source */
+        RELOAD,
+        /** Compare only the rows that a ChangeSource reports as changed since the last run */
+        DELTA
+    }
+
     public DbComparator() {
 
     }
 
-    private void saveConstraints(Map<String, List<String>> constraints) {
-        Properties props = loadProps();
-        StringBuilder sb = new StringBuilder();
-        for(String tableName : constraints.keySet()) {
-            List<String> conNames = constraints.get(tableName);
-            for(String conName : conNames) {
-                if(sb.length() > 0) {
-                    sb.append(",");
-                }
-                sb.append(tableName + "." + conName);
-            }
-        }
-        props.put("Constraints", sb.toString());
-        saveProps(props);
+    /**
+     * @return The journal of the constraints disabled by a sync, next to the properties file
+     */
+    public ConstraintJournal getConstraintJournal() {
+        return new ConstraintJournal(new File(getPropFile().getParentFile(), "dbsync-constraints.journal"));
     }
 
+    /**
+     * Forgets the constraints left disabled by an earlier sync, once they have been enabled
+     */
     public void unloadConstraints() {
+        getConstraintJournal().delete();
         clearProp("Constraints");
     }
 
@@ -59,280 +90,931 @@ public class DbComparator {
         saveProps(props);
     }
 
+    /**
+     * @return The constraints that an earlier sync disabled and didn't enable again, by table, or null if there are none
+     */
     public Map<String, List<String>> loadConstraints() {
-        Properties props = loadProps();
-        String text = props.getProperty("Constraints");
-        if(text == null || text.trim().length() == 0) {
-            return null;
-        }
+        Map<String, List<String>> constraints = getConstraintJournal().readDisabled();
 
-        Map<String, List<String>> constraints = new HashMap<>();
-        String[] terms = text.split(",");
-        for(String term : terms) {
-            String[] parts = term.split("\\.");
-            if(parts.length != 2) {
-                throw new RuntimeException("Invalid properties file!");
-            }
-            String tableName = parts[0];
-            String conName = parts[1];
-            List<String> conNames = constraints.get(tableName);
-            if(conNames == null) {
-                conNames = new ArrayList<>();
-                constraints.put(tableName, conNames);
+        // Left by a version that saved every constraint to the properties file up front
+        String text = loadProps().getProperty("Constraints");
+        if (text != null && text.trim().length() > 0) {
+            for (String term : text.split(",")) {
+                String[] parts = term.split("\\.");
+                if (parts.length != 2) {
+                    throw new RuntimeException("Invalid properties file!");
+                }
+                List<String> conNames = constraints.get(parts[0]);
+                if (conNames == null) {
+                    conNames = new ArrayList<>();
+                    constraints.put(parts[0], conNames);
+                }
+                if (!conNames.contains(parts[1])) {
+                    conNames.add(parts[1]);
+                }
             }
-            conNames.add(conName);
         }
-        return constraints;
+        return constraints.isEmpty() ? null : constraints;
     }
 
     /**
      * Takes connections to two databases, compares deltas, and upserts appropriate data to get them in sync
      *
-     * @param scon The source connection
-     * @param dcon The destination connection
+     * @param cons A factory for source and destination connections
      * @param filters A value with which to filter partition data
      */
-    public void synchronize(Connection scon, Connection dcon, Map<String,List<Object>> filters, List<String> ignoreTables, boolean delete) {
-        try {
-            // Make sure to save constraint status
-            Map<String, List<String>> constraints = getConstraints(dcon);
-            saveConstraints(constraints);
+    public void synchronize(ConnectionFactory cons, Map<String,List<Object>> filters, List<String> ignoreTables, boolean delete) {
+        long started = System.currentTimeMillis();
+        Throwable error = null;
+        stats.getMetrics().setJmx(options.isJmxMetrics());
+        try (Connection scon = cons.openSource(); Connection dcon = cons.openDestination()) {
 
             // Get the intersection of the tables
-            Map<String, Table> srcTables = filterTables(getTables(scon));
-            Map<String, Table> dstTables = getTables(dcon);
+            Map<String, Table> srcSchema = getTables(scon, cons.getSourceUrl());
+            Map<String, Table> dstTables = getTables(dcon, cons.getDestUrl());
+            if (srcSchema != schemaSrc || dstTables != schemaDst) { // Not cached, or changed since the last run
+                schemaSrc = srcSchema;
+                schemaDst = dstTables;
+                syncableSrc = filterTables(srcSchema);
+                lcds.clear();
+            }
+            Map<String, Table> srcTables = syncableSrc;
             Set<String> tableNames = new HashSet<>();
             tableNames.addAll(srcTables.keySet());
             tableNames.retainAll(dstTables.keySet());
             tableNames.removeAll(ignoreTables);
 
+            stats.reset();
             tableCount.set(tableNames.size());
-            rowCount.set(countRows(scon, srcTables, tableNames, filters));
             currentTable.set(0);
             currentRow.set(0);
+            modCount.set(0);
+            currentMod.set(0);
 
-            String[] names = tableNames.toArray(new String[]{});
-            Arrays.sort(names);
+            // Count in the background, the progress bar total catches up as the counts arrive
+            try (RowCounter counter = new RowCounter(cons, filters, options, stats, rowCount);
+                 StatementCache statements = new StatementCache()) {
+                this.counter = counter;
+                this.statements = statements;
+                counter.start(scon, dcon, srcTables, tableNames);
 
-            // Synchronize them
-            try {
-                setConstraints(dcon, constraints, false);
-                for(String tableName : names) {
-                    setCurrentTableName(tableName);
-                    Table srcTable = srcTables.get(tableName);
-                    Table dstTable = dstTables.get(tableName);
-                    System.out.println("Comparing table: " + srcTable.getName());
-                    syncTable(scon, dcon, srcTable, dstTable, filters, delete);
-                    currentTable.incrementAndGet();
-                    fireProgress();
+                String[] names = tableNames.toArray(new String[]{});
+                Arrays.sort(names);
+                long start = System.nanoTime();
+                snapshots.clear();
+                tableSources.clear();
+                pendingVersions.clear();
+                keyPasses.clear();
+                state = new SyncState(options.getStateFile());
+                stateId = HashSnapshot.createId(cons.getDestUrl(), filters);
+                List<SyncTask> tasks = planTasks(scon, dcon, srcTables, dstTables, names, filters, delete, stateId);
+                stats.record(SyncStats.Phase.PLAN, names.length, start);
+
+                // Synchronize them, with each table's constraints disabled only while it is synced
+                ConstraintManager constraints = new ConstraintManager(dcon, tableNames, getConstraintJournal());
+                try {
+                    syncTables(cons, tasks, filters, delete, constraints);
+                } finally {
+                    constraints.restore(dcon);
+                    unloadConstraints();
                 }
-            } catch (Exception ex) {
-                throw ex;
-            } finally {
-                setConstraints(dcon, constraints, true);
-                unloadConstraints();
             }
         } catch (Exception ex) {
+            error = ex;
             throw new RuntimeException("Error comparing databases!", ex);
+        } finally {
+            if (options.getReportFile() != null) {
+                stats.getMetrics().writeReport(options.getReportFile(), stats, statements, modCount.get(), started,
+                        error);
+            }
         }
         currentTable.incrementAndGet();
         fireProgress();
     }
 
-    public void setConstraints(Connection con, Map<String,List<String>> tables, boolean enabled) {
-        for (String tableName : tables.keySet()) {
-            List<String> constraints = tables.get(tableName);
-            for(String constraintName : constraints) {
-                try (Statement stmt = con.createStatement()) {
-                    String state = enabled ? "CHECK" : "NOCHECK";
-                    String sql = String.format("ALTER TABLE [%s] %s CONSTRAINT [%s];", tableName, state, constraintName);
-                    //System.out.println(sql);
-                    stmt.executeUpdate(sql);
-                } catch (Exception ex) {
-                    throw new RuntimeException("Error setting constraints enabled: " + enabled, ex);
+    /**
+     * Turns the list of tables into a list of work for the sync workers. Tables with more than PartitionRows rows are
+     * split into key ranges, using boundary keys sampled from the source, so that several workers can share them.
+     * The biggest pieces of work are queued first so that they don't end up as a long tail. A table that a ChangeSource
+     * can track, with a version from an earlier run, is synced as a single delta task.
+     *
+     * @param scon The source connection
+     * @param dcon The destination connection
+     * @param srcTables The source tables
+     * @param dstTables The destination tables
+     * @param names The names of the tables to synchronize
+     * @param stateId Identifies the hash snapshots and versions of this destination and filters
+     * @return The tasks to run
+     * @throws Exception
+     */
+    private List<SyncTask> planTasks(Connection scon, Connection dcon, Map<String, Table> srcTables,
+                                     Map<String, Table> dstTables, String[] names, Map<String, List<Object>> filters,
+                                     boolean delete, String stateId) throws Exception {
+        List<SyncTask> tasks = new ArrayList<>();
+        Map<SyncTask, Long> sizes = new HashMap<>();
+        List<ChangeSource> sources = getChangeSources();
+        Map<String, byte[]> versions = new HashMap<>();
+        for (String tableName : names) {
+            Table lcd = lcds.get(tableName);
+            if (lcd == null) {
+                lcd = findLcd(srcTables.get(tableName), dstTables.get(tableName));
+                lcds.put(tableName, lcd);
+            }
+            lcd.resetRunState();
+            lcd.setOptions(options);
+            lcd.setStatementCache(statements);
+            lcd.setMetrics(stats.getMetrics());
+            Strategy strategy;
+            ChangeSource source = findChangeSource(scon, lcd, sources);
+            if (source != null) {
+                if (!versions.containsKey(source.getName())) {
+                    // Read before any rows, so that nothing committed after it is missed
+                    versions.put(source.getName(), source.readVersion(scon));
+                }
+                tableSources.put(tableName, source);
+                pendingVersions.put(tableName, versions.get(source.getName()));
+                strategy = planDelta(scon, dcon, lcd, filters, delete, stateId, source);
+            } else {
+                strategy = chooseStrategy(scon, dcon, lcd, filters, delete);
+            }
+            long rows = counter.getRows(tableName); // Exact if the strategy needed it, otherwise maybe an estimate
+            int parts = options.getThreads() > 1 && options.getPartitionRows() > 0
+                    ? Math.min(maxPartitions, (int) Math.ceil((double) rows / options.getPartitionRows())) : 1;
+            List<KeyRange> ranges = new ArrayList<>();
+            HashSnapshot snapshot = options.isHashSnapshot()
+                    ? loadSnapshot(dcon, lcd, filters, strategy, stateId) : null;
+            if (snapshot != null && snapshot.isLoaded()) {
+                List<Key> boundaries = snapshot.getBoundaries(); // Line the ranges up with the snapshot's parts
+                if (boundaries.isEmpty()) {
+                    ranges.add(null);
+                } else {
+                    ranges.addAll(KeyRange.split(boundaries));
+                }
+                System.out.println("Comparing " + tableName + " against its snapshot in " + ranges.size() + " parts");
+            } else if (parts > 1 && strategy != Strategy.DELTA
+                    && !(strategy == Strategy.RELOAD && options.isBulkInsert())) { // TABLOCK serializes the ranges
+                ranges.addAll(KeyRange.split(sampleBoundaries(scon, lcd, filters, null,
+                        (int) Math.ceil((double) rows / parts), maxPartitions - 1)));
+                System.out.println("Split " + tableName + " into " + ranges.size() + " ranges");
+            } else {
+                ranges.add(null);
+            }
+            if (snapshot != null) {
+                snapshot.setWriteParts(ranges.size());
+            }
+            AtomicInteger remaining = new AtomicInteger(ranges.size());
+            for (int i = 0; i < ranges.size(); i++) {
+                SyncTask task = new SyncTask(lcd, ranges.get(i), i, remaining, strategy);
+                tasks.add(task);
+                sizes.put(task, rows / ranges.size());
+            }
+        }
+        Collections.sort(tasks, new Comparator<SyncTask>() {
+            @Override
+            public int compare(SyncTask left, SyncTask right) {
+                return Long.compare(sizes.get(right), sizes.get(left));
+            }
+        });
+        return tasks;
+    }
+
+    /**
+     * @return The change sources that were set, or else the ones turned on in the options, in order of preference
+     */
+    private List<ChangeSource> getChangeSources() {
+        if (changeSources != null) {
+            return changeSources;
+        }
+        List<ChangeSource> sources = new ArrayList<>();
+        if (options.isChangeTracking()) {
+            sources.add(new ChangeTrackingSource());
+        }
+        if (options.isRowVersionDelta()) {
+            sources.add(new RowVersionChangeSource());
+        }
+        return sources;
+    }
+
+    /**
+     * @return The first change source that can track a table, or null if none can
+     * @throws Exception
+     */
+    private static ChangeSource findChangeSource(Connection scon, Table lcd, List<ChangeSource> sources)
+            throws Exception {
+        for (ChangeSource source : sources) {
+            if (source.canTrack(scon, lcd)) {
+                return source;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Decides how to sync a table that a change source can track. Without a usable version from an earlier run, the
+     * table is compared in full so that the next run has one. Otherwise it is a delta, and if the source can't see
+     * deletes, every KeyPassRuns runs the delta also reads every key to find rows that were deleted.
+     *
+     * @return The strategy to use
+     * @throws Exception
+     */
+    private Strategy planDelta(Connection scon, Connection dcon, Table lcd, Map<String, List<Object>> filters,
+                               boolean delete, String stateId, ChangeSource source) throws Exception {
+        byte[] since = state.getVersion(lcd.getName(), stateId, source.getName());
+        if (since == null) {
+            System.out.println(lcd.getName() + " has no " + source.getName() + " yet, comparing every row");
+            return chooseStrategy(scon, dcon, lcd, filters, delete);
+        }
+        if (!source.isValid(scon, lcd, since)) {
+            System.out.println(lcd.getName() + " changes since the last sync are gone, comparing every row");
+            return chooseStrategy(scon, dcon, lcd, filters, delete);
+        }
+        if (source.isMissingDeletes() && delete
+                && state.getDeltaRuns(lcd.getName(), stateId) + 1 >= options.getKeyPassRuns()) {
+            keyPasses.add(lcd.getName());
+        }
+        return Strategy.DELTA;
+    }
+
+    /**
+     * Records the source version of a tracked table once every part of it has been synchronized
+     */
+    private void saveState(SyncTask task) {
+        String tableName = task.getTable().getName();
+        byte[] version = pendingVersions.get(tableName);
+        if (version == null) {
+            return;
+        }
+        String source = tableSources.get(tableName).getName();
+        boolean delta = task.getStrategy() == Strategy.DELTA && !keyPasses.contains(tableName);
+        state.update(tableName, stateId, source, version, delta ? state.getDeltaRuns(tableName, stateId) + 1 : 0);
+    }
+
+    /**
+     * Finds the hash snapshot of a table, and decides whether this run can read it in place of the destination. A
+     * table that is about to be reloaded or synced as a delta loses its snapshot, since nothing is hashed to replace
+     * it.
+     *
+     * @return The snapshot to write after the table is synchronized, loaded if it can be read, or null if the table is
+     * not being compared in full
+     * @throws Exception
+     */
+    private HashSnapshot loadSnapshot(Connection dcon, Table lcd, Map<String, List<Object>> filters, Strategy strategy,
+                                      String snapshotId) throws Exception {
+        HashSnapshot snapshot = new HashSnapshot(options.getSnapshotDir(), lcd, snapshotId);
+        if (strategy != Strategy.DIFF) {
+            snapshot.delete();
+            return null;
+        }
+        snapshots.put(lcd.getName(), snapshot);
+        if (snapshot.load() && options.isSnapshotCheck()
+                && !checkDestination(dcon, lcd, filters).equals(snapshot.getDestCheck())) {
+            System.out.println(lcd.getName() + " has changed since its snapshot, comparing against the destination");
+            snapshot.unload();
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return The filtered row count and aggregate checksum of a table, as a string for the snapshot manifest
+     * @throws Exception
+     */
+    private static String checkDestination(Connection con, Table table, Map<String,List<Object>> filters)
+            throws Exception {
+        try (PreparedStatement stmt = con.prepareStatement(table.writeChecksumQuery(filters))) {
+            setParams(stmt, table, filters, null, 1);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? rs.getLong(1) + ":" + rs.getLong(2) : "";
+            }
+        }
+    }
+
+    /**
+     * Replaces a table's snapshot with the one written while it was synchronized, once every part is done
+     *
+     * @throws Exception
+     */
+    private void saveSnapshot(Connection dcon, Table lcd, Map<String, List<Object>> filters) throws Exception {
+        HashSnapshot snapshot = snapshots.get(lcd.getName());
+        if (snapshot == null) {
+            return;
+        }
+        snapshot.commit(options.isSnapshotCheck() ? checkDestination(dcon, lcd, filters) : "");
+    }
+
+    /**
+     * Decides whether a table should be compared row by row, or reloaded in full. An empty destination is always
+     * reloaded, since every row would be an insert anyway. Otherwise, if deletes are allowed, the fraction of changed
+     * rows is estimated from the difference in row counts and from a merge-join of the first ReloadSampleRows rows of
+     * each side, and the table is reloaded if the larger estimate reaches ReloadRatio.
+     *
+     * @param scon The source connection
+     * @param dcon The destination connection
+     * @param lcd The table to synchronize
+     * @return The strategy to use
+     * @throws Exception
+     */
+    private Strategy chooseStrategy(Connection scon, Connection dcon, Table lcd, Map<String, List<Object>> filters,
+                                    boolean delete) throws Exception {
+        if (options.getReloadRatio() > 1) {
+            return Strategy.DIFF;
+        }
+        long rows = counter.awaitRows(lcd.getName());
+        if (rows == 0) {
+            return Strategy.DIFF;
+        }
+        long dstRows = counter.countDestination(dcon, lcd);
+        if (dstRows == 0) {
+            System.out.println(lcd.getName() + " is empty in the destination, reloading");
+            return Strategy.RELOAD;
+        }
+        if (!delete) {
+            return Strategy.DIFF; // A reload would delete rows that the diff is not allowed to
+        }
+        double countRatio = (double) Math.abs(rows - dstRows) / Math.max(rows, dstRows);
+        double sampleRatio = sampleChanges(scon, dcon, lcd, filters);
+        double ratio = Math.max(countRatio, sampleRatio);
+        Strategy strategy = ratio >= options.getReloadRatio() ? Strategy.RELOAD : Strategy.DIFF;
+        System.out.println(String.format("%s has %d destination rows, %.0f%% estimated changed, using %s",
+                lcd.getName(), dstRows, ratio * 100, strategy));
+        return strategy;
+    }
+
+    /**
+     * Merge-joins the first rows of a table on each side, in key order, to estimate how much of it has changed. The
+     * join stops at the end of the shorter sample, unless that side has no more rows, in which case everything left
+     * on the other side counts as changed.
+     *
+     * @return The fraction of the sampled rows that differ
+     */
+    private double sampleChanges(Connection scon, Connection dcon, Table lcd, Map<String, List<Object>> filters)
+            throws Exception {
+        int sampleRows = options.getReloadSampleRows();
+        String sql = lcd.writeSampleQuery(filters, sampleRows);
+        List<HashedRowReader.Row> srcRows = readSample(scon, lcd, filters, sql);
+        List<HashedRowReader.Row> dstRows = readSample(dcon, lcd, filters, sql);
+        boolean srcDone = srcRows.size() < sampleRows;
+        boolean dstDone = dstRows.size() < sampleRows;
+        int si = 0;
+        int di = 0;
+        int compared = 0;
+        int changed = 0;
+        while ((si < srcRows.size() || srcDone) && (di < dstRows.size() || dstDone)
+                && (si < srcRows.size() || di < dstRows.size())) {
+            HashedRowReader.Row srow = si < srcRows.size() ? srcRows.get(si) : null;
+            HashedRowReader.Row drow = di < dstRows.size() ? dstRows.get(di) : null;
+            Key spk = srow == null ? null : srow.getKey();
+            Key dpk = drow == null ? null : drow.getKey();
+            ChangeType change = lcd.detectChange(spk, srow == null ? null : srow.getHash(),
+                    dpk, drow == null ? null : drow.getHash());
+            if (change != ChangeType.NONE) {
+                changed++;
+            }
+            compared++;
+            int val = lcd.getKeyComparator().compare(spk, dpk);
+            if (val <= 0) {
+                si++;
+            }
+            if (val >= 0) {
+                di++;
+            }
+        }
+        return compared == 0 ? 0 : (double) changed / compared;
+    }
+
+    private static List<HashedRowReader.Row> readSample(Connection con, Table lcd, Map<String, List<Object>> filters,
+                                                        String sql) throws Exception {
+        List<HashedRowReader.Row> rows = new ArrayList<>();
+        try (PreparedStatement stmt = con.prepareStatement(sql)) {
+            setParams(stmt, lcd, filters, null, 1);
+            try (ResultSet rs = stmt.executeQuery()) {
+                RowCursor cursor = new RowCursor(lcd, rs);
+                HashedRowReader.Row row = new HashedRowReader.Row();
+                while (cursor.read(row)) {
+                    rows.add(row);
+                    row = new HashedRowReader.Row(); // Keep every row, rather than reusing one
                 }
             }
+        } catch (Exception ex) {
+            throw new RuntimeException("Error sampling hashed rows: " + sql, ex);
         }
+        return rows;
     }
 
-    private static int countRows(Connection con, Map<String, Table> tables, Set<String> tableNames, Map<String,List<Object>> filters) throws Exception {
-        int count = 0;
-        for(String tableName : tableNames) {
-            Table table = tables.get(tableName);
-            String sql = table.writeCountQuery(filters);
-            try (PreparedStatement stmt = con.prepareStatement(sql)) {
-                if(table.hasAllColumns(filters.keySet())) {
-                    setFilterParams(stmt, filters);
+    /**
+     * Samples every Nth key of a table from the source, in T-SQL order
+     *
+     * @param scon The source connection
+     * @param table The table to sample
+     * @param range The range of keys to sample, or null for every key
+     * @param step The number of rows between boundaries
+     * @param max The most boundaries to return, since the step may come from a stale estimate
+     * @return The boundary keys, in ascending order
+     * @throws Exception
+     */
+    private static List<Key> sampleBoundaries(Connection scon, Table table, Map<String, List<Object>> filters,
+                                              KeyRange range, int step, int max) throws Exception {
+        List<Key> boundaries = new ArrayList<>();
+        try (PreparedStatement stmt = scon.prepareStatement(table.writeBoundaryQuery(filters, range))) {
+            int i = setParams(stmt, table, filters, range, 1);
+            stmt.setInt(i, Math.max(1, step));
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (boundaries.size() < max && rs.next()) {
+                    boundaries.add(table.getPk(rs));
                 }
-                if(stmt.execute()) {
-                    do {
-                        try (ResultSet rs = stmt.getResultSet()) {
-                            while (rs.next()) {
-                                int rowCount = rs.getInt(1);
-                                System.out.println(table.getName() + " has " + rowCount + " rows");
-                                count += rowCount;
+            }
+        }
+        return boundaries;
+    }
+
+    /**
+     * Runs the tasks using a pool of workers. Each worker owns its own source/destination connection pair and pulls
+     * tasks from a shared queue until it is empty. Since a constraint stays disabled until every table it involves is
+     * done, the order in which tables are synchronized does not matter.
+     *
+     * @param cons A factory for source and destination connections
+     * @param tasks The tasks to run
+     * @param constraints Disables the constraints of each table while it is synced
+     * @throws Exception The first error encountered by any worker
+     */
+    private void syncTables(ConnectionFactory cons, List<SyncTask> tasks, Map<String, List<Object>> filters,
+                            boolean delete, ConstraintManager constraints) throws Exception {
+        Queue<SyncTask> queue = new ConcurrentLinkedQueue<>(tasks);
+        AtomicBoolean failed = new AtomicBoolean();
+        int threads = Math.max(1, Math.min(options.getThreads(), tasks.size()));
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                workers.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        try (WorkerConnections con = new WorkerConnections(cons, statements)) {
+                            SyncTask task;
+                            while (!failed.get() && (task = queue.poll()) != null) {
+                                setCurrentTableName(task.getTable().getName());
+                                System.out.println("Comparing table: " + task);
+                                constraints.begin(con.getDest(), task.getTable().getName());
+                                syncTable(con, task, filters, delete);
+                                if (task.finish()) {
+                                    constraints.finish(con.getDest(), task.getTable().getName());
+                                    saveSnapshot(con.getDest(), task.getTable(), filters);
+                                    saveState(task);
+                                    if (task.getTable().getBatchSizer().isEnabled()) {
+                                        System.out.println(task.getTable().getName() + " batch sizes: " +
+                                                task.getTable().getBatchSizer());
+                                    }
+                                    currentTable.incrementAndGet();
+                                    fireProgress();
+                                }
                             }
+                        } catch (Exception ex) {
+                            failed.set(true); // Stop the other workers from picking up more tables
+                            throw ex;
                         }
-                    } while(stmt.getMoreResults());
+                        return null;
+                    }
+                }));
+            }
+
+            // Wait for everyone, then report the first failure
+            Exception error = null;
+            for (Future<?> worker : workers) {
+                try {
+                    worker.get();
+                } catch (ExecutionException ex) {
+                    if (error == null) {
+                        error = (Exception) ex.getCause();
+                    }
                 }
             }
+            if (error != null) {
+                throw error;
+            }
+        } finally {
+            pool.shutdownNow();
         }
-        return count;
     }
 
     /**
-     * Retrieves a map of Tables from the database schema
+     * Enables or disables constraints, with a single round trip for all of them
+     */
+    public void setConstraints(Connection con, Map<String,List<String>> tables, boolean enabled) {
+        ConstraintManager.setConstraints(con, tables, enabled);
+    }
+
+    /**
+     * Retrieves a map of Tables from the database schema, through the schema cache if it is turned on
      *
      * @param con The connection to use to query the DB for its schema
+     * @param url The URL of the database
      * @return A map of Tables from the database schema
      * @throws Exception
      */
-    private static Map<String, Table> getTables(Connection con) throws Exception {
-        Map<String, Table> tables = new HashMap<>();
-        try (CallableStatement stmt = con.prepareCall("{ call sp_DbSyncGetObjects }")) {
-            boolean hadResults = stmt.execute();
-            if (hadResults) {
-                try (ResultSet rs = stmt.getResultSet()) {
-                    while (rs.next()) {
-                        String tableName = rs.getString("table_name");
-                        if (!tables.containsKey(tableName)) {
-                            tables.put(tableName, new Table(tableName));
-                        }
-                        Table table = tables.get(tableName);
-
-                        Column col = new Column();
-                        String colName = rs.getString("column_name").toLowerCase();
-                        col.setColumnName(colName);
-                        col.setDataType(rs.getString("data_type"));
-                        col.setPrimaryKey(rs.getBoolean("primary_key"));
-                        table.put(colName, col);
-                    }
+    private Map<String, Table> getTables(Connection con, String url) throws Exception {
+        if (options.isSchemaCache()) {
+            return schemaCache.getTables(con, url, options.getSchemaCacheDir());
+        }
+        return SchemaCache.readTables(con);
+    }
+
+    /**
+     * Compares two tables, or one key range of two tables, and syncronizes the results
+     *
+     * @param con         The worker's connections
+     * @param task        The table and key range to synchronize
+     * @throws Exception
+     */
+    private void syncTable(WorkerConnections con, SyncTask task, Map<String, List<Object>> filters, boolean delete)
+            throws Exception {
+        Table lcd = task.getTable();
+        if (task.getStrategy() == Strategy.RELOAD) {
+            reloadRange(con, lcd, task.getRange(), filters, delete);
+            return;
+        }
+        ChangeSink sink = createSink(con, lcd, delete);
+        try {
+            long start = System.nanoTime();
+            long compared;
+            long skipped = lcd.getSkippedRows();
+            HashSnapshot snapshot = snapshots.get(lcd.getName());
+            if (task.getStrategy() == Strategy.DELTA) {
+                compared = syncChanges(con, lcd, filters, sink);
+            } else if (snapshot != null) {
+                compared = mergeRange(con, lcd, task.getRange(), filters, sink, snapshot, task.getPart());
+            } else if (options.isBucketCompare()) {
+                KeyRange range = task.getRange() == null ? new KeyRange(null, null) : task.getRange();
+                compared = compareBuckets(con, lcd, range, filters, sink, counter.getRows(lcd.getName()), 0);
+            } else {
+                compared = mergeRange(con, lcd, task.getRange(), filters, sink);
+            }
+            stats.record(SyncStats.Phase.COMPARE, compared, start);
+            sink.finish();
+            if (snapshot != null && task.getStrategy() != Strategy.DELTA) {
+                if (lcd.getSkippedRows() == skipped) {
+                    snapshot.commitPart(task.getPart());
+                } else {
+                    snapshot.discard();
                 }
             }
+        } catch (Exception ex) {
+            sink.cancel();
+            throw ex;
         }
+    }
 
-        for(Table table : tables.values()) {
-            if(table.size() == 0) {
-                throw new IllegalStateException("Table has no columns: " + table.getName());
+    /**
+     * Replaces a range of keys in the destination with a straight copy of the source, without hashing or comparing
+     * anything
+     *
+     * @param con   The worker's connections
+     * @param lcd   The table to reload
+     * @param range The range of keys to reload, or null for the whole table
+     * @throws Exception
+     */
+    private void reloadRange(WorkerConnections con, Table lcd, KeyRange range, Map<String, List<Object>> filters,
+                             boolean delete) throws Exception {
+        if (delete) {
+            String sql = lcd.writeDeleteQuery(filters, range);
+            try {
+                PreparedStatement stmt = lcd.prepare(con.getDest(), sql);
+                setParams(stmt, lcd, filters, range, 1);
+                SyncMetrics.Batch batch = stats.getMetrics().start(lcd.getName(), SyncStats.Phase.DELETE);
+                int count = stmt.executeUpdate();
+                batch.addRoundTrips(1);
+                batch.finish(count);
+                System.out.println("Deleted " + count + " rows from " + lcd.getName() + " before reloading");
+            } catch (Exception ex) {
+                throw new RuntimeException("Error deleting rows: " + sql, ex);
+            }
+        }
+        String sql = lcd.writeSelectQuery(filters, range);
+        long start = System.nanoTime();
+        try {
+            PreparedStatement stmt = lcd.prepare(con.getSource(), sql);
+            setParams(stmt, lcd, filters, range, 1);
+            stats.getMetrics().get(lcd.getName(), SyncStats.Phase.RELOAD).addRoundTrips(1);
+            try (ResultSet rs = stmt.executeQuery()) {
+                long count = lcd.reloadRows(rs, con.getDest(), currentMod);
+                lcd.commit(con.getDest());
+                stats.record(SyncStats.Phase.RELOAD, count, start);
+                modCount.addAndGet(count);
+                currentRow.addAndGet(count);
             }
+        } catch (Exception ex) {
+            throw new RuntimeException("Error reloading rows: " + sql, ex);
         }
+    }
 
-        return tables;
+    /**
+     * Runs the row level merge-join over a range of keys, and sends the changes to a sink
+     *
+     * @param con   The worker's connections
+     * @param lcd   The table to compare
+     * @param range The range of keys to compare, or null for the whole table
+     * @param sink  Receives the changes
+     * @return The number of rows compared
+     * @throws Exception
+     */
+    private long mergeRange(WorkerConnections con, Table lcd, KeyRange range, Map<String, List<Object>> filters,
+                            ChangeSink sink) throws Exception {
+        return mergeRange(con, lcd, range, filters, sink, null, 0);
     }
 
-    private static Map<String, List<String>> getConstraints(Connection con) throws Exception {
-        Map<String, List<String>> tables = new HashMap<>();
-        try (Statement stmt = con.createStatement()) {
-            String sql = Resources.toString(Resources.getResource("GetConstraints.sql"), Charsets.UTF_8);
-            try (ResultSet rs = stmt.executeQuery(sql)) {
-                while (rs.next()) {
-                    String tableName = rs.getString("table_name");
-                    if (!tables.containsKey(tableName)) {
-                        tables.put(tableName, new ArrayList<>());
+    /**
+     * Runs the row level merge-join over a range of keys. With a snapshot, the source rows are written to a pending part
+     * as they go by, which syncTable() keeps once the changes have been applied, and if the snapshot was loaded it is
+     * read in place of the destination.
+     *
+     * @param snapshot The table's hash snapshot, or null
+     * @param part The index of the range among the table's ranges
+     * @return The number of rows compared
+     * @throws Exception
+     */
+    private long mergeRange(WorkerConnections con, Table lcd, KeyRange range, Map<String, List<Object>> filters,
+                            ChangeSink sink, HashSnapshot snapshot, int part) throws Exception {
+        String sql = lcd.writeHashedQuery(filters, range);
+        boolean readSnapshot = snapshot != null && snapshot.isLoaded();
+        PreparedStatement stmt = lcd.prepare(con.getSource(), sql);
+        PreparedStatement dtmt = readSnapshot ? null : lcd.prepare(con.getDest(), sql);
+        // Set filter and range parameters
+        setParams(stmt, lcd, filters, range, 1);
+        if (dtmt != null) {
+            setParams(dtmt, lcd, filters, range, 1);
+        }
+
+        // Run both queries at once, each on its own thread
+        SyncMetrics.Batch batch = stats.getMetrics().start(lcd.getName(), SyncStats.Phase.COMPARE);
+        batch.addRoundTrips(readSnapshot ? 1 : 2);
+        int prefetch = options.getPrefetchRows();
+        try (HashedRowReader src = new HashedRowReader(lcd, stmt, prefetch);
+             RowSource dst = readSnapshot ? snapshot.open(part) : new HashedRowReader(lcd, dtmt, prefetch);
+             HashSnapshot.Writer writer = snapshot == null ? null : snapshot.createWriter(part)) {
+            KeyComparator cmp = lcd.getKeyComparator();
+            long compared = 0;
+            HashedRowReader.Row srow = src.next();
+            HashedRowReader.Row drow = dst.next();
+            while (srow != null || drow != null) {
+                Key spk = srow == null ? null : srow.getKey();
+                Key dpk = drow == null ? null : drow.getKey();
+                ChangeType change = lcd.detectChange(spk, srow == null ? null : srow.getHash(),
+                        dpk, drow == null ? null : drow.getHash());
+                sink.add(change, change == ChangeType.DELETE ? dpk : spk);
+
+                // Advance one cursor, or the other, or both to keep the PKs in sync
+                int val = cmp.compare(spk, dpk);
+                if (val <= 0) {
+                    if (writer != null) {
+                        writer.write(spk, srow.getHash());
                     }
-                    List<String> constraints = tables.get(tableName);
-                    String constraintName = rs.getString("constraint_name");
-                    constraints.add(constraintName);
+                    srow = src.next();
+                }
+                if (val >= 0) {
+                    drow = dst.next();
                 }
+                currentRow.incrementAndGet();
+                compared++;
             }
+            batch.finish(compared);
+            return compared;
+        } catch (Exception ex) {
+            throw new RuntimeException("Error selecting hashed rows: " + sql, ex);
         }
-        return tables;
     }
 
-    private static void setFilterParams(PreparedStatement stmt, Map<String,List<Object>> filters) throws Exception {
-        int i = 1;
-        for(List<Object> vals : filters.values()) {
-            for(Object val : vals) {
-                stmt.setObject(i++, val);
+    /**
+     * Syncs only the rows that the table's change source reports as changed since the last run. Deleted keys go
+     * straight to the sink, and the hashes of the other keys are looked up on both sides a batch at a time. On a key
+     * pass, the keys of both sides are also merge-joined without hashes to find deleted rows.
+     *
+     * @return The number of rows compared
+     * @throws Exception
+     */
+    private long syncChanges(WorkerConnections con, Table lcd, Map<String, List<Object>> filters, ChangeSink sink)
+            throws Exception {
+        ChangeSource source = tableSources.get(lcd.getName());
+        byte[] since = state.getVersion(lcd.getName(), stateId, source.getName());
+        long compared = 0;
+        try (ChangeSet keys = new ChangeSet(lcd, options.getChangeMemoryMb() * 1024L * 1024L)) {
+            AtomicLong deletes = new AtomicLong();
+            source.readChanges(con.getSource(), lcd, filters, since, new ChangeSource.Listener() {
+                @Override
+                public void changed(ChangeType change, Key key) throws Exception {
+                    if (change == ChangeType.DELETE) {
+                        sink.add(change, key);
+                        deletes.incrementAndGet();
+                    } else {
+                        keys.add(key);
+                    }
+                }
+            });
+            System.out.println((keys.getCount() + deletes.get()) + " rows of " + lcd.getName()
+                    + " have changed since the last sync");
+
+            BatchSizer sizer = lcd.getBatchSizer();
+            List<Key> batch = new ArrayList<>();
+            int size = sizer.getSize(SyncStats.Phase.COMPARE);
+            long start = System.nanoTime();
+            for (Key key : keys) {
+                batch.add(key);
+                if (batch.size() >= size) {
+                    compared += compareKeys(con, lcd, batch, sink);
+                    sizer.record(SyncStats.Phase.COMPARE, size, batch.size(), start);
+                    batch.clear();
+                    size = sizer.getSize(SyncStats.Phase.COMPARE);
+                    start = System.nanoTime();
+                }
             }
+            compared += compareKeys(con, lcd, batch, sink);
+        }
+        if (keyPasses.contains(lcd.getName())) {
+            compared += findDeletes(con, lcd, null, filters, sink);
         }
+        return compared;
     }
 
     /**
-     * Compares two tables and syncronizes the results
+     * Looks up the hashes of a batch of changed keys on both sides. Rows that are gone from the source are left for the
+     * key pass.
      *
-     * @param scon        The source connection
-     * @param dcon        The destination connection
-     * @param srcTable    The source table
-     * @param dstTable    The destination table
+     * @return The number of rows compared
      * @throws Exception
      */
-    private void syncTable(Connection scon, Connection dcon, Table srcTable, Table dstTable,
-                                  Map<String, List<Object>> filters, boolean delete) throws Exception {
-        Table lcd = findLcd(srcTable, dstTable);
-        String sql = lcd.writeHashedQuery(filters);
-        //int i = 0; // TODO: Threading and progress indicator
-        try (PreparedStatement stmt = scon.prepareStatement(sql); PreparedStatement dtmt = dcon.prepareStatement(sql)) {
-            // Set filter parameters
-            if(lcd.hasAllColumns(filters.keySet())) {
-                setFilterParams(stmt, filters);
-                setFilterParams(dtmt, filters);
-            }
-
-            // Make changes
-            try (ResultSet srs = stmt.executeQuery(); ResultSet drs = dtmt.executeQuery()) {
-                srs.next();
-                drs.next();
-                Map<ChangeType, Set<Key>> changes = new HashMap<>();
-                changes.put(ChangeType.INSERT, new HashSet<>());
-                changes.put(ChangeType.UPDATE, new HashSet<>());
-                changes.put(ChangeType.DELETE, new HashSet<>());
-                while (srs.getRow() > 0 || drs.getRow() > 0) {
-                    ChangeType change = lcd.detectChange(srs, drs);
-
-                    Key key = lcd.getPk(srs, drs);
-                    Set<Key> changeset = changes.get(change);
-                    if (changeset != null) {
-                        changeset.add(key);
-                    }
-                    advance(srcTable, dstTable, srs, drs);
-                    currentRow.incrementAndGet();
-                }
+    private int compareKeys(WorkerConnections con, Table lcd, List<Key> batch, ChangeSink sink) throws Exception {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        SyncMetrics.Batch metric = stats.getMetrics().start(lcd.getName(), SyncStats.Phase.COMPARE);
+        Map<Key, byte[]> srcHashes = lcd.readHashes(con.getSource(), batch);
+        Map<Key, byte[]> dstHashes = lcd.readHashes(con.getDest(), batch);
+        metric.addRoundTrips(2);
+        metric.finish(batch.size());
+        for (Key key : batch) {
+            byte[] srcHash = srcHashes.get(key);
+            if (srcHash == null) {
+                continue;
+            }
+            byte[] dstHash = dstHashes.get(key);
+            if (dstHash == null) {
+                sink.add(ChangeType.INSERT, key);
+            } else if (!Arrays.equals(srcHash, dstHash)) {
+                sink.add(ChangeType.UPDATE, key);
+            }
+        }
+        currentRow.addAndGet(batch.size());
+        return batch.size();
+    }
 
-                // Update stats
-                currentMod.set(0);
-                modCount.set(0);
-                if(delete) {
-                    modCount.addAndGet(changes.get(ChangeType.DELETE).size());
+    /**
+     * Merge-joins the keys of a range on both sides, without hashing any rows, and sends only the deletes to the sink.
+     * Inserts are left to the delta, which sees every row added since the last run.
+     *
+     * @return The number of rows compared
+     * @throws Exception
+     */
+    private long findDeletes(WorkerConnections con, Table lcd, KeyRange range, Map<String, List<Object>> filters,
+                            ChangeSink sink) throws Exception {
+        RowHashStrategy keyOnly = new KeyOnlyRowHash();
+        String sql = lcd.writeHashedQuery(filters, range, keyOnly);
+        PreparedStatement stmt = lcd.prepare(con.getSource(), sql);
+        PreparedStatement dtmt = lcd.prepare(con.getDest(), sql);
+        setParams(stmt, lcd, filters, range, 1);
+        setParams(dtmt, lcd, filters, range, 1);
+        SyncMetrics.Batch batch = stats.getMetrics().start(lcd.getName(), SyncStats.Phase.COMPARE);
+        batch.addRoundTrips(2);
+        int prefetch = options.getPrefetchRows();
+        try (HashedRowReader src = new HashedRowReader(lcd, stmt, prefetch, keyOnly);
+             HashedRowReader dst = new HashedRowReader(lcd, dtmt, prefetch, keyOnly)) {
+            KeyComparator cmp = lcd.getKeyComparator();
+            long compared = 0;
+            HashedRowReader.Row srow = src.next();
+            HashedRowReader.Row drow = dst.next();
+            while (srow != null || drow != null) {
+                Key spk = srow == null ? null : srow.getKey();
+                Key dpk = drow == null ? null : drow.getKey();
+                int val = cmp.compare(spk, dpk);
+                if (val > 0) {
+                    sink.add(ChangeType.DELETE, dpk);
                 }
-                modCount.addAndGet(changes.get(ChangeType.INSERT).size());
-                modCount.addAndGet(changes.get(ChangeType.UPDATE).size());
-
-                // Sync
-                if(delete) {
-                    lcd.deleteRows(dcon, changes.get(ChangeType.DELETE), currentMod);
+                if (val <= 0) {
+                    srow = src.next();
                 }
-                lcd.insertRows(scon, dcon, changes.get(ChangeType.INSERT), currentMod);
-                lcd.updateRows(scon, dcon, changes.get(ChangeType.UPDATE), currentMod);
-            } catch (Exception ex) {
-                throw new RuntimeException("Error selecting hashed rows: " + sql, ex);
+                if (val >= 0) {
+                    drow = dst.next();
+                }
+                compared++;
             }
+            batch.finish(compared);
+            System.out.println("Read every key of " + lcd.getName() + " to find deleted rows");
+            return compared;
+        } catch (Exception ex) {
+            throw new RuntimeException("Error selecting keys: " + sql, ex);
         }
     }
 
     /**
-     * Takes two RecordSets, and advances one cursor, or the other, or both to keep the PKs in sync
+     * Compares a range of keys by splitting it into buckets, and asking each server for an aggregate hash of every
+     * bucket. Buckets that match are skipped, buckets that don't are split again, until they are small enough to hand
+     * to the row level merge-join. For tables that are mostly in sync, this sends a few aggregates over the wire
+     * instead of every row's key and hash.
      *
-     * @param srcTable The source table
-     * @param dstTable The destination table
-     * @param srs      The source RecordSet
-     * @param drs      The destination RecordSet
+     * @param con   The worker's connections
+     * @param lcd   The table to compare
+     * @param range The range of keys to compare
+     * @param sink  Receives the changes
+     * @param rows  The approximate number of source rows in the range
+     * @param depth How many times the range has already been split
+     * @return The number of rows compared, including the rows of buckets that matched
      * @throws Exception
      */
-    private static void advance(Table srcTable, Table dstTable, ResultSet srs, ResultSet drs) throws Exception {
-        Key spk = srcTable.getPk(srs);
-        Key dpk = dstTable.getPk(drs);
-        int val = Key.compare(spk, dpk);
-        if (val < 0) {
-            srs.next();
-            return;
+    private long compareBuckets(WorkerConnections con, Table lcd, KeyRange range, Map<String, List<Object>> filters,
+                                ChangeSink sink, long rows, int depth) throws Exception {
+        int bucketCount = options.getBucketCount();
+        int maxBoundaries = Math.min(bucketCount, lcd.getBoundaryLimit(filters, range));
+        List<Key> boundaries = new ArrayList<>();
+        if (rows > options.getBucketLeafRows() && depth < maxBucketDepth && maxBoundaries > 0) {
+            int step = (int) Math.max(1, Math.ceil((double) rows / bucketCount)); // rows may be a stale estimate
+            boundaries = sampleBoundaries(con.getSource(), lcd, filters, range, step, maxBoundaries);
         }
-        if (val > 0) {
-            drs.next();
-            return;
+        if (boundaries.isEmpty()) {
+            return mergeRange(con, lcd, range, filters, sink);
+        }
+
+        Map<Integer, BucketHash> srcHashes = getBucketHashes(con.getSource(), lcd, filters, range, boundaries);
+        Map<Integer, BucketHash> dstHashes = getBucketHashes(con.getDest(), lcd, filters, range, boundaries);
+        List<KeyRange> buckets = range.subdivide(boundaries);
+        long compared = 0;
+        for (int i = 0; i < buckets.size(); i++) {
+            BucketHash src = srcHashes.get(i);
+            BucketHash dst = dstHashes.get(i);
+            long srcRows = src == null ? 0 : src.rows;
+            long dstRows = dst == null ? 0 : dst.rows;
+            if (srcRows == dstRows && (srcRows == 0 || src.equals(dst))) {
+                currentRow.addAndGet(srcRows);
+                compared += srcRows;
+                continue;
+            }
+            if (srcRows == 0 || dstRows == 0) {
+                compared += mergeRange(con, lcd, buckets.get(i), filters, sink); // Nothing to gain from splitting further
+                continue;
+            }
+            compared += compareBuckets(con, lcd, buckets.get(i), filters, sink, srcRows, depth + 1);
+        }
+        return compared;
+    }
+
+    /**
+     * Queries the aggregate hash of each bucket of keys within a range
+     *
+     * @return A map from bucket index to hash, with no entries for empty buckets
+     */
+    private static Map<Integer, BucketHash> getBucketHashes(Connection con, Table lcd, Map<String, List<Object>> filters,
+                                                            KeyRange range, List<Key> boundaries) throws Exception {
+        Map<Integer, BucketHash> hashes = new HashMap<>();
+        String sql = lcd.writeBucketQuery(filters, range, boundaries.size());
+        try {
+            PreparedStatement stmt = lcd.prepare(con, sql);
+            int i = 1;
+            for (Object val : lcd.getBoundaryParams(boundaries)) {
+                stmt.setObject(i++, val);
+            }
+            setParams(stmt, lcd, filters, range, i);
+            lcd.getMetrics().get(lcd.getName(), SyncStats.Phase.COMPARE).addRoundTrips(1);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    hashes.put(rs.getInt("Bucket"),
+                            new BucketHash(rs.getLong("Rows"), rs.getLong("Hash1"), rs.getLong("Hash2")));
+                }
+            }
+        } catch (Exception ex) {
+            throw new RuntimeException("Error selecting bucket hashes: " + sql, ex);
+        }
+        return hashes;
+    }
+
+    /**
+     * Sets the filter parameters, followed by the range parameters
+     *
+     * @return The index of the next parameter
+     */
+    private static int setParams(PreparedStatement stmt, Table lcd, Map<String, List<Object>> filters, KeyRange range,
+                                 int i) throws Exception {
+        i = lcd.setFilterParams(stmt, filters, i);
+        for (Object val : lcd.getRangeParams(range)) {
+            stmt.setObject(i++, val);
         }
-        srs.next();
-        drs.next();
+        return i;
+    }
+
+    /**
+     * Creates the sink that will apply the changes found in a table, either streaming them to a separate apply stage
+     * or collecting them until the comparison is complete
+     */
+    private ChangeSink createSink(WorkerConnections con, Table lcd, boolean delete) throws Exception {
+        if (options.isPipeline()) {
+            return new ChangePipeline(lcd, con.getApplySource(), con.getApplyDest(), delete,
+                    options.getPipelineDepth(), modCount, currentMod);
+        }
+        return new ChangeCollector(lcd, con.getSource(), con.getDest(), delete, modCount, currentMod);
     }
 
     /**
@@ -357,6 +1039,7 @@ public class DbComparator {
         if(table.size() == 0) {
             throw new IllegalStateException("Table has no columns: " + table.getName());
         }
+        table.setRowVersion(srcTable.getRowVersion());
 
         return table;
     }
@@ -415,19 +1098,49 @@ public class DbComparator {
         }
     }
 
-    public int getCurrentMod() {
+    public SyncOptions getOptions() {
+        return options;
+    }
+
+    public void setOptions(SyncOptions options) {
+        this.options = options;
+    }
+
+    /**
+     * @param changeSources The change sources to try for each table, in place of the ones turned on in the options, or
+     * null to go back to the options
+     */
+    public void setChangeSources(List<ChangeSource> changeSources) {
+        this.changeSources = changeSources;
+    }
+
+    /**
+     * @return The prepared statements of the last synchronization, with how often they were reused
+     */
+    public StatementCache getStatementCache() {
+        return statements;
+    }
+
+    /**
+     * @return The rows and time spent in each phase of the last synchronization
+     */
+    public SyncStats getStats() {
+        return stats;
+    }
+
+    public long getCurrentMod() {
         return currentMod.get();
     }
 
-    public int getModCount() {
+    public long getModCount() {
         return modCount.get();
     }
 
-    public int getCurrentRow() {
+    public long getCurrentRow() {
         return currentRow.get();
     }
 
-    public int getRowCount() {
+    public long getRowCount() {
         return rowCount.get();
     }
 
@@ -458,4 +1171,32 @@ public class DbComparator {
         listeners.add(val);
     }
 
+    /**
+     * The row count and aggregate hash of one bucket of keys
+     */
+    private static class BucketHash {
+        private final long rows;
+        private final long hash1;
+        private final long hash2;
+
+        private BucketHash(long rows, long hash1, long hash2) {
+            this.rows = rows;
+            this.hash1 = hash1;
+            this.hash2 = hash2;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(rows, hash1, hash2);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof BucketHash)) {
+                return false;
+            }
+            BucketHash other = (BucketHash) obj;
+            return rows == other.rows && hash1 == other.hash1 && hash2 == other.hash2;
+        }
+    }
 }
@@ -74,10 +74,14 @@ public class FormMain extends JFrame {
         Timer timer = new Timer(100, new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                pbMain.setMaximum(comp.getRowCount());
-                pbMain.setValue(comp.getCurrentRow());
-                pbRecord.setMaximum(comp.getModCount());
-                pbRecord.setValue(comp.getCurrentMod());
+                long rows = comp.getRowCount();
+                long scale = rows / Integer.MAX_VALUE + 1; // The bar only takes ints
+                pbMain.setMaximum((int) (rows / scale));
+                pbMain.setValue((int) Math.min(comp.getCurrentRow() / scale, Integer.MAX_VALUE));
+                long mods = comp.getModCount();
+                long modScale = mods / Integer.MAX_VALUE + 1;
+                pbRecord.setMaximum((int) (mods / modScale));
+                pbRecord.setValue((int) Math.min(comp.getCurrentMod() / modScale, Integer.MAX_VALUE));
                 lblCurrentTable.setText(comp.getCurrentTableName());
                 lblCurrentRow.setText("" + comp.getCurrentRow() + " / " + comp.getRowCount());
             }
@@ -143,12 +147,8 @@ public class FormMain extends JFrame {
         String srcCon = String.format(conTemplate, tbSrcServer.getText(), tbSrcDb.getText(),
                 tbSrcUsername.getText(), tbSrcPassword.getText());
         String dstCon = getDstCon();
-        try (Connection scon = DriverManager.getConnection(srcCon)) {
-            scon.setTransactionIsolation(Connection.TRANSACTION_READ_UNCOMMITTED);
-            try (Connection dcon = DriverManager.getConnection(dstCon)) {
-                comp.synchronize(scon, dcon, filters, ignoreTables, delete);
-            }
-        }
+        comp.setOptions(SyncOptions.fromProperties(comp.loadProps()));
+        comp.synchronize(new ConnectionFactory(srcCon, dstCon), filters, ignoreTables, delete);
     }
 
     private void loadProps() {
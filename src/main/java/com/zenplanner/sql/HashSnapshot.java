@@ -0,0 +1,359 @@
+package com.zenplanner.sql;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * The (key, hash) of every row that a table's last successful sync left in the destination, so that the next run can
+ * merge-join the source against this file instead of querying the destination. Rows are stored in primary key order,
+ * one part per sync task, and parts are read through a memory map. A properties file next to the data holds the part
+ * offsets, the row hash the snapshot was taken with, and a count and checksum of the destination for spotting changes
+ * made behind dbsync's back.
+ *
+ * Each record is the length of the rest of the record, the key packed with a KeyCodec, the length of the hash (-1 for
+ * null), and the hash. A part is written to a pending file during the merge-join, and only becomes part of the next
+ * snapshot once the changes found in it have been applied and committed.
+ */
+public class HashSnapshot {
+    private static final int window = 256 * 1024 * 1024;
+
+    private final Table table;
+    private final KeyCodec codec;
+    private final File dataFile;
+    private final File manifestFile;
+    private final String rowHash;
+    private long[] offsets;
+    private String destCheck;
+    private int writeParts = 1;
+    private volatile boolean discarded;
+
+    /**
+     * @param dir The directory that holds the snapshots
+     * @param table The table
+     * @param id Identifies the destination and filters, from createId()
+     */
+    public HashSnapshot(File dir, Table table, String id) {
+        this.table = table;
+        this.codec = table.getKeyCodec();
+        this.dataFile = new File(dir, table.getName() + "-" + id + ".snap");
+        this.manifestFile = new File(dir, table.getName() + "-" + id + ".properties");
+        this.rowHash = table.getOptions().getRowHash(table.getName()).name();
+    }
+
+    /**
+     * @param destUrl The destination the snapshot describes
+     * @param filters The filters the snapshot was taken with
+     * @return A short id that is the same for the same destination and filters
+     */
+    public static String createId(String destUrl, Map<String, List<Object>> filters) {
+        String text = destUrl + "\n" + new TreeMap<>(filters);
+        return Hashing.md5().hashString(text, Charsets.UTF_8).toString().substring(0, 16);
+    }
+
+    /**
+     * Reads the manifest of the last snapshot
+     *
+     * @return True if there is a complete snapshot, taken with the same row hash
+     */
+    public boolean load() {
+        offsets = null;
+        if (!manifestFile.exists() || !dataFile.exists()) {
+            return false;
+        }
+        Properties props = new Properties();
+        try (InputStream in = new FileInputStream(manifestFile)) {
+            props.load(in);
+        } catch (IOException ex) {
+            throw new RuntimeException("Error reading snapshot manifest " + manifestFile.getAbsolutePath(), ex);
+        }
+        if (!rowHash.equals(props.getProperty("RowHash"))) {
+            System.out.println("Snapshot of " + table.getName() + " was taken with another row hash, ignoring it");
+            return false;
+        }
+        int parts = Integer.parseInt(props.getProperty("Parts"));
+        long[] vals = new long[parts + 1];
+        for (int i = 0; i <= parts; i++) {
+            vals[i] = Long.parseLong(props.getProperty("Offset." + i));
+        }
+        if (vals[parts] != dataFile.length()) {
+            System.out.println("Snapshot of " + table.getName() + " is incomplete, ignoring it");
+            return false;
+        }
+        offsets = vals;
+        destCheck = props.getProperty("DestCheck", "");
+        return true;
+    }
+
+    /**
+     * @return True if a snapshot was loaded, and can be read in place of the destination
+     */
+    public boolean isLoaded() {
+        return offsets != null;
+    }
+
+    /**
+     * Stops this run from reading the snapshot, which will be replaced when the table has been synchronized
+     */
+    public void unload() {
+        offsets = null;
+    }
+
+    /**
+     * @return The destination count and checksum recorded when the snapshot was taken
+     */
+    public String getDestCheck() {
+        return destCheck;
+    }
+
+    /**
+     * @return The number of parts in the loaded snapshot
+     */
+    public int getParts() {
+        return offsets == null ? 0 : offsets.length - 1;
+    }
+
+    /**
+     * @return The first key of every part but the first, which split the key space the same way the snapshot does
+     */
+    public List<Key> getBoundaries() throws IOException {
+        List<Key> boundaries = new ArrayList<>();
+        try (RandomAccessFile raf = new RandomAccessFile(dataFile, "r")) {
+            for (int i = 1; i < getParts(); i++) {
+                raf.seek(offsets[i]);
+                byte[] bytes = new byte[raf.readInt()];
+                raf.readFully(bytes);
+                boundaries.add(codec.decode(ByteBuffer.wrap(bytes)));
+            }
+        }
+        return boundaries;
+    }
+
+    /**
+     * @param part The index of the part
+     * @return The rows of one part of the loaded snapshot
+     */
+    public RowSource open(int part) throws IOException {
+        if (part >= getParts()) {
+            return new Reader(null, 0, 0); // Nothing was there last time
+        }
+        return new Reader(new RandomAccessFile(dataFile, "r"), offsets[part], offsets[part + 1]);
+    }
+
+    /**
+     * @param parts The number of parts the next snapshot will be written in
+     */
+    public void setWriteParts(int parts) {
+        this.writeParts = parts;
+    }
+
+    /**
+     * @param part The index of the part, in key order
+     * @return A writer for the pending file of one part of the next snapshot, see commitPart()
+     */
+    public Writer createWriter(int part) throws IOException {
+        getPartFile(part).delete();
+        return new Writer(getPendingFile(part));
+    }
+
+    /**
+     * Keeps the rows written to a part, once the changes found in it have been applied and committed
+     *
+     * @param part The index of the part
+     */
+    public void commitPart(int part) throws IOException {
+        Files.move(getPendingFile(part).toPath(), getPartFile(part).toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Stops the snapshot written in this run from being saved, because some of the rows it recorded were not applied
+     */
+    public void discard() {
+        discarded = true;
+    }
+
+    private File getPartFile(int part) {
+        return new File(dataFile.getPath() + "." + part + ".part");
+    }
+
+    private File getPendingFile(int part) {
+        return new File(dataFile.getPath() + "." + part + ".pending");
+    }
+
+    /**
+     * Replaces the snapshot with the parts written in this run, once every part has been written
+     *
+     * @param destCheck The destination count and checksum after the sync, or an empty string
+     */
+    public void commit(String destCheck) throws IOException {
+        for (int i = 0; i < writeParts && !discarded; i++) {
+            discarded = !getPartFile(i).exists();
+        }
+        if (discarded) {
+            System.out.println("Some rows of " + table.getName() + " were not applied, dropping its snapshot");
+            for (int i = 0; i < writeParts; i++) {
+                getPartFile(i).delete();
+                getPendingFile(i).delete();
+            }
+            delete();
+            return;
+        }
+        File tmp = new File(dataFile.getPath() + ".tmp");
+        List<Long> vals = new ArrayList<>();
+        long offset = 0;
+        try (FileChannel out = new FileOutputStream(tmp).getChannel()) {
+            for (int i = 0; i < writeParts; i++) {
+                File partFile = getPartFile(i);
+                long size = partFile.length();
+                if (size == 0) {
+                    partFile.delete(); // An empty part has no first key to split on
+                    continue;
+                }
+                vals.add(offset);
+                try (FileChannel in = new FileInputStream(partFile).getChannel()) {
+                    long pos = 0;
+                    while (pos < size) {
+                        pos += in.transferTo(pos, size - pos, out);
+                    }
+                }
+                offset += size;
+                partFile.delete();
+            }
+        }
+        vals.add(offset);
+
+        Properties props = new Properties();
+        props.setProperty("RowHash", rowHash);
+        props.setProperty("Parts", Integer.toString(vals.size() - 1));
+        for (int i = 0; i < vals.size(); i++) {
+            props.setProperty("Offset." + i, Long.toString(vals.get(i)));
+        }
+        props.setProperty("DestCheck", destCheck);
+        manifestFile.delete(); // Without a manifest a half replaced snapshot is never read
+        Files.move(tmp.toPath(), dataFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        try (OutputStream out = new FileOutputStream(manifestFile)) {
+            props.store(out, "dbsync snapshot of " + table.getName());
+        }
+        System.out.println("Saved snapshot of " + table.getName() + " to " + dataFile.getAbsolutePath());
+    }
+
+    /**
+     * Removes the snapshot, for tables that were changed without a comparison
+     */
+    public void delete() {
+        offsets = null;
+        manifestFile.delete();
+        dataFile.delete();
+    }
+
+    /**
+     * Appends the rows of one part, which must arrive in key order
+     */
+    public class Writer implements AutoCloseable {
+        private final OutputStream out;
+        private ByteBuffer buf = ByteBuffer.allocate(256);
+
+        private Writer(File file) throws IOException {
+            file.getParentFile().mkdirs();
+            this.out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+        }
+
+        public void write(Key key, byte[] hash) throws IOException {
+            int hashSize = hash == null ? 0 : hash.length;
+            int size = codec.sizeOf(key) + 1 + hashSize;
+            if (buf.capacity() < size + 4) {
+                buf = ByteBuffer.allocate(size + 4);
+            }
+            buf.clear();
+            buf.putInt(size);
+            codec.encode(key, buf);
+            buf.put(hash == null ? (byte) -1 : (byte) hashSize);
+            if (hash != null) {
+                buf.put(hash);
+            }
+            out.write(buf.array(), 0, buf.position());
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads the records between two offsets through a sliding memory map
+     */
+    private class Reader implements RowSource {
+        private final RandomAccessFile raf;
+        private final long end;
+        private long pos;
+        private long mapStart;
+        private ByteBuffer map;
+
+        private Reader(RandomAccessFile raf, long start, long end) {
+            this.raf = raf;
+            this.pos = start;
+            this.end = end;
+        }
+
+        @Override
+        public HashedRowReader.Row next() throws Exception {
+            if (pos >= end) {
+                return null;
+            }
+            ensureMapped(4);
+            int size = map.getInt((int) (pos - mapStart));
+            ensureMapped(4 + size);
+            map.position((int) (pos - mapStart) + 4);
+            Key key = codec.decode(map);
+            byte hashSize = map.get();
+            byte[] hash = hashSize < 0 ? null : new byte[hashSize];
+            if (hash != null) {
+                map.get(hash);
+            }
+            pos += 4 + size;
+            return new HashedRowReader.Row(key, hash);
+        }
+
+        /**
+         * Moves the map so that it covers the next bytes from pos
+         */
+        private void ensureMapped(int bytes) throws IOException {
+            if (map != null && pos + bytes <= mapStart + map.limit()) {
+                return;
+            }
+            long size = Math.min(end - pos, Math.max(window, bytes));
+            map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, pos, size);
+            mapStart = pos;
+        }
+
+        @Override
+        public void close() {
+            if (raf == null) {
+                return;
+            }
+            try {
+                raf.close();
+            } catch (IOException ex) {
+                // Nothing left to read anyway
+            }
+        }
+    }
+}
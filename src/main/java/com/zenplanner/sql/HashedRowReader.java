@@ -0,0 +1,187 @@
+package com.zenplanner.sql;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Runs a hashed query on its own thread, and decodes the rows into a bounded buffer of (key, hash) entries. Running
+ * one of these for each side of a comparison lets the source and destination execute and fetch at the same time,
+ * instead of each cursor stalling while the other one fetches. Rows are decoded once with a RowCursor, into chunks
+ * that are handed back for reuse once the consumer has moved past them.
+ */
+public class HashedRowReader implements RowSource, Runnable {
+    private static final int chunkSize = 256;
+    private static final Object END = new Object();
+
+    private final Table table;
+    private final PreparedStatement stmt;
+    private final RowHashStrategy hash;
+    private final BlockingQueue<Object> queue;
+    private final BlockingQueue<Chunk> free;
+    private final Thread thread;
+    private volatile boolean closed;
+    private Chunk chunk;
+    private int chunkIndex;
+    private boolean done;
+
+    /**
+     * Starts executing the query
+     *
+     * @param table The table being queried, used to decode the primary key
+     * @param stmt A prepared hashed query, with its parameters set
+     * @param capacity The number of rows to read ahead of the consumer
+     */
+    public HashedRowReader(Table table, PreparedStatement stmt, int capacity) {
+        this(table, stmt, capacity, table.getRowHash());
+    }
+
+    /**
+     * Starts executing a query written with a strategy other than the table's own
+     *
+     * @param hash The strategy the query was written with
+     */
+    public HashedRowReader(Table table, PreparedStatement stmt, int capacity, RowHashStrategy hash) {
+        this.table = table;
+        this.stmt = stmt;
+        this.hash = hash;
+        int chunks = Math.max(1, capacity / chunkSize);
+        this.queue = new ArrayBlockingQueue<>(chunks);
+        this.free = new ArrayBlockingQueue<>(chunks + 2); // Queued, plus the one being read and the one being filled
+        this.thread = new Thread(this, "dbsync-read-" + table.getName());
+        thread.setDaemon(true);
+        table.getStatementCache().acquire(stmt); // Until the query has finished, even if this reader is closed first
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        try {
+            read();
+        } finally {
+            table.getStatementCache().release(stmt);
+        }
+    }
+
+    private void read() {
+        Object last = END;
+        try (ResultSet rs = stmt.executeQuery()) {
+            RowCursor cursor = new RowCursor(table, rs, hash);
+            Chunk rows = takeChunk();
+            while (!closed && cursor.read(rows.rows[rows.count])) {
+                if (++rows.count == chunkSize) {
+                    queue.put(rows);
+                    rows = takeChunk();
+                }
+            }
+            if (rows.count > 0) {
+                queue.put(rows);
+            }
+        } catch (InterruptedException ex) {
+            return; // The consumer has gone away
+        } catch (Exception ex) {
+            last = ex;
+        }
+        try {
+            queue.put(last);
+        } catch (InterruptedException ex) {
+            // The consumer has gone away
+        }
+    }
+
+    private Chunk takeChunk() {
+        Chunk rows = free.poll();
+        if (rows == null) {
+            rows = new Chunk();
+        }
+        rows.count = 0;
+        return rows;
+    }
+
+    /**
+     * @return The next row, or null if the query has been exhausted. The row is only valid until the next call, after
+     * which it may be overwritten.
+     * @throws Exception If the query failed
+     */
+    @Override
+    public Row next() throws Exception {
+        if (done) {
+            return null;
+        }
+        if (chunk == null || chunkIndex >= chunk.count) {
+            if (chunk != null) {
+                free.offer(chunk);
+                chunk = null;
+            }
+            Object item = queue.take();
+            if (item == END) {
+                done = true;
+                return null;
+            }
+            if (item instanceof Exception) {
+                done = true;
+                throw new RuntimeException("Error reading hashed rows from " + table.getName(), (Exception) item);
+            }
+            chunk = (Chunk) item;
+            chunkIndex = 0;
+        }
+        return chunk.rows[chunkIndex++];
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (thread.isAlive()) {
+            try {
+                stmt.cancel();
+            } catch (Exception ex) {
+                // Best effort, the statement is about to be closed anyway
+            }
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * A fixed number of reusable rows, of which the first count are filled in
+     */
+    private static class Chunk {
+        private final Row[] rows = new Row[chunkSize];
+        private int count;
+
+        private Chunk() {
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = new Row();
+            }
+        }
+    }
+
+    /**
+     * The primary key and hash of a single row
+     */
+    public static class Row {
+        private final Key key;
+        private byte[] hash;
+
+        public Row() {
+            this(new Key(), null);
+        }
+
+        public Row(Key key, byte[] hash) {
+            this.key = key;
+            this.hash = hash;
+        }
+
+        public Key getKey() {
+            return key;
+        }
+
+        public byte[] getHash() {
+            return hash;
+        }
+
+        public void setHash(byte[] hash) {
+            this.hash = hash;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.zenplanner.sql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes rows with INSERT ... VALUES (...),(...) statements that pack as many rows as the driver's parameter limit
+ * and SQL Server's 1000 row limit allow, instead of executing one single-row statement per row
+ */
+public class InsertWriter implements AutoCloseable {
+    private static final int maxRows = 1000; // SQL Server limit for a VALUES list
+
+    private final Connection con;
+    private final Table table;
+    private final String target;
+    private final List<Column> columns;
+    private final boolean strict;
+    private final int rowsPerStatement;
+    private final List<Object[]> rows = new ArrayList<>();
+    private int statementsRun;
+
+    /**
+     * @param con     The connection to write to
+     * @param table   The table the rows come from, which caches the statement shapes and the statements
+     * @param target  The bracketed name of the table to insert into
+     * @param columns The columns to insert, in the order that values will be added
+     * @param strict  True to throw if a statement fails, false to retry its rows one at a time, logging the keys of
+     *                the rows that still fail and carrying on
+     */
+    public InsertWriter(Connection con, Table table, String target, List<Column> columns, boolean strict) {
+        this.con = con;
+        this.table = table;
+        this.target = target;
+        this.columns = columns;
+        this.strict = strict;
+        this.rowsPerStatement = Math.max(1, Math.min(maxRows, table.getParamLimit() / columns.size()));
+    }
+
+    /**
+     * @return The number of rows written by each full statement
+     */
+    public int getRowsPerStatement() {
+        return rowsPerStatement;
+    }
+
+    /**
+     * @return The number of statements that have been run
+     */
+    public int getStatementsRun() {
+        return statementsRun;
+    }
+
+    /**
+     * Adds a row, writing a statement's worth of rows whenever enough have been added
+     *
+     * @param values The SQL values for each column
+     * @throws Exception
+     */
+    public void add(Object[] values) throws Exception {
+        rows.add(values);
+        if (rows.size() >= rowsPerStatement) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes any rows that have been added but not yet written. Fewer than a full statement's worth are written in
+     * statements of power of two sizes, so that a table prepares a handful of statement shapes for its tails rather
+     * than one for every remainder.
+     *
+     * @throws Exception
+     */
+    public void flush() throws Exception {
+        try {
+            int offset = 0;
+            while (offset < rows.size()) {
+                int count = getStatementRows(rows.size() - offset);
+                write(rows.subList(offset, offset + count));
+                offset += count;
+            }
+        } finally {
+            rows.clear();
+        }
+    }
+
+    /**
+     * @param remaining The number of rows left to write
+     * @return The number of them to write in the next statement
+     */
+    private int getStatementRows(int remaining) {
+        if (remaining >= rowsPerStatement) {
+            return rowsPerStatement;
+        }
+        return Integer.highestOneBit(remaining);
+    }
+
+    private void write(List<Object[]> batch) throws Exception {
+        int count = batch.size();
+        PreparedStatement stmt = table.prepare(con, table.writeMultiInsertQuery(target, columns, count));
+        int i = 1;
+        for (Object[] row : batch) {
+            for (Object val : row) {
+                stmt.setObject(i++, val);
+            }
+        }
+        try {
+            statementsRun++;
+            stmt.executeUpdate();
+        } catch (SQLException ex) {
+            if (strict) {
+                throw ex;
+            }
+            System.err.println("INSERT of " + count + " rows into " + table.getName() + " failed, retrying one row " +
+                    "at a time: " + ex.getMessage());
+            retryRows(batch);
+        }
+    }
+
+    /**
+     * Writes the rows of a failed statement one at a time, so that only the rows that fail on their own are skipped
+     */
+    private void retryRows(List<Object[]> batch) throws SQLException {
+        String sql = table.writeMultiInsertQuery(target, columns, 1);
+        int failed = 0;
+        for (Object[] row : batch) {
+            PreparedStatement stmt = table.prepare(con, sql);
+            for (int i = 0; i < row.length; i++) {
+                stmt.setObject(i + 1, row[i]);
+            }
+            try {
+                statementsRun++;
+                stmt.executeUpdate();
+            } catch (SQLException ex) {
+                System.err.println("  INSERT failed (" + describeKey(row) + "): " + ex.getMessage());
+                failed++;
+            }
+        }
+        System.err.println("Skipped " + failed + " of " + batch.size() + " rows for " + table.getName());
+        table.addSkippedRows(failed);
+    }
+
+    private String describeKey(Object[] row) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < columns.size(); i++) {
+            if (!columns.get(i).isPrimaryKey()) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            Object val = row[i];
+            if (val instanceof byte[] && ((byte[]) val).length == 16) {
+                val = UuidUtil.byteArrayToUuid((byte[]) val);
+            }
+            sb.append(val);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Drops any rows that were never flushed. The statements belong to the table's StatementCache.
+     */
+    @Override
+    public void close() {
+        rows.clear();
+    }
+}
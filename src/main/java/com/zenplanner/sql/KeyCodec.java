@@ -0,0 +1,169 @@
+package com.zenplanner.sql;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Packs the primary keys of one table into bytes, specialized to the types of its PK columns. Integer and
+ * uniqueidentifier keys take a fixed 4, 8 or 16 bytes per column with no headers, so that a bigint key costs 8 bytes
+ * instead of a boxed Long inside an ArrayList inside a HashSet.
+ */
+public class KeyCodec {
+    private static final int INT = 0;
+    private static final int LONG = 1;
+    private static final int UUID_BITS = 2;
+    private static final int STRING = 3;
+    private static final int DATE = 4;
+
+    private final int[] kinds;
+    private final int fixedSize;
+
+    /**
+     * @param table The table whose keys will be encoded
+     */
+    public KeyCodec(Table table) {
+        List<Column> pk = table.getPk();
+        kinds = new int[pk.size()];
+        int size = 0;
+        for (int i = 0; i < kinds.length; i++) {
+            kinds[i] = kindOf(pk.get(i).getDataType());
+            if (size >= 0 && kinds[i] == INT) {
+                size += 4;
+            } else if (size >= 0 && kinds[i] == LONG) {
+                size += 8;
+            } else if (size >= 0 && kinds[i] == UUID_BITS) {
+                size += 16;
+            } else {
+                size = -1;
+            }
+        }
+        fixedSize = size;
+    }
+
+    private static int kindOf(String dataType) {
+        switch (dataType) {
+            case "int":
+                return INT;
+            case "bigint":
+                return LONG;
+            case "uniqueidentifier":
+                return UUID_BITS;
+            case "nchar":
+            case "varchar":
+            case "nvarchar":
+                return STRING;
+            case "date":
+            case "datetimeoffset":
+                return DATE;
+            default:
+                throw new RuntimeException("Type not recognized: " + dataType);
+        }
+    }
+
+    /**
+     * @return The number of bytes in every encoded key, or -1 if the size depends on the key
+     */
+    public int getFixedSize() {
+        return fixedSize;
+    }
+
+    /**
+     * @param key A key
+     * @return The number of bytes that encode() will write for the key
+     */
+    public int sizeOf(Key key) {
+        if (fixedSize >= 0) {
+            return fixedSize;
+        }
+        int size = 0;
+        for (int i = 0; i < kinds.length; i++) {
+            switch (kinds[i]) {
+                case INT:
+                    size += 4;
+                    break;
+                case LONG:
+                case DATE:
+                    size += 8;
+                    break;
+                case UUID_BITS:
+                    size += 16;
+                    break;
+                default:
+                    String text = (String) key.get(i);
+                    size += 4 + (text == null ? 0 : text.getBytes(StandardCharsets.UTF_8).length);
+                    break;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Writes a key at the buffer's position, which must have at least sizeOf(key) bytes remaining
+     */
+    public void encode(Key key, ByteBuffer buf) {
+        for (int i = 0; i < kinds.length; i++) {
+            Object val = key.get(i);
+            switch (kinds[i]) {
+                case INT:
+                    buf.putInt((Integer) val);
+                    break;
+                case LONG:
+                    buf.putLong((Long) val);
+                    break;
+                case UUID_BITS:
+                    UUID uuid = (UUID) val;
+                    buf.putLong(uuid.getMostSignificantBits());
+                    buf.putLong(uuid.getLeastSignificantBits());
+                    break;
+                case DATE:
+                    buf.putLong(((java.util.Date) val).getTime());
+                    break;
+                default:
+                    if (val == null) {
+                        buf.putInt(-1);
+                    } else {
+                        byte[] bytes = ((String) val).getBytes(StandardCharsets.UTF_8);
+                        buf.putInt(bytes.length);
+                        buf.put(bytes);
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Reads a key from the buffer's position
+     */
+    public Key decode(ByteBuffer buf) {
+        Key key = new Key();
+        for (int kind : kinds) {
+            switch (kind) {
+                case INT:
+                    key.add(buf.getInt());
+                    break;
+                case LONG:
+                    key.add(buf.getLong());
+                    break;
+                case UUID_BITS:
+                    key.add(new UUID(buf.getLong(), buf.getLong()));
+                    break;
+                case DATE:
+                    key.add(new java.sql.Date(buf.getLong()));
+                    break;
+                default:
+                    int len = buf.getInt();
+                    if (len < 0) {
+                        key.add(null);
+                    } else {
+                        byte[] bytes = new byte[len];
+                        buf.get(bytes);
+                        key.add(new String(bytes, StandardCharsets.UTF_8));
+                    }
+                    break;
+            }
+        }
+        return key;
+    }
+}
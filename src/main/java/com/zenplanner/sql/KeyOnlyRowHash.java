@@ -0,0 +1,13 @@
+package com.zenplanner.sql;
+
+/**
+ * Gives every row the same hash, so that a merge-join only finds keys that are missing on one side. Used for the
+ * delete pass of a rowversion delta sync, where the server should not spend time hashing anything.
+ */
+public class KeyOnlyRowHash extends RowHashStrategy {
+
+    @Override
+    public String writeSelect(Table table) {
+        return "CAST(0 AS binary(1)) AS [Hash]";
+    }
+}
@@ -0,0 +1,86 @@
+package com.zenplanner.sql;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A half-open range of primary keys, [lower, upper), in T-SQL sort order. A null bound means the range is unbounded
+ * on that side.
+ */
+public class KeyRange {
+    private final Key lower;
+    private final Key upper;
+
+    public KeyRange(Key lower, Key upper) {
+        this.lower = lower;
+        this.upper = upper;
+    }
+
+    /**
+     * Splits the whole key space at the given boundaries
+     *
+     * @param boundaries Keys in ascending T-SQL order
+     * @return boundaries.size() + 1 contiguous ranges that together cover every key
+     */
+    public static List<KeyRange> split(List<Key> boundaries) {
+        List<KeyRange> ranges = new ArrayList<>();
+        Key lower = null;
+        for (Key boundary : boundaries) {
+            if (lower != null && Key.compare(lower, boundary) >= 0) {
+                continue; // Skip duplicate or out of order boundaries rather than produce an empty range
+            }
+            ranges.add(new KeyRange(lower, boundary));
+            lower = boundary;
+        }
+        ranges.add(new KeyRange(lower, null));
+        return ranges;
+    }
+
+    /**
+     * Splits this range at the given boundaries, which must all fall inside it. Unlike split(), the result always
+     * lines up one to one with the boundaries: range i ends at boundary i.
+     *
+     * @param boundaries Keys in ascending T-SQL order
+     * @return boundaries.size() + 1 contiguous ranges that together cover this range
+     */
+    public List<KeyRange> subdivide(List<Key> boundaries) {
+        List<KeyRange> ranges = new ArrayList<>();
+        Key from = lower;
+        for (Key boundary : boundaries) {
+            ranges.add(new KeyRange(from, boundary));
+            from = boundary;
+        }
+        ranges.add(new KeyRange(from, upper));
+        return ranges;
+    }
+
+    /**
+     * @return The inclusive lower bound, or null if there is none
+     */
+    public Key getLower() {
+        return lower;
+    }
+
+    /**
+     * @return The exclusive upper bound, or null if there is none
+     */
+    public Key getUpper() {
+        return upper;
+    }
+
+    /**
+     * @param key A primary key
+     * @return True if the key falls inside this range, using the same ordering as Key.compareTo()
+     */
+    public boolean contains(Key key) {
+        if (lower != null && lower.compareTo(key) > 0) {
+            return false;
+        }
+        return upper == null || upper.compareTo(key) > 0;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + (lower == null ? "" : lower) + ", " + (upper == null ? "" : upper) + ")";
+    }
+}
@@ -0,0 +1,13 @@
+package com.zenplanner.sql;
+
+/**
+ * The server computes an MD5 of each column, and an MD5 of those. Long strings are only hashed up to their first 500
+ * characters.
+ */
+public class Md5RowHash extends RowHashStrategy {
+
+    @Override
+    public String writeSelect(Table table) {
+        return table.writeHashExpression() + " AS [Hash]";
+    }
+}
@@ -0,0 +1,207 @@
+package com.zenplanner.sql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the filtered rows of each source table, for the progress bar and for planning, without holding up the sync.
+ * Tables that the filters don't apply to are counted from sys.dm_db_partition_stats, which only reads metadata. The
+ * others start out with that estimate, and are counted exactly by a few background workers, each with its own
+ * connection. The total is corrected as each count arrives.
+ */
+public class RowCounter implements AutoCloseable {
+    private static final String estimateQuery = "SELECT\n\tt.[name] AS [table_name],\n\tSUM(p.[row_count]) AS [rows]\n" +
+            "FROM sys.tables t\n" +
+            "INNER JOIN sys.dm_db_partition_stats p ON p.[object_id] = t.[object_id]\n" +
+            "WHERE p.[index_id] < 2\n" +
+            "GROUP BY t.[name]";
+
+    private final ConnectionFactory cons;
+    private final Map<String, List<Object>> filters;
+    private final SyncOptions options;
+    private final SyncStats stats;
+    private final AtomicLong total;
+    private final Map<String, CompletableFuture<Long>> counts = new ConcurrentHashMap<>();
+    private final Map<String, Long> known = new ConcurrentHashMap<>();
+    private Map<String, Long> dstEstimates = new HashMap<>();
+    private ExecutorService pool;
+
+    /**
+     * @param cons A factory for the counting connections
+     * @param filters The filters of the sync
+     * @param options The options
+     * @param stats Receives the COUNT phase once every table is counted
+     * @param total Kept up to date with the total row count
+     */
+    public RowCounter(ConnectionFactory cons, Map<String, List<Object>> filters, SyncOptions options, SyncStats stats,
+                      AtomicLong total) {
+        this.cons = cons;
+        this.filters = filters;
+        this.options = options;
+        this.stats = stats;
+        this.total = total;
+    }
+
+    /**
+     * Takes the estimates, and starts counting the tables that need an exact count
+     *
+     * @param scon The source connection
+     * @param dcon The destination connection
+     * @param tables The source tables
+     * @param tableNames The names of the tables to count
+     */
+    public void start(Connection scon, Connection dcon, Map<String, Table> tables, Set<String> tableNames) {
+        long start = System.nanoTime();
+        Map<String, Long> estimates = options.isEstimateCounts() ? readEstimates(scon) : new HashMap<String, Long>();
+        dstEstimates = options.isEstimateCounts() ? readEstimates(dcon) : new HashMap<String, Long>();
+        Queue<Table> queue = new ConcurrentLinkedQueue<>();
+        total.set(0);
+        for (String tableName : tableNames) {
+            Table table = tables.get(tableName);
+            Long estimate = estimates.get(tableName);
+            if (estimate != null) {
+                known.put(tableName, estimate);
+                total.addAndGet(estimate);
+            }
+            if (estimate != null && !isFiltered(table)) {
+                System.out.println(tableName + " has about " + estimate + " rows");
+                counts.put(tableName, CompletableFuture.completedFuture(estimate));
+            } else {
+                counts.put(tableName, new CompletableFuture<Long>());
+                queue.add(table);
+            }
+        }
+        if (queue.isEmpty()) {
+            stats.record(SyncStats.Phase.COUNT, total.get(), start);
+            return;
+        }
+
+        int threads = Math.max(1, Math.min(options.getCountThreads(), queue.size()));
+        AtomicInteger remaining = new AtomicInteger(queue.size());
+        pool = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads; i++) {
+            pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try (Connection con = cons.openSource()) {
+                        Table table;
+                        while ((table = queue.poll()) != null) {
+                            String tableName = table.getName();
+                            try {
+                                SyncMetrics.Batch batch = stats.getMetrics().start(tableName, SyncStats.Phase.COUNT);
+                                long rows = countRows(con, table, filters);
+                                batch.addRoundTrips(1);
+                                batch.finish(rows);
+                                Long estimate = known.put(tableName, rows);
+                                total.addAndGet(rows - (estimate == null ? 0 : estimate));
+                                System.out.println(tableName + " has " + rows + " rows");
+                                counts.get(tableName).complete(rows);
+                            } catch (Exception ex) {
+                                counts.get(tableName).completeExceptionally(ex);
+                            }
+                            if (remaining.decrementAndGet() == 0) {
+                                stats.record(SyncStats.Phase.COUNT, total.get(), start);
+                            }
+                        }
+                    } catch (Exception ex) {
+                        Table table; // Fail the rest, rather than leave anyone waiting on them
+                        while ((table = queue.poll()) != null) {
+                            counts.get(table.getName()).completeExceptionally(ex);
+                        }
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+    }
+
+    /**
+     * @return The best count of a table so far, which may be an estimate, or 0 if there is none yet
+     */
+    public long getRows(String tableName) {
+        Long rows = known.get(tableName);
+        return rows == null ? 0 : rows;
+    }
+
+    /**
+     * @return The count of a table, waiting for it if it is still being counted
+     * @throws Exception
+     */
+    public long awaitRows(String tableName) throws Exception {
+        CompletableFuture<Long> count = counts.get(tableName);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * @return The filtered count of a destination table, from the estimates if the filters don't apply to it
+     * @throws Exception
+     */
+    public long countDestination(Connection dcon, Table table) throws Exception {
+        Long estimate = dstEstimates.get(table.getName());
+        if (estimate != null && !isFiltered(table)) {
+            return estimate;
+        }
+        return countRows(dcon, table, filters);
+    }
+
+    private boolean isFiltered(Table table) {
+        return !filters.isEmpty() && table.hasAllColumns(filters.keySet());
+    }
+
+    /**
+     * @return The filtered row count of a table
+     * @throws Exception
+     */
+    public static long countRows(Connection con, Table table, Map<String, List<Object>> filters) throws Exception {
+        String sql = table.writeCountQuery(filters);
+        try (PreparedStatement stmt = con.prepareStatement(sql)) {
+            table.setFilterParams(stmt, filters, 1);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0;
+            }
+        } catch (Exception ex) {
+            throw new RuntimeException("Error counting rows: " + sql, ex);
+        }
+    }
+
+    /**
+     * @return The row count of every table from the partition metadata, or nothing if it can't be read, which needs
+     * VIEW DATABASE STATE
+     */
+    private static Map<String, Long> readEstimates(Connection con) {
+        Map<String, Long> estimates = new HashMap<>();
+        try (Statement stmt = con.createStatement(); ResultSet rs = stmt.executeQuery(estimateQuery)) {
+            while (rs.next()) {
+                estimates.put(rs.getString("table_name"), rs.getLong("rows"));
+            }
+        } catch (Exception ex) {
+            System.out.println("Unable to read row estimates, counting every table: " + ex.getMessage());
+            estimates.clear();
+        }
+        return estimates;
+    }
+
+    /**
+     * Stops counting, for tables that are still being counted when the sync is done
+     */
+    @Override
+    public void close() {
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+    }
+}
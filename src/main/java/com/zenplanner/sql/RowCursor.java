@@ -0,0 +1,89 @@
+package com.zenplanner.sql;
+
+import java.sql.ResultSet;
+import java.util.List;
+
+/**
+ * Reads the rows of a hashed query, decoding the primary key and hash of each row exactly once. Column ordinals are
+ * looked up once when the cursor is created, so each row costs one positional getter per key column, plus whatever
+ * the table's RowHashStrategy reads for the hash, without the name lookups and cursor state checks of Table.getPk(ResultSet).
+ */
+public class RowCursor {
+    private final ResultSet rs;
+    private final Column[] pk;
+    private final int[] ordinals;
+    private final RowHashStrategy.HashReader hash;
+    private final HashedRowReader.Row row = new HashedRowReader.Row();
+    private boolean valid;
+
+    /**
+     * @param table The table being queried
+     * @param rs The results of a query written by Table.writeHashedQuery(), before the first row
+     * @throws Exception
+     */
+    public RowCursor(Table table, ResultSet rs) throws Exception {
+        this(table, rs, table.getRowHash());
+    }
+
+    /**
+     * @param table The table being queried
+     * @param rs The results of a hashed query, before the first row
+     * @param hash The strategy the query was written with
+     * @throws Exception
+     */
+    public RowCursor(Table table, ResultSet rs, RowHashStrategy hash) throws Exception {
+        this.rs = rs;
+        List<Column> cols = table.getPk();
+        this.pk = cols.toArray(new Column[cols.size()]);
+        this.ordinals = new int[pk.length];
+        for (int i = 0; i < pk.length; i++) {
+            ordinals[i] = rs.findColumn(pk[i].getColumnName());
+        }
+        this.hash = hash.createReader(table, rs);
+    }
+
+    /**
+     * Moves to the next row and decodes it into the cursor's own row, which is overwritten on every call
+     *
+     * @return True if there was another row
+     * @throws Exception
+     */
+    public boolean next() throws Exception {
+        valid = read(row);
+        return valid;
+    }
+
+    /**
+     * Moves to the next row and decodes it into the given row, reusing its key
+     *
+     * @param into The row to overwrite
+     * @return True if there was another row, false if the query is exhausted, in which case into is unchanged
+     * @throws Exception
+     */
+    public boolean read(HashedRowReader.Row into) throws Exception {
+        if (!rs.next()) {
+            return false;
+        }
+        Key key = into.getKey();
+        key.clear();
+        for (int i = 0; i < pk.length; i++) {
+            key.add(pk[i].getValue(rs, ordinals[i]));
+        }
+        into.setHash(hash.read());
+        return true;
+    }
+
+    /**
+     * @return The key of the current row, or null if there is none. Only valid until the next call to next().
+     */
+    public Key getKey() {
+        return valid ? row.getKey() : null;
+    }
+
+    /**
+     * @return The hash of the current row, or null if there is none
+     */
+    public byte[] getHash() {
+        return valid ? row.getHash() : null;
+    }
+}
@@ -0,0 +1,83 @@
+package com.zenplanner.sql;
+
+import java.sql.ResultSet;
+
+/**
+ * Decides how the hash of each row is computed: which expressions the hashed query and the key lookups select after
+ * the primary key, how the hash is read back from each row, which server side hash bucket compares aggregate, and
+ * which strategy confirms the candidates of a prefilter.
+ */
+public abstract class RowHashStrategy {
+
+    /**
+     * @param mode The strategy selected in SyncOptions
+     * @return The strategy
+     */
+    public static RowHashStrategy create(SyncOptions.RowHash mode) {
+        switch (mode) {
+            case MD5:
+                return new Md5RowHash();
+            case CHECKSUM:
+                return new ChecksumRowHash();
+            case CLIENT:
+                return new ClientRowHash();
+            default:
+                throw new IllegalArgumentException("Unknown row hash: " + mode);
+        }
+    }
+
+    /**
+     * @param table The table being queried
+     * @return The select list that follows the primary key columns in the hashed query
+     */
+    public abstract String writeSelect(Table table);
+
+    /**
+     * Binds to the results of a hashed query. The default reads the binary [Hash] column computed by the server.
+     *
+     * @param table The table being queried
+     * @param rs The results of a query written by Table.writeHashedQuery()
+     * @return A reader for the hash of the current row
+     * @throws Exception
+     */
+    public HashReader createReader(Table table, ResultSet rs) throws Exception {
+        final int ordinal = rs.findColumn("Hash");
+        return new HashReader() {
+            @Override
+            public byte[] read() throws Exception {
+                return rs.getBytes(ordinal);
+            }
+        };
+    }
+
+    /**
+     * @param table The table being queried
+     * @return A binary SQL expression for the hash of a row, which Table.writeBucketQuery() sums in two four byte
+     * slices. The default is the server side MD5 of Table.writeHashExpression().
+     */
+    public String writeBucketHash(Table table) {
+        return table.writeHashExpression();
+    }
+
+    /**
+     * @return The strategy that Table.confirmChanges() compares candidate rows with, if this one is a prefilter
+     */
+    public RowHashStrategy getConfirmation() {
+        return this;
+    }
+
+    /**
+     * @return True if rows whose hashes differ are only candidates, and must be confirmed with Table.confirmChanges()
+     * before they are copied
+     */
+    public boolean isPrefilter() {
+        return false;
+    }
+
+    /**
+     * Reads the hash of the current row of a hashed query
+     */
+    public interface HashReader {
+        byte[] read() throws Exception;
+    }
+}
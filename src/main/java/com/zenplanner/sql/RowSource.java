@@ -0,0 +1,16 @@
+package com.zenplanner.sql;
+
+/**
+ * A stream of (key, hash) rows in primary key order, for one side of the merge-join
+ */
+public interface RowSource extends AutoCloseable {
+
+    /**
+     * @return The next row, or null if there are no more. The row is only valid until the next call.
+     * @throws Exception
+     */
+    HashedRowReader.Row next() throws Exception;
+
+    @Override
+    void close();
+}
@@ -0,0 +1,56 @@
+package com.zenplanner.sql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the rows whose rowversion column is at or above the MIN_ACTIVE_ROWVERSION() of the last sync. A rowversion
+ * changes on every insert and update, but a deleted row leaves nothing behind, so deletes are found by a key pass.
+ */
+public class RowVersionChangeSource extends ChangeSource {
+
+    @Override
+    public String getName() {
+        return "RowVersion";
+    }
+
+    @Override
+    public boolean canTrack(Connection con, Table table) {
+        return table.getRowVersion() != null;
+    }
+
+    @Override
+    public byte[] readVersion(Connection con) throws Exception {
+        try (Statement stmt = con.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT MIN_ACTIVE_ROWVERSION()")) {
+            rs.next();
+            return rs.getBytes(1);
+        }
+    }
+
+    @Override
+    public boolean isMissingDeletes() {
+        return true;
+    }
+
+    @Override
+    public void readChanges(Connection con, Table table, Map<String, List<Object>> filters, byte[] since,
+                            Listener listener) throws Exception {
+        String sql = table.writeDeltaQuery(filters);
+        try (PreparedStatement stmt = con.prepareStatement(sql)) {
+            int i = table.setFilterParams(stmt, filters, 1);
+            stmt.setBytes(i, since);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    listener.changed(DbComparator.ChangeType.UPDATE, table.getPk(rs));
+                }
+            }
+        } catch (Exception ex) {
+            throw new RuntimeException("Error selecting changed rows: " + sql, ex);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.zenplanner.sql;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.hash.Hashing;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reads the tables and columns of a database with sp_DbSyncGetObjects, and keeps them between runs, in memory and in a
+ * file per database. The catalog query only runs again when a cheap fingerprint of sys.objects, the number of tables
+ * and primary keys and their latest modify_date, has changed. Adding, dropping or altering a column changes its
+ * table's modify_date.
+ *
+ * Each cache file holds the fingerprint on the first line, then the rows of sp_DbSyncGetObjects, tab separated.
+ */
+public class SchemaCache {
+    private static final String fingerprintQuery = "SELECT\n\tCOUNT(*) AS [objects],\n\tMAX([modify_date]) AS [modified]\n" +
+            "FROM sys.objects\nWHERE [type] IN ('U', 'PK')";
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * @param con A connection to the database
+     * @param url The URL of the database, which identifies it in the cache
+     * @param dir The directory that holds the cache files
+     * @return The tables of the database, the same instances as last time if the schema has not changed
+     * @throws Exception
+     */
+    public Map<String, Table> getTables(Connection con, String url, File dir) throws Exception {
+        String fingerprint = readFingerprint(con);
+        if (fingerprint == null) {
+            return readTables(con);
+        }
+        Entry entry = entries.get(url);
+        if (entry != null && entry.fingerprint.equals(fingerprint)) {
+            return entry.tables;
+        }
+
+        File file = new File(dir, Hashing.md5().hashString(url, Charsets.UTF_8).toString().substring(0, 16) + ".schema");
+        List<String[]> rows = readFile(file, fingerprint);
+        if (rows == null) {
+            System.out.println("Reading the schema of " + file.getName());
+            rows = readRows(con);
+            writeFile(file, fingerprint, rows);
+        }
+        entry = new Entry(fingerprint, buildTables(rows));
+        entries.put(url, entry);
+        return entry.tables;
+    }
+
+    /**
+     * @return A map of Tables from the database schema, without the cache
+     * @throws Exception
+     */
+    public static Map<String, Table> readTables(Connection con) throws Exception {
+        return buildTables(readRows(con));
+    }
+
+    /**
+     * @return The fingerprint of the schema, or null if sys.objects can't be read
+     */
+    private static String readFingerprint(Connection con) {
+        try (Statement stmt = con.createStatement(); ResultSet rs = stmt.executeQuery(fingerprintQuery)) {
+            rs.next();
+            return rs.getLong("objects") + "/" + rs.getTimestamp("modified");
+        } catch (Exception ex) {
+            System.out.println("Unable to fingerprint the schema, reading it every time: " + ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return The rows of sp_DbSyncGetObjects: table name, column name, data type, and 1 for primary key columns
+     * @throws Exception
+     */
+    private static List<String[]> readRows(Connection con) throws Exception {
+        List<String[]> rows = new ArrayList<>();
+        try (CallableStatement stmt = con.prepareCall("{ call sp_DbSyncGetObjects() }")) {
+            boolean hadResults = stmt.execute();
+            if (hadResults) {
+                try (ResultSet rs = stmt.getResultSet()) {
+                    while (rs.next()) {
+                        rows.add(new String[]{rs.getString("table_name"), rs.getString("column_name"),
+                                rs.getString("data_type"), rs.getBoolean("primary_key") ? "1" : "0"});
+                    }
+                }
+            }
+        }
+        return rows;
+    }
+
+    private static Map<String, Table> buildTables(List<String[]> rows) {
+        Map<String, Table> tables = new HashMap<>();
+        for (String[] row : rows) {
+            String tableName = row[0];
+            if (!tables.containsKey(tableName)) {
+                tables.put(tableName, new Table(tableName));
+            }
+            Table table = tables.get(tableName);
+
+            Column col = new Column();
+            String colName = row[1].toLowerCase();
+            col.setColumnName(colName);
+            col.setDataType(row[2]);
+            col.setPrimaryKey("1".equals(row[3]));
+            if (col.isRowVersion()) {
+                table.setRowVersion(colName); // Can't be written, only compared
+                continue;
+            }
+            table.put(colName, col);
+        }
+
+        for(Table table : tables.values()) {
+            if(table.size() == 0) {
+                throw new IllegalStateException("Table has no columns: " + table.getName());
+            }
+        }
+
+        return tables;
+    }
+
+    /**
+     * @return The cached rows, or null if there are none for this fingerprint
+     */
+    private static List<String[]> readFile(File file, String fingerprint) {
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            List<String> lines = Files.readAllLines(file.toPath(), Charsets.UTF_8);
+            if (lines.isEmpty() || !lines.get(0).equals(fingerprint)) {
+                return null;
+            }
+            List<String[]> rows = new ArrayList<>();
+            for (String line : lines.subList(1, lines.size())) {
+                rows.add(line.split("\t", -1));
+            }
+            return rows;
+        } catch (Exception ex) {
+            System.out.println("Unable to read schema cache " + file.getAbsolutePath() + ": " + ex.getMessage());
+            return null;
+        }
+    }
+
+    private static void writeFile(File file, String fingerprint, List<String[]> rows) {
+        List<String> lines = new ArrayList<>();
+        lines.add(fingerprint);
+        for (String[] row : rows) {
+            lines.add(Joiner.on('\t').join(row));
+        }
+        try {
+            file.getParentFile().mkdirs();
+            Files.write(file.toPath(), lines, Charsets.UTF_8);
+        } catch (Exception ex) {
+            System.out.println("Unable to write schema cache " + file.getAbsolutePath() + ": " + ex.getMessage());
+        }
+    }
+
+    private static class Entry {
+        private final String fingerprint;
+        private final Map<String, Table> tables;
+
+        private Entry(String fingerprint, Map<String, Table> tables) {
+            this.fingerprint = fingerprint;
+            this.tables = tables;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.zenplanner.sql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the prepared statements of each connection by SQL text, so that a statement run once per batch is prepared
+ * once per connection instead, and SQL Server sees the same few statements again and again rather than a stream of
+ * near identical ad-hoc ones. The statements belong to the cache: callers must not close them, and must be done with
+ * one statement's results before running it again.
+ *
+ * A statement that is run on another thread, as HashedRowReader does, is checked out with acquire() until release().
+ * While it is out, prepare() hands out a new statement for the same SQL in its place, so a query that is still running
+ * after its reader was closed is never handed to the next one.
+ */
+public class StatementCache implements AutoCloseable {
+    private final Map<Connection, Map<String, PreparedStatement>> statements = new ConcurrentHashMap<>();
+    private final Set<PreparedStatement> inUse = ConcurrentHashMap.newKeySet();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param con The connection
+     * @param sql The SQL text of the statement
+     * @return The statement, prepared on the connection if it hasn't been already, with its parameters cleared
+     * @throws SQLException
+     */
+    public PreparedStatement prepare(Connection con, String sql) throws SQLException {
+        Map<String, PreparedStatement> cached = statements.get(con);
+        if (cached == null) {
+            cached = new ConcurrentHashMap<>();
+            Map<String, PreparedStatement> existing = statements.putIfAbsent(con, cached);
+            if (existing != null) {
+                cached = existing;
+            }
+        }
+        PreparedStatement stmt = cached.get(sql);
+        if (stmt != null && !stmt.isClosed() && !inUse.contains(stmt)) {
+            hits.incrementAndGet();
+            stmt.clearParameters();
+            return stmt;
+        }
+        misses.incrementAndGet();
+        stmt = con.prepareStatement(sql);
+        cached.put(sql, stmt);
+        return stmt;
+    }
+
+    /**
+     * Marks a statement as in use by another thread, so that prepare() doesn't hand it out again until it is released
+     *
+     * @param stmt A statement from prepare()
+     */
+    public void acquire(PreparedStatement stmt) {
+        inUse.add(stmt);
+    }
+
+    /**
+     * Returns a statement to the cache once its thread is done with it, or closes it if it has been replaced or
+     * evicted in the meantime
+     *
+     * @param stmt A statement passed to acquire()
+     */
+    public void release(PreparedStatement stmt) {
+        inUse.remove(stmt);
+        for (Map<String, PreparedStatement> cached : statements.values()) {
+            if (cached.containsValue(stmt)) {
+                return;
+            }
+        }
+        closeQuietly(stmt);
+    }
+
+    /**
+     * Closes and forgets the statements of a connection, before the connection is closed
+     *
+     * @param con The connection
+     */
+    public void evict(Connection con) {
+        Map<String, PreparedStatement> cached = statements.remove(con);
+        if (cached == null) {
+            return;
+        }
+        for (PreparedStatement stmt : cached.values()) {
+            if (!inUse.contains(stmt)) {
+                closeQuietly(stmt);
+            }
+        }
+    }
+
+    /**
+     * @return The number of statements that were reused
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return The number of statements that had to be prepared
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return The number of statements held open, across every connection
+     */
+    public int size() {
+        int size = 0;
+        for (Map<String, PreparedStatement> cached : statements.values()) {
+            size += cached.size();
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%,d statements prepared, %,d reused", getMisses(), getHits());
+    }
+
+    /**
+     * Closes every statement
+     */
+    @Override
+    public void close() {
+        for (Map<String, PreparedStatement> cached : statements.values()) {
+            for (PreparedStatement stmt : cached.values()) {
+                closeQuietly(stmt);
+            }
+        }
+        statements.clear();
+    }
+
+    private static void closeQuietly(PreparedStatement stmt) {
+        try {
+            stmt.close();
+        } catch (SQLException ex) {
+            // Closing the connection closes it anyway
+        }
+    }
+}
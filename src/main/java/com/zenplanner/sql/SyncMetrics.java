@@ -0,0 +1,286 @@
+package com.zenplanner.sql;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import org.apache.commons.lang3.StringEscapeUtils;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records the work done on each table in each phase as a TableMetric. The metrics can be published over JMX while
+ * the sync is running, as com.zenplanner.sql:type=TableMetric,table=...,phase=..., and are written as a JSON report
+ * when it ends.
+ */
+public class SyncMetrics {
+    private static final String domain = "com.zenplanner.sql";
+
+    private final Map<String, TableMetric> metrics = new ConcurrentHashMap<>();
+    private volatile boolean jmx;
+
+    /**
+     * @param jmx True to publish each metric over JMX as it is created
+     */
+    public void setJmx(boolean jmx) {
+        this.jmx = jmx;
+    }
+
+    /**
+     * @return The metric for a table and phase, created the first time it is asked for
+     */
+    public TableMetric get(String table, SyncStats.Phase phase) {
+        String key = table + "/" + phase;
+        TableMetric metric = metrics.get(key);
+        if (metric != null) {
+            return metric;
+        }
+        synchronized (metrics) {
+            metric = metrics.get(key);
+            if (metric == null) {
+                metric = new TableMetric(table, phase);
+                metrics.put(key, metric);
+                if (jmx) {
+                    register(metric);
+                }
+            }
+            return metric;
+        }
+    }
+
+    /**
+     * Starts timing a batch
+     *
+     * @return The batch, to be counted and then finished
+     */
+    public Batch start(String table, SyncStats.Phase phase) {
+        return new Batch(get(table, phase));
+    }
+
+    /**
+     * Forgets every metric, and takes them off JMX, before a new sync
+     */
+    public void reset() {
+        synchronized (metrics) {
+            for (TableMetric metric : metrics.values()) {
+                unregister(metric);
+            }
+            metrics.clear();
+        }
+    }
+
+    /**
+     * @return Every metric, by table and then by phase
+     */
+    public List<TableMetric> getMetrics() {
+        List<TableMetric> list = new ArrayList<>(metrics.values());
+        Collections.sort(list, new Comparator<TableMetric>() {
+            @Override
+            public int compare(TableMetric a, TableMetric b) {
+                int val = a.getTable().compareTo(b.getTable());
+                return val != 0 ? val : a.getPhase().compareTo(b.getPhase());
+            }
+        });
+        return list;
+    }
+
+    /**
+     * @return The rows of every table in a phase
+     */
+    public long getRows(SyncStats.Phase phase) {
+        long rows = 0;
+        for (TableMetric metric : metrics.values()) {
+            if (metric.getPhase().equals(phase.name())) {
+                rows += metric.getRows();
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * @return The time spent on the batches of every table in a phase
+     */
+    public long getNanos(SyncStats.Phase phase) {
+        long nanos = 0;
+        for (TableMetric metric : metrics.values()) {
+            if (metric.getPhase().equals(phase.name())) {
+                nanos += metric.getNanos();
+            }
+        }
+        return nanos;
+    }
+
+    private static ObjectName createName(TableMetric metric) throws Exception {
+        return new ObjectName(domain + ":type=TableMetric,table=" + ObjectName.quote(metric.getTable()) +
+                ",phase=" + metric.getPhase());
+    }
+
+    private static void register(TableMetric metric) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = createName(metric);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name); // Left by another DbComparator in the same JVM
+            }
+            server.registerMBean(metric, name);
+        } catch (Exception ex) {
+            System.out.println("Unable to publish metric over JMX: " + ex.getMessage());
+        }
+    }
+
+    private static void unregister(TableMetric metric) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = createName(metric);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (Exception ex) {
+            // Never registered
+        }
+    }
+
+    /**
+     * Writes the report of a sync as JSON
+     *
+     * @param file The file to write
+     * @param stats The totals of the sync
+     * @param statements The sync's statement cache
+     * @param modified The number of rows the sync changed in the destination
+     * @param start The System.currentTimeMillis() when the sync started
+     * @param error The error that stopped the sync, or null if it succeeded
+     */
+    public void writeReport(File file, SyncStats stats, StatementCache statements, long modified, long start,
+                            Throwable error) {
+        try {
+            Files.write(file.toPath(), writeReport(stats, statements, modified, start, error).getBytes(Charsets.UTF_8));
+            System.out.println("Wrote performance report to " + file.getAbsolutePath());
+        } catch (Exception ex) {
+            System.out.println("Unable to write performance report " + file.getAbsolutePath() + ": " + ex.getMessage());
+        }
+    }
+
+    /**
+     * @return The report of a sync, as JSON
+     */
+    public String writeReport(SyncStats stats, StatementCache statements, long modified, long start,
+                              Throwable error) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append(String.format("  \"start\": %d,\n", start));
+        sb.append(String.format("  \"elapsedMillis\": %d,\n", System.currentTimeMillis() - start));
+        sb.append(String.format("  \"succeeded\": %s,\n", error == null));
+        if (error != null) {
+            sb.append(String.format("  \"error\": %s,\n", quote(String.valueOf(error.getMessage()))));
+        }
+        sb.append(String.format("  \"modifiedRows\": %d,\n", modified));
+        sb.append(String.format("  \"statements\": {\"prepared\": %d, \"reused\": %d},\n", statements.getMisses(),
+                statements.getHits()));
+
+        List<String> phases = new ArrayList<>();
+        for (SyncStats.Phase phase : SyncStats.Phase.values()) {
+            if (stats.getNanos(phase) == 0) {
+                continue;
+            }
+            phases.add(String.format("    %s: {\"rows\": %d, \"millis\": %d, \"rowsPerSecond\": %d}",
+                    quote(phase.name()), stats.getRows(phase), stats.getNanos(phase) / 1000000,
+                    stats.getRowsPerSecond(phase)));
+        }
+        sb.append("  \"phases\": {\n").append(join(phases)).append("\n  },\n");
+
+        Map<String, List<String>> tables = new TreeMap<>();
+        for (TableMetric metric : getMetrics()) {
+            List<String> entries = tables.get(metric.getTable());
+            if (entries == null) {
+                entries = new ArrayList<>();
+                tables.put(metric.getTable(), entries);
+            }
+            entries.add(writeMetric(metric));
+        }
+        List<String> tableEntries = new ArrayList<>();
+        for (Map.Entry<String, List<String>> entry : tables.entrySet()) {
+            tableEntries.add(String.format("    %s: {\n%s\n    }", quote(entry.getKey()), join(entry.getValue())));
+        }
+        sb.append("  \"tables\": {\n").append(join(tableEntries)).append("\n  }\n");
+        sb.append("}\n");
+        return sb.toString();
+    }
+
+    private static String writeMetric(TableMetric metric) {
+        List<String> histogram = new ArrayList<>();
+        long[] counts = metric.getHistogram();
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                histogram.add(String.format("{\"underMicros\": %d, \"batches\": %d}", 2L << i, counts[i]));
+            }
+        }
+        return String.format("      %s: {\"rows\": %d, \"bytes\": %d, \"roundTrips\": %d, \"batches\": %d, " +
+                        "\"millis\": %d, \"p50Millis\": %.3f, \"p95Millis\": %.3f, \"p99Millis\": %.3f, " +
+                        "\"maxMillis\": %.3f, \"histogram\": [%s]}",
+                quote(metric.getPhase()), metric.getRows(), metric.getBytes(), metric.getRoundTrips(),
+                metric.getBatches(), metric.getTotalMillis(), metric.getP50Millis(), metric.getP95Millis(),
+                metric.getP99Millis(), metric.getMaxMillis(), Joiner.on(", ").join(histogram));
+    }
+
+    private static String join(List<String> entries) {
+        return Joiner.on(",\n").join(entries);
+    }
+
+    private static String quote(String text) {
+        return "\"" + StringEscapeUtils.escapeJson(text) + "\"";
+    }
+
+    /**
+     * Counts the rows, bytes and round trips of one batch, and records them with its time when it is finished
+     */
+    public static class Batch {
+        private final TableMetric metric;
+        private final long start = System.nanoTime();
+        private long bytes;
+        private long roundTrips;
+
+        private Batch(TableMetric metric) {
+            this.metric = metric;
+        }
+
+        public void addBytes(long bytes) {
+            this.bytes += bytes;
+        }
+
+        public void addRoundTrips(long roundTrips) {
+            this.roundTrips += roundTrips;
+        }
+
+        /**
+         * @param rows The number of rows in the batch
+         */
+        public void finish(long rows) {
+            metric.record(rows, bytes, roundTrips, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @return The approximate size of a value read from a ResultSet
+     */
+    public static long sizeOf(Object val) {
+        if (val == null) {
+            return 0;
+        }
+        if (val instanceof byte[]) {
+            return ((byte[]) val).length;
+        }
+        if (val instanceof String) {
+            return ((String) val).length() * 2L;
+        }
+        return 8;
+    }
+}
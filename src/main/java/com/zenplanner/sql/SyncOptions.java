@@ -0,0 +1,560 @@
+package com.zenplanner.sql;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Tuning knobs for a synchronization run, usually read from dbsync.properties
+ */
+public class SyncOptions {
+    /**
+     * How changed rows are written to the destination
+     */
+    public enum ApplyMode {
+        /** One parameterized INSERT or UPDATE per row */
+        ROW,
+        /** Load each batch into a staging table, then one INSERT ... SELECT or UPDATE ... FROM per batch */
+        SET,
+        /** Load each batch into a staging table, then one MERGE per batch that also handles deletes */
+        MERGE
+    }
+
+    /**
+     * How the hash of each row is computed for comparison, see RowHashStrategy
+     */
+    public enum RowHash {
+        /** The server hashes each row with MD5 */
+        MD5,
+        /** The server computes a BINARY_CHECKSUM, and rows that differ are confirmed with a client side hash */
+        CHECKSUM,
+        /** The server streams the columns, and they are hashed here */
+        CLIENT
+    }
+
+    private int threads = 1;
+    private boolean pipeline = true;
+    private int pipelineDepth = 4;
+    private int prefetchRows = 8192;
+    private int partitionRows = 5000000;
+    private boolean bucketCompare = false;
+    private int bucketCount = 32;
+    private int bucketLeafRows = 10000;
+    private boolean keyStaging = true;
+    private ApplyMode applyMode = ApplyMode.ROW;
+    private double reloadRatio = 0.5;
+    private int reloadSampleRows = 1000;
+    private int changeMemoryMb = 256;
+    private RowHash rowHash = RowHash.MD5;
+    private final Map<String, RowHash> tableRowHash = new HashMap<>();
+    private boolean hashSnapshot = false;
+    private File snapshotDir = new File("snapshots");
+    private boolean snapshotCheck = true;
+    private boolean rowVersionDelta = false;
+    private int keyPassRuns = 10;
+    private File stateFile = new File("dbsync-state.properties");
+    private boolean changeTracking = false;
+    private boolean estimateCounts = true;
+    private int countThreads = 4;
+    private boolean schemaCache = false;
+    private File schemaCacheDir = new File("schema-cache");
+    private int commitRows = 0;
+    private int commitBatches = 0;
+    private boolean bulkInsert = false;
+    private int batchMillis = 0;
+    private boolean jmxMetrics = true;
+    private File reportFile;
+
+    /**
+     * Reads options from a properties file, leaving the defaults for anything that is missing
+     *
+     * @param props The properties to read
+     * @return The resulting options
+     */
+    public static SyncOptions fromProperties(Properties props) {
+        SyncOptions opts = new SyncOptions();
+        opts.setThreads(getInt(props, "Threads", opts.getThreads()));
+        opts.setPipeline(getBoolean(props, "Pipeline", opts.isPipeline()));
+        opts.setPipelineDepth(getInt(props, "PipelineDepth", opts.getPipelineDepth()));
+        opts.setPrefetchRows(getInt(props, "PrefetchRows", opts.getPrefetchRows()));
+        opts.setPartitionRows(getInt(props, "PartitionRows", opts.getPartitionRows()));
+        opts.setBucketCompare(getBoolean(props, "BucketCompare", opts.isBucketCompare()));
+        opts.setBucketCount(getInt(props, "BucketCount", opts.getBucketCount()));
+        opts.setBucketLeafRows(getInt(props, "BucketLeafRows", opts.getBucketLeafRows()));
+        opts.setKeyStaging(getBoolean(props, "KeyStaging", opts.isKeyStaging()));
+        String applyMode = props.getProperty("ApplyMode");
+        if(applyMode != null && applyMode.trim().length() > 0) {
+            opts.setApplyMode(ApplyMode.valueOf(applyMode.trim().toUpperCase()));
+        }
+        opts.setReloadRatio(getDouble(props, "ReloadRatio", opts.getReloadRatio()));
+        opts.setReloadSampleRows(getInt(props, "ReloadSampleRows", opts.getReloadSampleRows()));
+        opts.setChangeMemoryMb(getInt(props, "ChangeMemoryMB", opts.getChangeMemoryMb()));
+        opts.setHashSnapshot(getBoolean(props, "HashSnapshot", opts.isHashSnapshot()));
+        String snapshotDir = props.getProperty("SnapshotDir");
+        if(snapshotDir != null && snapshotDir.trim().length() > 0) {
+            opts.setSnapshotDir(new File(snapshotDir.trim()));
+        }
+        opts.setSnapshotCheck(getBoolean(props, "SnapshotCheck", opts.isSnapshotCheck()));
+        opts.setRowVersionDelta(getBoolean(props, "RowVersionDelta", opts.isRowVersionDelta()));
+        opts.setKeyPassRuns(getInt(props, "KeyPassRuns", opts.getKeyPassRuns()));
+        String stateFile = props.getProperty("StateFile");
+        if(stateFile != null && stateFile.trim().length() > 0) {
+            opts.setStateFile(new File(stateFile.trim()));
+        }
+        opts.setChangeTracking(getBoolean(props, "ChangeTracking", opts.isChangeTracking()));
+        opts.setEstimateCounts(getBoolean(props, "EstimateCounts", opts.isEstimateCounts()));
+        opts.setCountThreads(getInt(props, "CountThreads", opts.getCountThreads()));
+        opts.setSchemaCache(getBoolean(props, "SchemaCache", opts.isSchemaCache()));
+        opts.setCommitRows(getInt(props, "CommitRows", opts.getCommitRows()));
+        opts.setCommitBatches(getInt(props, "CommitBatches", opts.getCommitBatches()));
+        opts.setBulkInsert(getBoolean(props, "BulkInsert", opts.isBulkInsert()));
+        opts.setBatchMillis(getInt(props, "BatchMillis", opts.getBatchMillis()));
+        opts.setJmxMetrics(getBoolean(props, "JmxMetrics", opts.isJmxMetrics()));
+        String reportFile = props.getProperty("ReportFile");
+        if(reportFile != null && reportFile.trim().length() > 0) {
+            opts.setReportFile(new File(reportFile.trim()));
+        }
+        String schemaCacheDir = props.getProperty("SchemaCacheDir");
+        if(schemaCacheDir != null && schemaCacheDir.trim().length() > 0) {
+            opts.setSchemaCacheDir(new File(schemaCacheDir.trim()));
+        }
+        for (String name : props.stringPropertyNames()) {
+            String text = props.getProperty(name).trim();
+            if (text.length() == 0) {
+                continue;
+            }
+            if ("RowHash".equals(name)) {
+                opts.setRowHash(RowHash.valueOf(text.toUpperCase()));
+            } else if (name.startsWith("RowHash.")) {
+                opts.setRowHash(name.substring("RowHash.".length()), RowHash.valueOf(text.toUpperCase()));
+            }
+        }
+        return opts;
+    }
+
+    private static int getInt(Properties props, String name, int defaultValue) {
+        String text = props.getProperty(name);
+        if(text == null || text.trim().length() == 0) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(text.trim());
+        } catch (NumberFormatException ex) {
+            throw new RuntimeException("Invalid value for " + name + ": " + text, ex);
+        }
+    }
+
+    private static double getDouble(Properties props, String name, double defaultValue) {
+        String text = props.getProperty(name);
+        if(text == null || text.trim().length() == 0) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(text.trim());
+        } catch (NumberFormatException ex) {
+            throw new RuntimeException("Invalid value for " + name + ": " + text, ex);
+        }
+    }
+
+    private static boolean getBoolean(Properties props, String name, boolean defaultValue) {
+        String text = props.getProperty(name);
+        if(text == null || text.trim().length() == 0) {
+            return defaultValue;
+        }
+        return Boolean.parseBoolean(text.trim());
+    }
+
+    /**
+     * @return The number of tables to synchronize at once, each on its own source/destination connection pair
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        if(threads < 1) {
+            throw new IllegalArgumentException("Threads must be at least 1: " + threads);
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * @return True if changes should be applied on a second connection pair while the comparison is still running
+     */
+    public boolean isPipeline() {
+        return pipeline;
+    }
+
+    public void setPipeline(boolean pipeline) {
+        this.pipeline = pipeline;
+    }
+
+    /**
+     * @return The number of change batches that may wait to be applied before the comparison blocks
+     */
+    public int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    public void setPipelineDepth(int pipelineDepth) {
+        if(pipelineDepth < 1) {
+            throw new IllegalArgumentException("PipelineDepth must be at least 1: " + pipelineDepth);
+        }
+        this.pipelineDepth = pipelineDepth;
+    }
+
+    /**
+     * @return The number of hashed rows to read ahead on each side of a comparison
+     */
+    public int getPrefetchRows() {
+        return prefetchRows;
+    }
+
+    public void setPrefetchRows(int prefetchRows) {
+        if(prefetchRows < 1) {
+            throw new IllegalArgumentException("PrefetchRows must be at least 1: " + prefetchRows);
+        }
+        this.prefetchRows = prefetchRows;
+    }
+
+    /**
+     * @return The number of rows above which a table is split into key ranges that are synchronized in parallel, or
+     * zero to never split tables
+     */
+    public int getPartitionRows() {
+        return partitionRows;
+    }
+
+    public void setPartitionRows(int partitionRows) {
+        if(partitionRows < 0) {
+            throw new IllegalArgumentException("PartitionRows must not be negative: " + partitionRows);
+        }
+        this.partitionRows = partitionRows;
+    }
+
+    /**
+     * @return True if tables should be compared by aggregate hashes of key buckets first, only comparing individual
+     * rows in the buckets that differ
+     */
+    public boolean isBucketCompare() {
+        return bucketCompare;
+    }
+
+    public void setBucketCompare(boolean bucketCompare) {
+        this.bucketCompare = bucketCompare;
+    }
+
+    /**
+     * @return The number of buckets to split a mismatched range into
+     */
+    public int getBucketCount() {
+        return bucketCount;
+    }
+
+    public void setBucketCount(int bucketCount) {
+        if(bucketCount < 2) {
+            throw new IllegalArgumentException("BucketCount must be at least 2: " + bucketCount);
+        }
+        this.bucketCount = bucketCount;
+    }
+
+    /**
+     * @return The number of rows at or below which a mismatched bucket is compared row by row
+     */
+    public int getBucketLeafRows() {
+        return bucketLeafRows;
+    }
+
+    public void setBucketLeafRows(int bucketLeafRows) {
+        if(bucketLeafRows < 1) {
+            throw new IllegalArgumentException("BucketLeafRows must be at least 1: " + bucketLeafRows);
+        }
+        this.bucketLeafRows = bucketLeafRows;
+    }
+
+    /**
+     * @return True if changed keys should be copied into a temp table and joined against, rather than passed as a
+     * chain of OR'd parameters
+     */
+    public boolean isKeyStaging() {
+        return keyStaging;
+    }
+
+    public void setKeyStaging(boolean keyStaging) {
+        this.keyStaging = keyStaging;
+    }
+
+    /**
+     * @return How changed rows are written to the destination
+     */
+    public ApplyMode getApplyMode() {
+        return applyMode;
+    }
+
+    public void setApplyMode(ApplyMode applyMode) {
+        this.applyMode = applyMode;
+    }
+
+    /**
+     * @return The estimated fraction of changed rows at or above which a table is reloaded (deleted and copied in
+     * full) instead of compared row by row. Values above 1 disable reloading.
+     */
+    public double getReloadRatio() {
+        return reloadRatio;
+    }
+
+    public void setReloadRatio(double reloadRatio) {
+        if(reloadRatio < 0) {
+            throw new IllegalArgumentException("ReloadRatio must not be negative: " + reloadRatio);
+        }
+        this.reloadRatio = reloadRatio;
+    }
+
+    /**
+     * @return The number of leading rows of each table to compare when estimating how much of it has changed
+     */
+    public int getReloadSampleRows() {
+        return reloadSampleRows;
+    }
+
+    public void setReloadSampleRows(int reloadSampleRows) {
+        if(reloadSampleRows < 1) {
+            throw new IllegalArgumentException("ReloadSampleRows must be at least 1: " + reloadSampleRows);
+        }
+        this.reloadSampleRows = reloadSampleRows;
+    }
+
+    /**
+     * @return The megabytes of heap that the changed keys of one table may use before they spill to a temp file
+     */
+    public int getChangeMemoryMb() {
+        return changeMemoryMb;
+    }
+
+    public void setChangeMemoryMb(int changeMemoryMb) {
+        if(changeMemoryMb < 1) {
+            throw new IllegalArgumentException("ChangeMemoryMB must be at least 1: " + changeMemoryMb);
+        }
+        this.changeMemoryMb = changeMemoryMb;
+    }
+
+    /**
+     * @return How rows are hashed in tables that have no setting of their own
+     */
+    public RowHash getRowHash() {
+        return rowHash;
+    }
+
+    public void setRowHash(RowHash rowHash) {
+        this.rowHash = rowHash;
+    }
+
+    /**
+     * @param tableName The name of a table
+     * @return How the rows of the table are hashed, from RowHash.tableName if it is set, or else RowHash
+     */
+    public RowHash getRowHash(String tableName) {
+        RowHash val = tableRowHash.get(tableName);
+        return val == null ? rowHash : val;
+    }
+
+    public void setRowHash(String tableName, RowHash rowHash) {
+        tableRowHash.put(tableName, rowHash);
+    }
+
+    /**
+     * @return True to keep a snapshot of each table's destination hashes after it is synchronized, and compare the
+     * next run against the snapshot instead of querying the destination. Bucket compares are not used with snapshots.
+     */
+    public boolean isHashSnapshot() {
+        return hashSnapshot;
+    }
+
+    public void setHashSnapshot(boolean hashSnapshot) {
+        this.hashSnapshot = hashSnapshot;
+    }
+
+    /**
+     * @return The directory that holds the hash snapshots
+     */
+    public File getSnapshotDir() {
+        return snapshotDir;
+    }
+
+    public void setSnapshotDir(File snapshotDir) {
+        this.snapshotDir = snapshotDir;
+    }
+
+    /**
+     * @return True to check the destination's row count and checksum before trusting a snapshot, which catches changes
+     * made to the destination by anything other than dbsync
+     */
+    public boolean isSnapshotCheck() {
+        return snapshotCheck;
+    }
+
+    public void setSnapshotCheck(boolean snapshotCheck) {
+        this.snapshotCheck = snapshotCheck;
+    }
+
+    /**
+     * @return True to sync tables that have a rowversion column by reading only the rows changed since the last run
+     */
+    public boolean isRowVersionDelta() {
+        return rowVersionDelta;
+    }
+
+    public void setRowVersionDelta(boolean rowVersionDelta) {
+        this.rowVersionDelta = rowVersionDelta;
+    }
+
+    /**
+     * @return How many delta runs a table gets before one that also reads every key, to find deleted rows
+     */
+    public int getKeyPassRuns() {
+        return keyPassRuns;
+    }
+
+    public void setKeyPassRuns(int keyPassRuns) {
+        this.keyPassRuns = keyPassRuns;
+    }
+
+    /**
+     * @return The file that holds each table's rowversion high-water mark between runs
+     */
+    public File getStateFile() {
+        return stateFile;
+    }
+
+    public void setStateFile(File stateFile) {
+        this.stateFile = stateFile;
+    }
+
+    /**
+     * @return True to sync tables that have SQL Server Change Tracking enabled from their tracked changes
+     */
+    public boolean isChangeTracking() {
+        return changeTracking;
+    }
+
+    public void setChangeTracking(boolean changeTracking) {
+        this.changeTracking = changeTracking;
+    }
+
+    /**
+     * @return True to count the tables that the filters don't apply to from the partition metadata, instead of scanning
+     * them
+     */
+    public boolean isEstimateCounts() {
+        return estimateCounts;
+    }
+
+    public void setEstimateCounts(boolean estimateCounts) {
+        this.estimateCounts = estimateCounts;
+    }
+
+    /**
+     * @return The number of connections that count filtered tables in the background
+     */
+    public int getCountThreads() {
+        return countThreads;
+    }
+
+    public void setCountThreads(int countThreads) {
+        this.countThreads = countThreads;
+    }
+
+    /**
+     * @return True to keep the schema of each database between runs, and only read it again when it has changed
+     */
+    public boolean isSchemaCache() {
+        return schemaCache;
+    }
+
+    public void setSchemaCache(boolean schemaCache) {
+        this.schemaCache = schemaCache;
+    }
+
+    /**
+     * @return The directory that holds the schema cache files
+     */
+    public File getSchemaCacheDir() {
+        return schemaCacheDir;
+    }
+
+    public void setSchemaCacheDir(File schemaCacheDir) {
+        this.schemaCacheDir = schemaCacheDir;
+    }
+
+    /**
+     * @return The number of rows written to a table before its transaction is committed, or 0 for no limit
+     */
+    public int getCommitRows() {
+        return commitRows;
+    }
+
+    public void setCommitRows(int commitRows) {
+        this.commitRows = commitRows;
+    }
+
+    /**
+     * @return The number of batches written to a table before its transaction is committed, or 0 for no limit. With
+     * neither limit, every statement commits on its own.
+     */
+    public int getCommitBatches() {
+        return commitBatches;
+    }
+
+    public void setCommitBatches(int commitBatches) {
+        this.commitBatches = commitBatches;
+    }
+
+    /**
+     * @return True to reload tables through #DbSyncRows with INSERT ... WITH (TABLOCK) SELECT, so that inserts into
+     * empty tables and heaps can be minimally logged. The hint locks the whole table, so a table being reloaded is
+     * copied as a single task rather than in ranges.
+     */
+    public boolean isBulkInsert() {
+        return bulkInsert;
+    }
+
+    public void setBulkInsert(boolean bulkInsert) {
+        this.bulkInsert = bulkInsert;
+    }
+
+    /**
+     * @return The time each read or write batch should take, which each table's batch sizes are adjusted toward, or 0
+     * to always use the largest batches the driver allows
+     */
+    public int getBatchMillis() {
+        return batchMillis;
+    }
+
+    public void setBatchMillis(int batchMillis) {
+        this.batchMillis = batchMillis;
+    }
+
+    /**
+     * @return True if each table's metrics are published over JMX while the sync is running
+     */
+    public boolean isJmxMetrics() {
+        return jmxMetrics;
+    }
+
+    public void setJmxMetrics(boolean jmxMetrics) {
+        this.jmxMetrics = jmxMetrics;
+    }
+
+    /**
+     * @return The file to which a JSON performance report is written at the end of each sync, or null for none, which
+     * is the default
+     */
+    public File getReportFile() {
+        return reportFile;
+    }
+
+    public void setReportFile(File reportFile) {
+        this.reportFile = reportFile;
+    }
+}
@@ -0,0 +1,73 @@
+package com.zenplanner.sql;
+
+import com.google.common.io.BaseEncoding;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * What dbsync remembers between runs about each table, for each destination and filter set: the source version of the
+ * last successful sync, as recorded by each ChangeSource, and how many delta runs have passed since deletes were last
+ * looked for
+ */
+public class SyncState {
+    private final File file;
+    private final Properties props = new Properties();
+
+    /**
+     * @param file The state file, which need not exist yet
+     */
+    public SyncState(File file) {
+        this.file = file;
+        if (!file.exists()) {
+            return;
+        }
+        try (InputStream in = new FileInputStream(file)) {
+            props.load(in);
+        } catch (IOException ex) {
+            throw new RuntimeException("Error reading sync state from " + file.getAbsolutePath(), ex);
+        }
+    }
+
+    /**
+     * @param table The name of the table
+     * @param id Identifies the destination and filters, from HashSnapshot.createId()
+     * @param source The name of the ChangeSource that recorded the version
+     * @return The version of the source at the last sync, or null if there is none
+     */
+    public synchronized byte[] getVersion(String table, String id, String source) {
+        String text = props.getProperty(table + "." + id + "." + source);
+        return text == null ? null : BaseEncoding.base16().decode(text);
+    }
+
+    /**
+     * @return The number of delta runs since the last key pass
+     */
+    public synchronized int getDeltaRuns(String table, String id) {
+        return Integer.parseInt(props.getProperty(table + "." + id + ".DeltaRuns", "0"));
+    }
+
+    /**
+     * Records a successful sync, and saves the state file
+     *
+     * @param table The name of the table
+     * @param id Identifies the destination and filters
+     * @param source The name of the ChangeSource that read the version
+     * @param version The version of the source from before the table was read
+     * @param deltaRuns The number of delta runs since the last key pass
+     */
+    public synchronized void update(String table, String id, String source, byte[] version, int deltaRuns) {
+        props.setProperty(table + "." + id + "." + source, BaseEncoding.base16().encode(version));
+        props.setProperty(table + "." + id + ".DeltaRuns", Integer.toString(deltaRuns));
+        try (OutputStream out = new FileOutputStream(file)) {
+            props.store(out, "dbsync state");
+        } catch (IOException ex) {
+            throw new RuntimeException("Error saving sync state to " + file.getAbsolutePath(), ex);
+        }
+    }
+}
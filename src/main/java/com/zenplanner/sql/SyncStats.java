@@ -0,0 +1,87 @@
+package com.zenplanner.sql;
+
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rows processed and time spent in each phase of a synchronization. Phases that run on several workers at once add up
+ * their time, so rows per second is the throughput of a single worker. The phases that write changes are totalled
+ * from the batches each table records in the metrics, rather than timed separately.
+ */
+public class SyncStats {
+    public enum Phase {
+        COUNT, PLAN, COMPARE, RELOAD, DELETE, INSERT, UPDATE, MERGE
+    }
+
+    private static final Set<Phase> batched = EnumSet.of(Phase.DELETE, Phase.INSERT, Phase.UPDATE, Phase.MERGE);
+
+    private final Map<Phase, AtomicLong> rows = new EnumMap<>(Phase.class);
+    private final Map<Phase, AtomicLong> nanos = new EnumMap<>(Phase.class);
+    private final SyncMetrics metrics = new SyncMetrics();
+
+    public SyncStats() {
+        for (Phase phase : Phase.values()) {
+            rows.put(phase, new AtomicLong());
+            nanos.put(phase, new AtomicLong());
+        }
+    }
+
+    /**
+     * Adds the work done by one step of a phase
+     *
+     * @param phase The phase
+     * @param count The number of rows processed
+     * @param start The System.nanoTime() when the step started
+     */
+    public void record(Phase phase, long count, long start) {
+        rows.get(phase).addAndGet(count);
+        nanos.get(phase).addAndGet(System.nanoTime() - start);
+    }
+
+    /**
+     * @return The work done on each table in each phase
+     */
+    public SyncMetrics getMetrics() {
+        return metrics;
+    }
+
+    public long getRows(Phase phase) {
+        return batched.contains(phase) ? metrics.getRows(phase) : rows.get(phase).get();
+    }
+
+    public long getNanos(Phase phase) {
+        return batched.contains(phase) ? metrics.getNanos(phase) : nanos.get(phase).get();
+    }
+
+    /**
+     * @return The rows processed per second of time spent in the phase
+     */
+    public long getRowsPerSecond(Phase phase) {
+        long time = getNanos(phase);
+        return time <= 0 ? 0 : getRows(phase) * 1000000000L / time;
+    }
+
+    public void reset() {
+        for (Phase phase : Phase.values()) {
+            rows.get(phase).set(0);
+            nanos.get(phase).set(0);
+        }
+        metrics.reset();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Phase phase : Phase.values()) {
+            if (getNanos(phase) == 0) {
+                continue;
+            }
+            sb.append(String.format("%-8s %,12d rows %,10d ms %,12d rows/s%n", phase, getRows(phase),
+                    getNanos(phase) / 1000000, getRowsPerSecond(phase)));
+        }
+        return sb.toString();
+    }
+}
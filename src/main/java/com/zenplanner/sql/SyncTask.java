@@ -0,0 +1,72 @@
+package com.zenplanner.sql;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A unit of work for a sync worker: a whole table, or one key range of a table that has been split into parts
+ */
+public class SyncTask {
+    private final Table table;
+    private final KeyRange range;
+    private final int part;
+    private final AtomicInteger remaining;
+    private final DbComparator.Strategy strategy;
+
+    /**
+     * @param table The virtual table containing the columns common to the source and destination
+     * @param range The key range to synchronize, or null for the whole table
+     * @param part The index of the range among the table's ranges, in key order
+     * @param remaining The number of unfinished tasks for this table, shared by all of its parts
+     * @param strategy How the range should be synchronized
+     */
+    public SyncTask(Table table, KeyRange range, int part, AtomicInteger remaining, DbComparator.Strategy strategy) {
+        this.table = table;
+        this.range = range;
+        this.part = part;
+        this.remaining = remaining;
+        this.strategy = strategy;
+    }
+
+    public Table getTable() {
+        return table;
+    }
+
+    /**
+     * @return The key range to synchronize, or null for the whole table
+     */
+    public KeyRange getRange() {
+        return range;
+    }
+
+    /**
+     * @return The index of the range among the table's ranges, in key order
+     */
+    public int getPart() {
+        return part;
+    }
+
+    /**
+     * @return How the range should be synchronized
+     */
+    public DbComparator.Strategy getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * Marks this part as finished
+     *
+     * @return True if every part of the table is now finished
+     */
+    public boolean finish() {
+        return remaining.decrementAndGet() == 0;
+    }
+
+    @Override
+    public String toString() {
+        String name = range == null ? table.getName() : table.getName() + " " + range;
+        if (strategy == DbComparator.Strategy.RELOAD) {
+            return name + " (reload)";
+        }
+        return strategy == DbComparator.Strategy.DELTA ? name + " (delta)" : name;
+    }
+}
@@ -4,12 +4,28 @@ import com.google.common.base.Joiner;
 
 import java.sql.*;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Table extends TreeMap<String, Column> {
     private final String name;
     private List<Column> pk;
     private static final int maxKeys = 2000; // jtds driver limit
+    private static final String keyTable = "#DbSyncKeys";
+    private static final String rowTable = "#DbSyncRows";
+    private static final int[] keyBuckets = {1, 16, 128, 1024}; // Lookups are padded up to one of these key counts
+    private SyncOptions options = new SyncOptions();
+    private final Map<String, String> insertShapes = new ConcurrentHashMap<>();
+    private final Map<String, String> lookupShapes = new ConcurrentHashMap<>();
+    private volatile StatementCache statements = new StatementCache();
+    private volatile SyncMetrics metrics = new SyncMetrics();
+    private final TransactionChunker transactions = new TransactionChunker(this);
+    private final BatchSizer batchSizer = new BatchSizer(this);
+    private final AtomicLong skippedRows = new AtomicLong();
+    private volatile KeyCodec keyCodec;
+    private volatile KeyComparator keyComparator;
+    private volatile RowHashStrategy rowHash;
+    private String rowVersion;
 
     public Table(String name) {
         this.name = name;
@@ -49,6 +65,156 @@ public class Table extends TreeMap<String, Column> {
         }
     }
 
+    /**
+     * @return The codec that packs this table's primary keys for a ChangeSet
+     */
+    public KeyCodec getKeyCodec() {
+        if (keyCodec == null) {
+            keyCodec = new KeyCodec(this);
+        }
+        return keyCodec;
+    }
+
+    /**
+     * @return A comparator specialized to this table's primary key, with the same ordering as Key.compare()
+     */
+    public KeyComparator getKeyComparator() {
+        if (keyComparator == null) {
+            keyComparator = new KeyComparator(this);
+        }
+        return keyComparator;
+    }
+
+    /**
+     * @return The maximum number of parameters in a single statement
+     */
+    public int getParamLimit() {
+        return maxKeys;
+    }
+
+    /**
+     * @return The options that control how changes are applied to this table
+     */
+    public SyncOptions getOptions() {
+        return options;
+    }
+
+    public void setOptions(SyncOptions options) {
+        this.options = options;
+        this.rowHash = null;
+    }
+
+    /**
+     * @return The name of the table's rowversion column in the source, or null if it has none. The column is not one
+     * of the table's columns, since it can't be copied.
+     */
+    public String getRowVersion() {
+        return rowVersion;
+    }
+
+    public void setRowVersion(String rowVersion) {
+        this.rowVersion = rowVersion;
+    }
+
+    /**
+     * @return How this table's rows are hashed, as set in the options
+     */
+    public RowHashStrategy getRowHash() {
+        if (rowHash == null) {
+            rowHash = RowHashStrategy.create(options.getRowHash(getName()));
+        }
+        return rowHash;
+    }
+
+    /**
+     * @return The number of rows whose keys fit in a single query without exceeding the driver's parameter limit
+     */
+    public int getRowLimit() {
+        return (int) Math.floor(maxKeys / getPk().size());
+    }
+
+    /**
+     * @return The cache that holds this table's prepared statements
+     */
+    public StatementCache getStatementCache() {
+        return statements;
+    }
+
+    public void setStatementCache(StatementCache statements) {
+        this.statements = statements;
+    }
+
+    /**
+     * @return A statement from the statement cache, which must not be closed
+     * @throws SQLException
+     */
+    public PreparedStatement prepare(Connection con, String sql) throws SQLException {
+        return statements.prepare(con, sql);
+    }
+
+    /**
+     * @return The registry to which this table's batches are recorded
+     */
+    public SyncMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void setMetrics(SyncMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return The sizes of this table's read and write batches
+     */
+    public BatchSizer getBatchSizer() {
+        return batchSizer;
+    }
+
+    /**
+     * @return The number of rows that failed to be written and were left out, see InsertWriter
+     */
+    public long getSkippedRows() {
+        return skippedRows.get();
+    }
+
+    public void addSkippedRows(long rows) {
+        skippedRows.addAndGet(rows);
+    }
+
+    /**
+     * Clears the state a previous run left behind: measured batch sizes, open transactions and skipped rows. Called
+     * before a table that is kept between runs is synchronized again, since SchemaCache reuses the same tables.
+     */
+    public void resetRunState() {
+        batchSizer.reset();
+        transactions.reset();
+        skippedRows.set(0);
+    }
+
+    /**
+     * Commits the writes to this table that are still in an open transaction, see TransactionChunker
+     *
+     * @param dcon The destination connection
+     * @throws SQLException
+     */
+    public void commit(Connection dcon) throws SQLException {
+        transactions.commit(dcon);
+    }
+
+    /**
+     * @param count The number of keys to look up
+     * @return The number of keys the lookup is written for: the smallest bucket that holds them all, or the row limit
+     */
+    public int getKeyBucket(int count) {
+        int rowLimit = getRowLimit();
+        for (int bucket : keyBuckets) {
+            if (count <= bucket && bucket < rowLimit) {
+                return bucket;
+            }
+        }
+        return Math.max(count, rowLimit);
+    }
+
     public boolean hasColumn(String name) {
         return containsKey(name);
     }
@@ -70,6 +236,35 @@ public class Table extends TreeMap<String, Column> {
         return sql;
     }
 
+    /**
+     * Writes an INSERT with a VALUES list of the given number of rows. The SQL is cached, since the same few shapes
+     * are used over and over.
+     *
+     * @param target  The bracketed name of the table to insert into
+     * @param columns The columns to insert
+     * @param rows    The number of rows
+     * @return The SQL for the statement
+     */
+    public String writeMultiInsertQuery(String target, List<Column> columns, int rows) {
+        String cacheKey = target + "/" + columns.size() + "/" + rows;
+        String sql = insertShapes.get(cacheKey);
+        if (sql != null) {
+            return sql;
+        }
+        List<String> colNames = new ArrayList<>();
+        List<String> valueNames = new ArrayList<>();
+        for (Column col : columns) {
+            colNames.add("[" + col.getColumnName() + "]");
+            valueNames.add("?");
+        }
+        String row = "(" + Joiner.on(",").join(valueNames) + ")";
+        List<String> rowClauses = Collections.nCopies(rows, row);
+        sql = String.format("INSERT INTO %s (%s) VALUES\n%s", target, Joiner.on(", ").join(colNames),
+                Joiner.on(",\n").join(rowClauses));
+        insertShapes.put(cacheKey, sql);
+        return sql;
+    }
+
     public String writeUpdateQuery() {
         List<String> updateCols = new ArrayList<>();
         List<Column> pk = getPk();
@@ -95,47 +290,304 @@ public class Table extends TreeMap<String, Column> {
      * @return A magical query that returns the primary key and a hash of the row
      */
     public String writeHashedQuery(Map<String,List<Object>> filters) {
+        return writeHashedQuery(filters, null);
+    }
+
+    /**
+     * @param range The range of keys to select, or null for every key. Parameters for the range follow the filter
+     *              parameters, and can be generated with getRangeParams().
+     * @return A magical query that returns the primary key and a hash of each row in the range
+     */
+    public String writeHashedQuery(Map<String,List<Object>> filters, KeyRange range) {
+        return writeHashedQuery(filters, range, "", getRowHash());
+    }
+
+    /**
+     * @param hash How to hash the rows, in place of the table's own strategy
+     * @return The hashed query for each row in the range
+     */
+    public String writeHashedQuery(Map<String,List<Object>> filters, KeyRange range, RowHashStrategy hash) {
+        return writeHashedQuery(filters, range, "", hash);
+    }
+
+    /**
+     * @return A query for the keys of the filtered rows whose rowversion is at or above a parameter, which follows the
+     * filter parameters
+     */
+    public String writeDeltaQuery(Map<String,List<Object>> filters) {
+        String orderClause = writeKeyColumns();
+        String sql = String.format("SELECT\n\t%s\nFROM [%s]\n", orderClause, getName());
+        sql = buildWhereClause(filters, null, String.format("[%s] >= ?", rowVersion), sql);
+        sql += String.format("\nORDER BY %s", orderClause);
+        return sql;
+    }
+
+    /**
+     * @param rows The number of rows to sample
+     * @return The hashed query for the first rows of the table, in key order
+     */
+    public String writeSampleQuery(Map<String,List<Object>> filters, int rows) {
+        return writeHashedQuery(filters, null, " TOP " + rows, getRowHash());
+    }
+
+    private String writeHashedQuery(Map<String,List<Object>> filters, KeyRange range, String top,
+                                    RowHashStrategy hash) {
+        String orderClause = writeKeyColumns();
+        String selectClause = orderClause + ",\n\t" + hash.writeSelect(this);
+        String sql = String.format("SELECT%s\n\t%s\nFROM [%s]\n", top, selectClause, getName());
+
+        // Filter
+        sql = buildWhereClause(filters, range, sql);
+
+        sql += String.format("\nORDER BY %s", orderClause);
+        return sql;
+    }
+
+    /**
+     * @return The SQL expression for the MD5 hash of a row, built from each column's Column.getSelect()
+     */
+    public String writeHashExpression() {
         List<String> colNames = new ArrayList<>();
-        List<String> pk = new ArrayList<>();
         for(Column col : values()) {
             colNames.add(col.getSelect());
         }
+        String hashNames = Joiner.on("+\n\t\t").join(colNames);
+        return "HASHBYTES('md5',\n\t\t" + hashNames + "\n\t)";
+    }
+
+    /**
+     * @return The bracketed primary key column names, separated by commas
+     */
+    private String writeKeyColumns() {
+        List<String> pk = new ArrayList<>();
         for (Column col : getPk()) {
             pk.add(String.format("[%s]", col.getColumnName()));
         }
-        String hashNames = Joiner.on("+\n\t\t").join(colNames);
-        String orderClause = Joiner.on(",").join(pk);
-        String selectClause = orderClause + ",\n\tHASHBYTES('md5',\n\t\t" + hashNames + "\n\t) AS [Hash]";
-        String sql = String.format("SELECT\n\t%s\nFROM [%s]\n", selectClause, getName());
+        return Joiner.on(",").join(pk);
+    }
 
-        // Filter
-        sql = buildWhereClause(filters, sql);
+    /**
+     * Writes a query that returns an aggregate hash for each bucket of keys within a range. Bucket i holds the keys
+     * below boundary i and at or above boundary i-1, the last bucket holds everything above the last boundary. Since
+     * the aggregate is a sum of slices of the row hashes, it does not depend on the order in which rows are read. The
+     * row hash is RowHashStrategy.writeBucketHash() of the table's strategy.
+     * Parameters are the boundaries (see getBoundaryParams()), then the filters, then the range.
+     *
+     * @param boundaryCount The number of boundaries that split the range into buckets
+     * @return A query returning [Bucket], [Rows], [Hash1] and [Hash2] for each non-empty bucket
+     */
+    public String writeBucketQuery(Map<String,List<Object>> filters, KeyRange range, int boundaryCount) {
+        StringBuilder sb = new StringBuilder("CASE");
+        String comparison = writeKeyComparison("<", false);
+        for (int i = 0; i < boundaryCount; i++) {
+            sb.append(String.format("\n\t\tWHEN %s THEN %d", comparison, i));
+        }
+        sb.append(String.format("\n\t\tELSE %d END", boundaryCount));
+        String sql = String.format("SELECT\n\t%s AS [Bucket],\n\t%s AS [Hash]\nFROM [%s]\n",
+                sb.toString(), getRowHash().writeBucketHash(this), getName());
+        sql = buildWhereClause(filters, range, sql);
+        return String.format("SELECT\n\t[Bucket],\n\tCOUNT_BIG(1) AS [Rows],\n" +
+                "\tSUM(CAST(CAST(SUBSTRING([Hash], 1, 4) AS int) AS bigint)) AS [Hash1],\n" +
+                "\tSUM(CAST(CAST(SUBSTRING([Hash], 5, 4) AS int) AS bigint)) AS [Hash2]\n" +
+                "FROM (\n%s\n) [Hashes]\nGROUP BY [Bucket]", sql);
+    }
 
-        sql += String.format("\nORDER BY %s", orderClause);
-        return sql;
+    /**
+     * Writes a query that samples every Nth primary key from the source, in T-SQL order. The sampled keys can be
+     * used as boundaries to split the table into ranges of roughly N rows each. The step is the final parameter,
+     * after the filter parameters.
+     *
+     * @return The sampling query
+     */
+    public String writeBoundaryQuery(Map<String,List<Object>> filters) {
+        return writeBoundaryQuery(filters, null);
+    }
+
+    /**
+     * Like writeBoundaryQuery(filters), but only samples keys within a range. The range parameters follow the filter
+     * parameters, and the step is the final parameter.
+     */
+    public String writeBoundaryQuery(Map<String,List<Object>> filters, KeyRange range) {
+        String orderClause = writeKeyColumns();
+        String sql = String.format("SELECT\n\t%s,\n\tROW_NUMBER() OVER (ORDER BY %s) AS [RowNum]\nFROM [%s]\n",
+                orderClause, orderClause, getName());
+        sql = buildWhereClause(filters, range, sql);
+        return String.format("SELECT %s\nFROM (\n%s\n) [Sample]\nWHERE [RowNum] %% ? = 0\nORDER BY %s",
+                orderClause, sql, orderClause);
     }
 
     private String buildWhereClause(Map<String, List<Object>> filters, String sql) {
+        return buildWhereClause(filters, null, sql);
+    }
+
+    private String buildWhereClause(Map<String, List<Object>> filters, KeyRange range, String sql) {
+        return buildWhereClause(filters, range, null, sql);
+    }
+
+    /**
+     * @param extra A condition to add after the filters and range, with its own parameters, or null
+     */
+    private String buildWhereClause(Map<String, List<Object>> filters, KeyRange range, String extra, String sql) {
+        List<String> clauses = new ArrayList<>();
         if(hasAllColumns(filters.keySet())) {
-            StringBuilder sb = new StringBuilder();
             for(String key : filters.keySet()) {
-                if(sb.length() > 0) {
-                    sb.append("\n\t AND ");
-                }
                 List<Object> vals = filters.get(key);
                 List<String> terms = new ArrayList<>();
                 for(Object val : vals) {
                     terms.add("?");
                 }
-                sb.append("[" + key + "] IN (" + Joiner.on(",").join(terms) + ")");
+                clauses.add("[" + key + "] IN (" + Joiner.on(",").join(terms) + ")");
             }
-            sql += "WHERE " + sb.toString();
+        }
+        if(range != null && range.getLower() != null) {
+            clauses.add(writeKeyComparison(">", true));
+        }
+        if(range != null && range.getUpper() != null) {
+            clauses.add(writeKeyComparison("<", false));
+        }
+        if(extra != null) {
+            clauses.add(extra);
+        }
+        if(clauses.size() > 0) {
+            sql += "WHERE " + Joiner.on("\n\t AND ").join(clauses);
         }
         return sql;
     }
 
+    /**
+     * Writes a lexicographic comparison of the primary key against a bound, e.g. for a key of (a, b) and ">=":
+     * ([a] > ? OR ([a] = ? AND [b] >= ?)). SQL Server compares each column with its own collation and uniqueidentifier
+     * ordering, which is the same ordering that Key.compareTo() emulates.
+     *
+     * @param op Either ">" or "<"
+     * @param inclusive True if the final column should also match on equality
+     * @return The SQL for the comparison
+     */
+    private String writeKeyComparison(String op, boolean inclusive) {
+        List<Column> pk = getPk();
+        List<String> terms = new ArrayList<>();
+        for (int i = 0; i < pk.size(); i++) {
+            StringBuilder sb = new StringBuilder("(");
+            for (int j = 0; j < i; j++) {
+                sb.append(String.format("[%s] = ? AND ", pk.get(j).getColumnName()));
+            }
+            String last = (inclusive && i == pk.size() - 1) ? op + "=" : op;
+            sb.append(String.format("[%s] %s ?)", pk.get(i).getColumnName(), last));
+            terms.add(sb.toString());
+        }
+        return "(" + Joiner.on(" OR ").join(terms) + ")";
+    }
+
+    /**
+     * Sets the parameters of the filters, if this table has the filter columns
+     *
+     * @param i The index of the first filter parameter
+     * @return The index of the next parameter
+     */
+    public int setFilterParams(PreparedStatement stmt, Map<String,List<Object>> filters, int i) throws Exception {
+        if (hasAllColumns(filters.keySet())) {
+            for (List<Object> vals : filters.values()) {
+                for (Object val : vals) {
+                    stmt.setObject(i++, val);
+                }
+            }
+        }
+        return i;
+    }
+
+    /**
+     * @param range A key range
+     * @return The values for the parameters written by writeHashedQuery() for the range, in order
+     */
+    public List<Object> getRangeParams(KeyRange range) {
+        List<Object> parms = new ArrayList<>();
+        if (range == null) {
+            return parms;
+        }
+        for (Key bound : new Key[]{range.getLower(), range.getUpper()}) {
+            if (bound != null) {
+                addComparisonParams(parms, bound);
+            }
+        }
+        return parms;
+    }
+
+    /**
+     * @return The most boundaries that writeBucketQuery() can split a range with, without its parameters exceeding
+     * the driver's limit
+     */
+    public int getBoundaryLimit(Map<String,List<Object>> filters, KeyRange range) {
+        int keyColumns = getPk().size();
+        int perBoundary = keyColumns * (keyColumns + 1) / 2;
+        int used = getRangeParams(range).size();
+        if (hasAllColumns(filters.keySet())) {
+            for (List<Object> vals : filters.values()) {
+                used += vals.size();
+            }
+        }
+        return Math.max(0, (getParamLimit() - used) / perBoundary);
+    }
+
+    /**
+     * @param boundaries The bucket boundaries
+     * @return The values for the boundary parameters written by writeBucketQuery(), in order
+     */
+    public List<Object> getBoundaryParams(List<Key> boundaries) {
+        List<Object> parms = new ArrayList<>();
+        for (Key boundary : boundaries) {
+            addComparisonParams(parms, boundary);
+        }
+        return parms;
+    }
+
+    private static void addComparisonParams(List<Object> parms, Key bound) {
+        for (int i = 0; i < bound.size(); i++) {
+            for (int j = 0; j <= i; j++) {
+                parms.add(javaToSql(bound.get(j)));
+            }
+        }
+    }
+
+    /**
+     * @param range The range of keys to select, or null for every key
+     * @return A query for every column of every row in the range, with filter and range parameters like
+     * writeHashedQuery()
+     */
+    public String writeSelectQuery(Map<String,List<Object>> filters, KeyRange range) {
+        List<String> colNames = new ArrayList<>();
+        for(Column col : values()) {
+            colNames.add("[" + col.getColumnName() + "]");
+        }
+        String sql = String.format("SELECT %s\nFROM [%s]\n", Joiner.on(", ").join(colNames), getName());
+        return buildWhereClause(filters, range, sql);
+    }
+
+    /**
+     * @param range The range of keys to delete, or null for every key
+     * @return A statement that deletes every row in the range, with filter and range parameters like
+     * writeHashedQuery()
+     */
+    public String writeDeleteQuery(Map<String,List<Object>> filters, KeyRange range) {
+        return buildWhereClause(filters, range, String.format("DELETE FROM [%s]\n", getName()));
+    }
+
     public String writeCountQuery(Map<String,List<Object>> filters) {
-        String sql = String.format("SELECT\n\tCOUNT(*)\nFROM [%s]\n", getName());
+        String sql = String.format("SELECT\n\tCOUNT_BIG(1)\nFROM [%s]\n", getName());
+        sql = buildWhereClause(filters, sql);
+        return sql;
+    }
+
+    /**
+     * @return A query for the filtered row count and an aggregate BINARY_CHECKSUM of every row, which is cheap for the
+     * server and changes whenever any row does (barring collisions)
+     */
+    public String writeChecksumQuery(Map<String,List<Object>> filters) {
+        List<String> colNames = new ArrayList<>();
+        for(Column col : values()) {
+            colNames.add("[" + col.getColumnName() + "]");
+        }
+        String sql = String.format("SELECT\n\tCOUNT_BIG(1),\n\tCHECKSUM_AGG(BINARY_CHECKSUM(%s))\nFROM [%s]\n",
+                Joiner.on(", ").join(colNames), getName());
         sql = buildWhereClause(filters, sql);
         return sql;
     }
@@ -177,7 +629,10 @@ public class Table extends TreeMap<String, Column> {
         }
     }
 
-    public PreparedStatement createSelectQuery(Connection con, Set<Key> keys, int count) {
+    /**
+     * @return A statement from the statement cache that selects every column of up to count keys
+     */
+    public PreparedStatement createSelectQuery(Connection con, Iterator<Key> keys, int count) {
         StringBuilder sb = new StringBuilder();
         for(Column col : values()) {
             if(sb.length() > 0) {
@@ -189,47 +644,103 @@ public class Table extends TreeMap<String, Column> {
         return createQuery(sql, con, keys, count);
     }
 
-    public PreparedStatement createDeleteQuery(Connection con, Set<Key> keys, int count) {
+    /**
+     * @return A statement from the statement cache that deletes up to count keys
+     */
+    public PreparedStatement createDeleteQuery(Connection con, Iterator<Key> keys, int count) {
         return createQuery("DELETE", con, keys, count);
     }
 
-    // TODO: Break this monster out into separate methods for SQL and values
-    private PreparedStatement createQuery(String prefix, Connection con, Set<Key> keys, int count) {
-        List<Object> parms = new ArrayList<>();
-        List<Column> pk = getPk();
-        StringBuilder sb = new StringBuilder();
-        int rowIndex = 0;
-        for (Key key : new HashSet<>(keys)) {
-            keys.remove(key); // Remove as we go
-            if (sb.length() > 0) {
-                sb.append("\tOR ");
+    /**
+     * Confirms the candidate changes found by a prefilter row hash, by comparing the hash of each row on both sides
+     * with the prefilter's RowHashStrategy.getConfirmation()
+     *
+     * @param scon The source connection
+     * @param dcon The destination connection
+     * @param keys The keys of rows whose prefilter hashes differ
+     * @return The keys of the rows whose confirmed hashes differ too, in the same order
+     * @throws Exception
+     */
+    public List<Key> confirmChanges(Connection scon, Connection dcon, Collection<Key> keys) throws Exception {
+        RowHashStrategy hash = getRowHash().getConfirmation();
+        List<Key> changed = new ArrayList<>();
+        Iterator<Key> it = keys.iterator();
+        long remaining = ChangeSet.count(keys);
+        while (remaining > 0) {
+            int count = (int) Math.min(getRowLimit(), remaining);
+            List<Key> batch = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                batch.add(it.next());
             }
-            sb.append("(");
-            for (int pkIdx = 0; pkIdx < pk.size(); pkIdx++) {
-                if (pkIdx > 0) {
-                    sb.append(" AND ");
+            remaining -= count;
+            Map<Key, byte[]> srcHashes = readHashes(scon, batch, hash);
+            Map<Key, byte[]> dstHashes = readHashes(dcon, batch, hash);
+            for (Key key : batch) {
+                byte[] shash = srcHashes.get(key);
+                byte[] dhash = dstHashes.get(key);
+                if (shash == null || dhash == null || !Arrays.equals(shash, dhash)) {
+                    changed.add(key);
                 }
-                Column col = pk.get(pkIdx);
-                sb.append("[");
-                sb.append(col.getColumnName());
-                sb.append("]=?");
-
-                // Grab the value of the parameter
-                Object val = key.get(pkIdx);
-                parms.add(val);
             }
-            sb.append(")\n");
-            if (++rowIndex >= count) {
-                break;
+        }
+        return changed;
+    }
+
+    /**
+     * Looks up the hash of a few rows by key, with the table's RowHashStrategy, so that the hashes match the merge-join
+     *
+     * @param con The connection to query
+     * @param keys No more than getRowLimit() keys
+     * @return The hash of each key that was found
+     * @throws Exception
+     */
+    public Map<Key, byte[]> readHashes(Connection con, List<Key> keys) throws Exception {
+        return readHashes(con, keys, getRowHash());
+    }
+
+    /**
+     * Looks up the hash of a few rows by key
+     *
+     * @param con The connection to query
+     * @param keys No more than getRowLimit() keys
+     * @param hash How the rows are hashed
+     * @return The hash of each key that was found
+     * @throws Exception
+     */
+    public Map<Key, byte[]> readHashes(Connection con, List<Key> keys, RowHashStrategy hash) throws Exception {
+        String prefix = "SELECT " + writeKeyColumns() + ", " + hash.writeSelect(this);
+        Map<Key, byte[]> hashes = new HashMap<>();
+        PreparedStatement stmt = createQuery(prefix, con, keys.iterator(), keys.size());
+        try (ResultSet rs = stmt.executeQuery()) {
+            RowHashStrategy.HashReader reader = hash.createReader(this, rs);
+            while (rs.next()) {
+                hashes.put(getPk(rs), reader.read());
             }
         }
-        String sql = String.format("%s\nFROM [%s]\nWHERE %s", prefix, getName(), sb.toString());
+        return hashes;
+    }
+
+    /**
+     * Looks up to count keys. The lookup is padded to a bucketed number of keys by repeating the last one, so that only
+     * a few shapes of it are ever prepared.
+     *
+     * @return A statement from the statement cache, with its parameters set
+     */
+    private PreparedStatement createQuery(String prefix, Connection con, Iterator<Key> keys, int count) {
+        List<Key> batch = new ArrayList<>();
+        while (keys.hasNext() && batch.size() < count) {
+            batch.add(keys.next()); // Consume as we go
+        }
+        int bucket = getKeyBucket(batch.size());
+        String sql = writeLookupQuery(prefix, bucket);
         try {
-            PreparedStatement stmt = con.prepareStatement(sql);
-            for (int i = 0; i < parms.size(); i++) {
-                Object javaVal = parms.get(i);
-                Object sqlVal = javaToSql(javaVal);
-                stmt.setObject(i + 1, sqlVal);
+            PreparedStatement stmt = prepare(con, sql);
+            int i = 1;
+            for (int row = 0; row < bucket; row++) {
+                Key key = batch.get(Math.min(row, batch.size() - 1));
+                for (int pkIdx = 0; pkIdx < key.size(); pkIdx++) {
+                    stmt.setObject(i++, javaToSql(key.get(pkIdx)));
+                }
             }
             return stmt;
         } catch (Exception ex) {
@@ -237,6 +748,25 @@ public class Table extends TreeMap<String, Column> {
         }
     }
 
+    /**
+     * @return A statement that looks up rows by key, with a parameter for each primary key column of each row
+     */
+    private String writeLookupQuery(String prefix, int rows) {
+        String cacheKey = prefix + "/" + rows;
+        String sql = lookupShapes.get(cacheKey);
+        if (sql != null) {
+            return sql;
+        }
+        List<String> terms = new ArrayList<>();
+        for (Column col : getPk()) {
+            terms.add("[" + col.getColumnName() + "]=?");
+        }
+        String row = "(" + Joiner.on(" AND ").join(terms) + ")\n";
+        sql = String.format("%s\nFROM [%s]\nWHERE %s", prefix, getName(), Joiner.on("\tOR ").join(Collections.nCopies(rows, row)));
+        lookupShapes.put(cacheKey, sql);
+        return sql;
+    }
+
     public static Object javaToSql(Object val) {
         if(val == null) {
             return null;
@@ -250,6 +780,9 @@ public class Table extends TreeMap<String, Column> {
         if(val instanceof Long) {
             return val;
         }
+        if(val instanceof Integer) {
+            return val;
+        }
         if(val instanceof java.sql.Date)
         {
         	return val;
@@ -257,17 +790,98 @@ public class Table extends TreeMap<String, Column> {
         throw new RuntimeException("Unknown type: " + val.getClass().getName());
     }
 
-    public void deleteRows(Connection dcon, Set<Key> keys, AtomicInteger currentMod) throws Exception {
+    /**
+     * Copies keys into a session temp table, so that a whole change set can be selected, deleted or updated with a
+     * single join instead of a chain of OR'd parameters. The temp table is created with SELECT INTO, so its columns
+     * have exactly the same types and collations as the primary key.
+     *
+     * @param con  The connection on which to stage the keys
+     * @param keys The keys to stage
+     * @return The number of statements that were run
+     * @throws Exception
+     */
+    public int stageKeys(Connection con, Collection<Key> keys) throws Exception {
         List<Column> pk = getPk();
-        int rowLimit = (int) Math.floor(maxKeys / pk.size());
-        for (int rowIndex = 0; rowIndex < keys.size(); ) {
-            int count = Math.min(keys.size() - rowIndex, rowLimit);
+        String cols = writeKeyColumns();
+        try (Statement stmt = con.createStatement()) {
+            stmt.executeUpdate(String.format("IF OBJECT_ID('tempdb..%s') IS NOT NULL DROP TABLE %s;\n" +
+                    "SELECT TOP 0 %s INTO %s FROM [%s];", keyTable, keyTable, cols, keyTable, getName()));
+        }
+        try (InsertWriter writer = new InsertWriter(con, this, keyTable, pk, true)) {
+            for (Key key : keys) {
+                Object[] vals = new Object[pk.size()];
+                for (int i = 0; i < pk.size(); i++) {
+                    vals[i] = javaToSql(key.get(i));
+                }
+                writer.add(vals);
+            }
+            writer.flush();
+            return writer.getStatementsRun() + 1;
+        } catch (Exception ex) {
+            throw new RuntimeException("Error staging keys for " + getName(), ex);
+        }
+    }
+
+    /**
+     * @return The join between this table, aliased as [t], and the staged keys, aliased as [k]
+     */
+    private String writeKeyJoin() {
+        return String.format("[%s] [t]\nINNER JOIN %s [k] ON %s", getName(), keyTable, writeKeyMatch("t", "k"));
+    }
+
+    /**
+     * @return A query that selects every column of the rows whose keys have been staged with stageKeys()
+     */
+    public String writeStagedSelectQuery() {
+        List<String> colNames = new ArrayList<>();
+        for(Column col : values()) {
+            colNames.add("[t].[" + col.getColumnName() + "]");
+        }
+        return String.format("SELECT %s\nFROM %s", Joiner.on(", ").join(colNames), writeKeyJoin());
+    }
+
+    /**
+     * @return A statement that deletes the rows whose keys have been staged with stageKeys()
+     */
+    public String writeStagedDeleteQuery() {
+        return String.format("DELETE [t]\nFROM %s", writeKeyJoin());
+    }
+
+    public void deleteRows(Connection dcon, Collection<Key> keys, AtomicLong currentMod) throws Exception {
+        if (keys.size() <= 0) {
+            return;
+        }
+        if (options.isKeyStaging()) {
+            long count = ChangeSet.count(keys);
             System.out.println("Deleting " + count + " rows from " + getName());
-            try (PreparedStatement deleteStmt = createDeleteQuery(dcon, keys, count)) {
-                deleteStmt.execute();
+            SyncMetrics.Batch batch = metrics.start(getName(), SyncStats.Phase.DELETE);
+            transactions.begin(dcon);
+            batch.addRoundTrips(stageKeys(dcon, keys));
+            try (Statement deleteStmt = dcon.createStatement()) {
+                deleteStmt.executeUpdate(writeStagedDeleteQuery());
             }
-            rowIndex += count;
+            transactions.written(dcon, count);
+            batch.addRoundTrips(1);
+            batch.finish(count);
             currentMod.addAndGet(count);
+            return;
+        }
+        Iterator<Key> it = keys.iterator();
+        long remaining = ChangeSet.count(keys);
+        while (remaining > 0) {
+            int size = batchSizer.getSize(SyncStats.Phase.DELETE);
+            int count = (int) Math.min(remaining, size);
+            long start = System.nanoTime();
+            System.out.println("Deleting " + count + " rows from " + getName());
+            SyncMetrics.Batch batch = metrics.start(getName(), SyncStats.Phase.DELETE);
+            transactions.begin(dcon);
+            createDeleteQuery(dcon, it, count).execute();
+            transactions.written(dcon, count);
+            batchSizer.record(SyncStats.Phase.DELETE, size, count, start);
+            batch.addRoundTrips(1);
+            batch.finish(count);
+            currentMod.addAndGet(count);
+            remaining -= count;
         }
     }
 
@@ -280,142 +894,437 @@ public class Table extends TreeMap<String, Column> {
      * @param keys The keys of the rows for which to query
      * @throws Exception
      */
-    public void insertRows(Connection scon, Connection dcon, Set<Key> keys, AtomicInteger currentMod) throws Exception {
+    public void insertRows(Connection scon, Connection dcon, Collection<Key> keys, AtomicLong currentMod) throws Exception {
         if (keys.size() <= 0) {
             return;
         }
 
-        int colCount = size();
         String sql = writeInsertQuery();
         //setIdentityInsert(dcon, true);
         setIdentityInsert(dcon, false);
-        List<Column> pk = getPk();
-        int rowLimit = (int) Math.floor(maxKeys / pk.size());
-        int size = keys.size();
-        List<String> pkValuesList = new ArrayList<String>();
-        while (keys.size() > 0) {
-            int count = Math.min(keys.size(), rowLimit);
-            try (PreparedStatement selectStmt = createSelectQuery(scon, keys, count)) {
-                try (ResultSet rs = selectStmt.executeQuery()) {
-                    ResultSetMetaData resultSetMetaData = rs.getMetaData();
-
-                    try (PreparedStatement insertStmt = dcon.prepareStatement(sql)) {
-                        long queryStart = System.currentTimeMillis();
-                        pkValuesList.clear();
-                        while (rs.next()) {
-                            StringBuffer pkValues = new StringBuffer();
-                            for (int i = 1; i <= colCount; i++) {
-                                for (Column pkColumn : pk) {
-                                    if ((resultSetMetaData.getColumnName(i)).equalsIgnoreCase(pkColumn.getColumnName())) {
-                                        if (pkValues.length() > 0) {
-                                            pkValues.append(", ");
-                                        }
-                                        pkValues.append(rs.getString(i));
-                                    }
-                                }
-                            }
-                            pkValuesList.add(pkValues.toString());
+        long size = ChangeSet.count(keys);
+        if (options.getApplyMode() == SyncOptions.ApplyMode.MERGE) {
+            mergeRows(scon, dcon, keys, Collections.<Key>emptySet(), currentMod);
+            return;
+        }
+        if (options.getApplyMode() == SyncOptions.ApplyMode.SET) {
+            sql = writeSetInsertQuery();
+        }
+        try {
+            copyRows(scon, dcon, keys, sql, false, currentMod, null);
+        } catch (Exception ex) {
+            throw new RuntimeException("Error inserting rows: " + sql, ex);
+        }
+        System.out.println("Batch inserted " + size + " rows into " + getName());
+    }
 
-                            insertStmt.clearParameters();
-                            for(int i = 1; i <= colCount; i++) {
-                                insertStmt.setObject(i, rs.getObject(i));
-                            }
-                            currentMod.incrementAndGet();
-                            insertStmt.addBatch();
+    /**
+     * Inserts every row from a query written by writeSelectQuery() into the destination, without comparing anything.
+     * The range has already been deleted, so a failed statement throws rather than leaving its rows out. With
+     * BulkInsert, each batch is loaded into #DbSyncRows and then copied into the table with INSERT ... WITH (TABLOCK)
+     * SELECT, which SQL Server can minimally log, unlike INSERT ... VALUES.
+     *
+     * @param rs   The source rows
+     * @param dcon The destination connection
+     * @return The number of rows copied
+     * @throws Exception
+     */
+    public long reloadRows(ResultSet rs, Connection dcon, AtomicLong currentMod) throws Exception {
+        setIdentityInsert(dcon, false);
+        long total = 0;
+        String applySql = null;
+        String target = "[" + getName() + "]";
+        if (options.isBulkInsert()) {
+            try (Statement stmt = dcon.createStatement()) {
+                stmt.executeUpdate(writeRowTableQuery());
+            }
+            applySql = writeSetInsertQuery("[" + getName() + "] WITH (TABLOCK)");
+            target = rowTable;
+        }
+        try (InsertWriter writer = new InsertWriter(dcon, this, target, new ArrayList<>(values()), true)) {
+            while (true) {
+                int size = batchSizer.getSize(SyncStats.Phase.RELOAD);
+                long start = System.nanoTime();
+                SyncMetrics.Batch batch = metrics.start(getName(), SyncStats.Phase.RELOAD);
+                int count = writeBatch(rs, dcon, null, writer, size, batch, currentMod);
+                if (count > 0) {
+                    batch.addRoundTrips(applyBatch(dcon, applySql, count, null));
+                    transactions.written(dcon, count);
+                    batchSizer.record(SyncStats.Phase.RELOAD, size, count, start);
+                    total += count;
+                }
+                batch.finish(count);
+                if (count < size) {
+                    break; // The source rows have run out
+                }
+            }
+        }
+        System.out.println("Reloaded " + total + " rows into " + getName());
+        return total;
+    }
+
+    public void updateRows(Connection scon, Connection dcon, Collection<Key> keys, AtomicLong currentMod) throws Exception {
+        if (keys.size() <= 0) {
+            return;
+        }
+        System.out.println("Updating " + ChangeSet.count(keys) + " rows in " + getName());
+        if (options.getApplyMode() == SyncOptions.ApplyMode.MERGE) {
+            mergeRows(scon, dcon, keys, Collections.<Key>emptySet(), currentMod);
+            return;
+        }
+        String sql = options.getApplyMode() == SyncOptions.ApplyMode.SET ? writeSetUpdateQuery() : writeUpdateQuery();
+        try {
+            copyRows(scon, dcon, keys, sql, true, currentMod, null);
+        } catch (Exception ex) {
+            throw new RuntimeException("Error updating rows!", ex);
+        }
+    }
+
+    /**
+     * Inserts and updates rows with a MERGE statement per batch, and deletes rows in the same statement. The source
+     * rows are loaded into #DbSyncRows on the destination, and the keys to delete into #DbSyncKeys. The first MERGE
+     * applies the deletes; if no upserts could be read from the source, a MERGE is run on its own to apply them.
+     *
+     * @param scon    The source connection
+     * @param dcon    The destination connection
+     * @param upserts The keys of the rows to insert or update
+     * @param deletes The keys of the rows to delete
+     * @throws Exception
+     */
+    public void mergeRows(Connection scon, Connection dcon, Collection<Key> upserts, Collection<Key> deletes,
+                          AtomicLong currentMod) throws Exception {
+        if (upserts.size() <= 0) {
+            deleteRows(dcon, deletes, currentMod);
+            return;
+        }
+        String sql = writeMergeQuery();
+        try {
+            metrics.get(getName(), SyncStats.Phase.MERGE).addRoundTrips(stageKeys(dcon, deletes));
+            AtomicLong changed = new AtomicLong();
+            long copied = copyRows(scon, dcon, upserts, sql, false, currentMod, changed);
+            long deleted;
+            if (copied > 0) {
+                // Every copied row was inserted or updated, so the rest of the rows changed are the deletes
+                deleted = Math.max(0, changed.get() - copied);
+            } else if (deletes.size() > 0) {
+                // The upserts are gone from the source, so no batch ran the MERGE that applies the staged deletes
+                SyncMetrics.Batch batch = metrics.start(getName(), SyncStats.Phase.MERGE);
+                transactions.begin(dcon);
+                try (Statement stmt = dcon.createStatement()) {
+                    deleted = Math.max(0, stmt.executeUpdate(sql));
+                    stmt.executeUpdate(String.format("TRUNCATE TABLE %s;", keyTable));
+                }
+                transactions.written(dcon, deleted);
+                batch.addRoundTrips(2);
+                batch.finish(deleted);
+            } else {
+                deleted = 0;
+            }
+            currentMod.addAndGet(deleted);
+        } catch (Exception ex) {
+            throw new RuntimeException("Error merging rows: " + sql, ex);
+        }
+    }
+
+    /**
+     * Reads the rows with the given keys from the source, and writes them to the destination in batches. For the
+     * ROW apply mode, updates run sql once per row, and inserts are packed into multi-row INSERT statements. For the
+     * SET and MERGE apply modes, each batch is loaded into #DbSyncRows on the destination, and then sql is run once to
+     * apply the whole batch.
+     *
+     * @param scon   The source connection
+     * @param dcon   The destination connection
+     * @param keys   The keys of the rows to copy
+     * @param sql    The statement that writes to the destination
+     * @param update True if sql is from writeUpdateQuery(), false otherwise
+     * @param changed Counts the rows that sql changed in the SET and MERGE apply modes, or null
+     * @return The number of rows read from the source and written
+     * @throws Exception
+     */
+    private long copyRows(Connection scon, Connection dcon, Collection<Key> keys, String sql, boolean update,
+                          AtomicLong currentMod, AtomicLong changed) throws Exception {
+        long copied = 0;
+        String applySql = null;
+        String target = "[" + getName() + "]";
+        SyncStats.Phase phase = options.getApplyMode() == SyncOptions.ApplyMode.MERGE ? SyncStats.Phase.MERGE
+                : update ? SyncStats.Phase.UPDATE : SyncStats.Phase.INSERT;
+        if (options.getApplyMode() != SyncOptions.ApplyMode.ROW) {
+            try (Statement stmt = dcon.createStatement()) {
+                stmt.executeUpdate(writeRowTableQuery());
+            }
+            applySql = sql;
+            target = rowTable;
+            update = false;
+        }
+        PreparedStatement updateStmt = update ? prepare(dcon, sql) : null;
+        try (InsertWriter writer = update ? null :
+                     new InsertWriter(dcon, this, target, new ArrayList<>(values()), applySql != null)) {
+            if (options.isKeyStaging()) {
+                SyncMetrics.Batch batch = metrics.start(getName(), phase);
+                batch.addRoundTrips(stageKeys(scon, keys) + 1); // The first batch pays for staging and selecting
+                try (ResultSet rs = prepare(scon, writeStagedSelectQuery()).executeQuery()) {
+                    while (true) {
+                        int size = batchSizer.getSize(phase);
+                        long start = System.nanoTime();
+                        int count = writeBatch(rs, dcon, updateStmt, writer, size, batch, currentMod);
+                        if (count > 0) {
+                            batch.addRoundTrips(applyBatch(dcon, applySql, count, changed));
+                            transactions.written(dcon, count);
+                            batchSizer.record(phase, size, count, start);
+                            copied += count;
                         }
-                        long batchStart = System.currentTimeMillis();
-                        System.out.println("Read " + count + " rows from " + getName() + " in " + (batchStart - queryStart) + "ms");
-                        try {
-                            insertStmt.executeBatch();
-                        } catch (BatchUpdateException e) {
-                            System.err.println("Batch Update Failed:  " + e.getMessage());
-                            int[] updateCounts = e.getUpdateCounts();
-                            for (int i = 0; i < updateCounts.length; i++) {
-                                String pkValuesForIndex = (pkValuesList != null ? pkValuesList.get(i) : "UNKNOWN");
-                                if (updateCounts[i] >= 0) {
-                                    System.err.println(i + ":  INSERT succeeded, rows = " + updateCounts[i] + " (" + pkValuesForIndex + ")");
-                                } else if (updateCounts[i] == Statement.SUCCESS_NO_INFO) {
-                                    System.err.println(i + ":  INSERT succeeded, rows unknown (" + pkValuesForIndex + ")");
-                                } else if (updateCounts[i] == Statement.EXECUTE_FAILED) {
-                                    System.err.println(i + ":  INSERT failed (" + pkValuesForIndex + ")");
-                                }
-                            }
-                        } catch (Exception ex) {
-                            throw new RuntimeException("Error inserting rows: " + sql, ex);
+                        batch.finish(count);
+                        if (count < size) {
+                            break; // The staged rows have run out
                         }
-                        long end = System.currentTimeMillis();
-                        System.out.println("Wrote " + count + " rows to " + getName() + " in " + (end - batchStart) + "ms");
+                        batch = metrics.start(getName(), phase);
                     }
                 }
-            } catch (Exception ex) {
-                throw new RuntimeException("Error inserting rows: " + sql, ex);
+                return copied;
+            }
+            Iterator<Key> it = keys.iterator();
+            long remaining = ChangeSet.count(keys);
+            while (remaining > 0) {
+                int size = batchSizer.getSize(phase);
+                int count = (int) Math.min(remaining, size);
+                long start = System.nanoTime();
+                SyncMetrics.Batch batch = metrics.start(getName(), phase);
+                try (ResultSet rs = createSelectQuery(scon, it, count).executeQuery()) {
+                    int written = writeBatch(rs, dcon, updateStmt, writer, count, batch, currentMod);
+                    batch.addRoundTrips(1 + applyBatch(dcon, applySql, written, changed));
+                    transactions.written(dcon, written);
+                    batch.finish(written);
+                    copied += written;
+                }
+                batchSizer.record(phase, size, count, start);
+                remaining -= count;
             }
         }
-        System.out.println("Batch inserted " + size + " rows into " + getName());
+        return copied;
     }
 
-    public void updateRows(Connection scon, Connection dcon, Set<Key> keys, AtomicInteger currentMod) throws Exception {
-        if (keys.size() <= 0) {
-            return;
+    /**
+     * Runs a set based statement against the rows loaded into #DbSyncRows, then empties the staging tables
+     *
+     * @param dcon     The destination connection
+     * @param applySql The set based statement, or null if the rows were written one at a time
+     * @param count    The number of rows in the batch
+     * @param changed  Counts the rows that applySql changed, or null
+     * @return The number of statements that were run
+     * @throws Exception
+     */
+    private int applyBatch(Connection dcon, String applySql, int count, AtomicLong changed) throws Exception {
+        if (applySql == null || count <= 0) {
+            return 0;
+        }
+        long start = System.currentTimeMillis();
+        try (Statement stmt = dcon.createStatement()) {
+            int rows = stmt.executeUpdate(applySql);
+            if (changed != null) {
+                changed.addAndGet(Math.max(0, rows));
+            }
+            stmt.executeUpdate(String.format("TRUNCATE TABLE %s;\n" +
+                    "IF OBJECT_ID('tempdb..%s') IS NOT NULL TRUNCATE TABLE %s;", rowTable, keyTable, keyTable));
+        }
+        long time = System.currentTimeMillis() - start;
+        System.out.println("Applied " + count + " rows to " + getName() + " from " + rowTable + " in " + time + "ms (" +
+                rowsPerSecond(count, time) + " rows/s)");
+        return 2;
+    }
+
+    private static long rowsPerSecond(int rows, long millis) {
+        return millis <= 0 ? rows * 1000L : rows * 1000L / millis;
+    }
+
+    /**
+     * @return SQL that creates an empty #DbSyncRows with the same columns as this table
+     */
+    public String writeRowTableQuery() {
+        List<String> colNames = new ArrayList<>();
+        for(Column col : values()) {
+            colNames.add("[" + col.getColumnName() + "]");
+        }
+        return String.format("IF OBJECT_ID('tempdb..%s') IS NOT NULL DROP TABLE %s;\n" +
+                "SELECT TOP 0 %s INTO %s FROM [%s];", rowTable, rowTable, Joiner.on(", ").join(colNames), rowTable,
+                getName());
+    }
+
+    /**
+     * @return A statement that inserts every row in #DbSyncRows into this table
+     */
+    public String writeSetInsertQuery() {
+        return writeSetInsertQuery("[" + getName() + "]");
+    }
+
+    /**
+     * @param target The bracketed name of the table to insert into, with any table hints
+     * @return A statement that inserts every row in #DbSyncRows into the target
+     */
+    public String writeSetInsertQuery(String target) {
+        List<String> colNames = new ArrayList<>();
+        for(Column col : values()) {
+            colNames.add("[" + col.getColumnName() + "]");
         }
+        String cols = Joiner.on(", ").join(colNames);
+        return String.format("INSERT INTO %s (%s)\nSELECT %s FROM %s", target, cols, cols, rowTable);
+    }
+
+    /**
+     * @return A statement that updates this table from every row in #DbSyncRows
+     */
+    public String writeSetUpdateQuery() {
+        return String.format("UPDATE [t] SET\n%s\nFROM [%s] [t]\nINNER JOIN %s [s] ON %s",
+                writeSetClause(), getName(), rowTable, writeKeyMatch("t", "s"));
+    }
+
+    /**
+     * @return A MERGE statement that upserts every row in #DbSyncRows, and deletes every row in #DbSyncKeys
+     */
+    public String writeMergeQuery() {
+        List<String> colNames = new ArrayList<>();
+        List<String> deleteNames = new ArrayList<>();
+        List<String> valueNames = new ArrayList<>();
+        for(Column col : values()) {
+            String colName = "[" + col.getColumnName() + "]";
+            colNames.add(colName);
+            deleteNames.add(col.isPrimaryKey() ? colName : "NULL");
+            valueNames.add("[s]." + colName);
+        }
+        String cols = Joiner.on(", ").join(colNames);
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("MERGE [%s] AS [t]\nUSING (\n", getName()));
+        sb.append(String.format("\tSELECT %s, 'U' AS [DbSyncAction] FROM %s\n", cols, rowTable));
+        sb.append("\tUNION ALL\n");
+        sb.append(String.format("\tSELECT %s, 'D' FROM %s\n", Joiner.on(", ").join(deleteNames), keyTable));
+        sb.append(String.format(") AS [s] ON %s\n", writeKeyMatch("t", "s")));
+        sb.append("WHEN MATCHED AND [s].[DbSyncAction] = 'D' THEN DELETE\n");
+        if (size() > getPk().size()) {
+            sb.append(String.format("WHEN MATCHED THEN UPDATE SET\n%s\n", writeSetClause()));
+        }
+        sb.append(String.format("WHEN NOT MATCHED BY TARGET AND [s].[DbSyncAction] = 'U' THEN\n\tINSERT (%s)\n\tVALUES (%s);",
+                cols, Joiner.on(", ").join(valueNames)));
+        return sb.toString();
+    }
+
+    /**
+     * @return The SET clause for updating every non-key column of [t] from [s]
+     */
+    private String writeSetClause() {
+        List<String> updateCols = new ArrayList<>();
         List<Column> pk = getPk();
-        int rowLimit = (int) Math.floor(maxKeys / pk.size());
+        for(Column col : values()) {
+            if(pk.contains(col)) {
+                continue;
+            }
+            String colName = col.getColumnName();
+            updateCols.add(String.format("\t[t].[%s] = [s].[%s]", colName, colName));
+        }
+        return Joiner.on(",\n").join(updateCols);
+    }
+
+    /**
+     * @return A condition that matches the primary key columns of two aliased tables
+     */
+    private String writeKeyMatch(String left, String right) {
+        List<String> terms = new ArrayList<>();
+        for (Column col : getPk()) {
+            terms.add(String.format("[%s].[%s] = [%s].[%s]", left, col.getColumnName(), right, col.getColumnName()));
+        }
+        return Joiner.on(" AND ").join(terms);
+    }
+
+    /**
+     * Reads up to limit rows from a ResultSet, and writes them to the destination, in a transaction if the writes are
+     * being grouped
+     *
+     * @param rs         The rows to write
+     * @param dcon       The destination connection
+     * @param updateStmt The update statement, or null if the rows are being inserted
+     * @param writer     The insert writer, or null if the rows are being updated
+     * @param limit      The most rows to read
+     * @param batch      The metrics of the batch, to which the bytes and statements written are added
+     * @return The number of rows that were read
+     * @throws Exception
+     */
+    private int writeBatch(ResultSet rs, Connection dcon, PreparedStatement updateStmt, InsertWriter writer, int limit,
+                           SyncMetrics.Batch batch, AtomicLong currentMod) throws Exception {
+        transactions.begin(dcon);
         int colCount = size();
+        List<Column> pk = getPk();
+        ResultSetMetaData resultSetMetaData = rs.getMetaData();
+        int statementsRun = writer == null ? 0 : writer.getStatementsRun();
         List<String> pkValuesList = new ArrayList<String>();
-        for (int rowIndex = 0; rowIndex < keys.size(); ) {
-            int count = Math.min(keys.size() - rowIndex, rowLimit);
-            System.out.println("Updating " + count + " rows in " + getName());
-            try (PreparedStatement selectStmt = createSelectQuery(scon, keys, count)) {
-                try (ResultSet rs = selectStmt.executeQuery()) {
-                    ResultSetMetaData resultSetMetaData = rs.getMetaData();
-
-                    String sql = writeUpdateQuery();
-                    try (PreparedStatement updateStmt = dcon.prepareStatement(sql)) {
-                        pkValuesList.clear();
-                        while (rs.next()) {
-                            StringBuffer pkValues = new StringBuffer();
-                            for (int i = 1; i <= colCount; i++) {
-                                for (Column pkColumn : pk) {
-                                    if ((resultSetMetaData.getColumnName(i)).equalsIgnoreCase(pkColumn.getColumnName())) {
-                                        if (pkValues.length() > 0) {
-                                            pkValues.append(", ");
-                                        }
-                                        pkValues.append(rs.getString(i));
-                                    }
-                                }
+        long queryStart = System.currentTimeMillis();
+        int count = 0;
+        while (count < limit && rs.next()) {
+            if (updateStmt != null) {
+                StringBuffer pkValues = new StringBuffer();
+                for (int i = 1; i <= colCount; i++) {
+                    for (Column pkColumn : pk) {
+                        if ((resultSetMetaData.getColumnName(i)).equalsIgnoreCase(pkColumn.getColumnName())) {
+                            if (pkValues.length() > 0) {
+                                pkValues.append(", ");
                             }
-                            pkValuesList.add(pkValues.toString());
-
-                            updateRow(updateStmt, rs);
-                            currentMod.incrementAndGet();
-                        }
-                        try {
-                            updateStmt.executeBatch();
-                        } catch (BatchUpdateException e) {
-                            System.err.println("Batch Update Failed:  " + e.getMessage());
-                            int[] updateCounts = e.getUpdateCounts();
-                            for (int i = 0; i < updateCounts.length; i++) {
-                                String pkValuesForIndex = (pkValuesList != null ? pkValuesList.get(i) : "UNKNOWN");
-                                if (updateCounts[i] >= 0) {
-                                    System.err.println(i + ":  UPDATE succeeded, rows = " + updateCounts[i] + " (" + pkValuesForIndex + ")");
-                                } else if (updateCounts[i] == Statement.SUCCESS_NO_INFO) {
-                                    System.err.println(i + ":  UPDATE succeeded, rows unknown (" + pkValuesForIndex + ")");
-                                } else if (updateCounts[i] == Statement.EXECUTE_FAILED) {
-                                    System.err.println(i + ":  UPDATE failed (" + pkValuesForIndex + ")");
-                                }
-                            }
-                        } catch (Exception ex) {
-                            throw new RuntimeException("Error updating rows!", ex);
+                            pkValues.append(rs.getString(i));
                         }
                     }
                 }
+                pkValuesList.add(pkValues.toString());
+                batch.addBytes(updateRow(updateStmt, rs));
+            } else {
+                Object[] vals = new Object[colCount];
+                for(int i = 1; i <= colCount; i++) {
+                    vals[i - 1] = rs.getObject(i);
+                    batch.addBytes(SyncMetrics.sizeOf(vals[i - 1]));
+                }
+                writer.add(vals);
             }
-            rowIndex += count;
+            currentMod.incrementAndGet();
+            count++;
         }
+        if (count == 0) {
+            batch.addRoundTrips(writer == null ? 0 : writer.getStatementsRun() - statementsRun);
+            return 0;
+        }
+        long batchStart = System.currentTimeMillis();
+        System.out.println("Read " + count + " rows from " + getName() + " in " + (batchStart - queryStart) + "ms");
+        if (writer != null) {
+            writer.flush();
+            batch.addRoundTrips(writer.getStatementsRun() - statementsRun);
+        } else {
+            batch.addRoundTrips(1);
+            try {
+                updateStmt.executeBatch();
+            } catch (BatchUpdateException e) {
+                System.err.println("Batch Update Failed:  " + e.getMessage());
+                int[] updateCounts = e.getUpdateCounts();
+                int failed = count - updateCounts.length; // The driver may stop at the first failure
+                for (int i = 0; i < updateCounts.length; i++) {
+                    String pkValuesForIndex = (pkValuesList != null ? pkValuesList.get(i) : "UNKNOWN");
+                    if (updateCounts[i] >= 0) {
+                        System.err.println(i + ":  UPDATE succeeded, rows = " + updateCounts[i] + " (" + pkValuesForIndex + ")");
+                    } else if (updateCounts[i] == Statement.SUCCESS_NO_INFO) {
+                        System.err.println(i + ":  UPDATE succeeded, rows unknown (" + pkValuesForIndex + ")");
+                    } else if (updateCounts[i] == Statement.EXECUTE_FAILED) {
+                        System.err.println(i + ":  UPDATE failed (" + pkValuesForIndex + ")");
+                        failed++;
+                    }
+                }
+                addSkippedRows(failed);
+            }
+        }
+        long end = System.currentTimeMillis();
+        System.out.println("Wrote " + count + " rows to " + getName() + " in " + (end - batchStart) + "ms (" +
+                rowsPerSecond(count, end - batchStart) + " rows/s)");
+        return count;
     }
 
-    private void updateRow(PreparedStatement stmt, ResultSet rs) throws Exception {
+    /**
+     * @return The approximate size of the row's values
+     */
+    private long updateRow(PreparedStatement stmt, ResultSet rs) throws Exception {
         stmt.clearParameters();
+        long bytes = 0;
         int i = 0;
         List<Column> pk = getPk();
         for (Column col : values()) {
@@ -425,13 +1334,16 @@ public class Table extends TreeMap<String, Column> {
             String colName = col.getColumnName();
             Object val = rs.getObject(colName);
             stmt.setObject(++i, val);
+            bytes += SyncMetrics.sizeOf(val);
         }
         for(Column col : pk) {
             String colName = col.getColumnName();
             Object val = rs.getObject(colName);
             stmt.setObject(++i, val);
+            bytes += SyncMetrics.sizeOf(val);
         }
         stmt.addBatch();
+        return bytes;
     }
 
     /**
@@ -462,10 +1374,22 @@ public class Table extends TreeMap<String, Column> {
      * @throws Exception
      */
     public DbComparator.ChangeType detectChange(ResultSet srs, ResultSet drs) throws Exception {
+        return detectChange(getPk(srs), getHash(srs), getPk(drs), getHash(drs));
+    }
+
+    /**
+     * The join logic from detectChange(ResultSet, ResultSet), for rows that have already been decoded. A null key
+     * means that side has been exhausted.
+     *
+     * @param srcPk The source primary key, or null
+     * @param shash The source hash, or null
+     * @param dstPk The destination primary key, or null
+     * @param dhash The destination hash, or null
+     * @return A ChangeType indicating what action should be taken to sync the two databases
+     */
+    public DbComparator.ChangeType detectChange(Key srcPk, byte[] shash, Key dstPk, byte[] dhash) {
         // Verify we're on the same row
-        Key srcPk = getPk(srs);
-        Key dstPk = getPk(drs);
-        int eq = Key.compare(srcPk, dstPk);
+        int eq = getKeyComparator().compare(srcPk, dstPk);
 
 /*
 Left		Right
@@ -486,8 +1410,6 @@ null		E			Left > right, delete E from right
         }
 
         // Keys match, check hashes
-        byte[] shash = getHash(srs);
-        byte[] dhash = getHash(drs);
         if (shash == null && dhash == null) {
             throw new RuntimeException("Both rows are null!");
         }
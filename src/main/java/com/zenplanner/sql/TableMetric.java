@@ -0,0 +1,154 @@
+package com.zenplanner.sql;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The work done on one table in one phase: rows, bytes and round trips, and a histogram of how long each batch took.
+ * The histogram buckets double in width, starting at 1 microsecond, so percentiles are accurate to within a factor of
+ * two.
+ */
+public class TableMetric implements TableMetricMBean {
+    private static final int bucketCount = 40;
+
+    private final String table;
+    private final SyncStats.Phase phase;
+    private final AtomicLong rows = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong roundTrips = new AtomicLong();
+    private final AtomicLong nanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private final AtomicLongArray buckets = new AtomicLongArray(bucketCount);
+
+    public TableMetric(String table, SyncStats.Phase phase) {
+        this.table = table;
+        this.phase = phase;
+    }
+
+    /**
+     * Adds one batch
+     *
+     * @param rows The number of rows
+     * @param bytes The approximate size of the rows' values, or 0 if it isn't known
+     * @param roundTrips The number of statements sent to a server
+     * @param elapsed How long the batch took, in nanoseconds
+     */
+    public void record(long rows, long bytes, long roundTrips, long elapsed) {
+        this.rows.addAndGet(rows);
+        this.bytes.addAndGet(bytes);
+        this.roundTrips.addAndGet(roundTrips);
+        this.nanos.addAndGet(elapsed);
+        long max;
+        while (elapsed > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, elapsed)) {
+            // Lost a race with another batch, try again
+        }
+        long micros = Math.max(1, elapsed / 1000);
+        int bucket = Math.min(bucketCount - 1, 63 - Long.numberOfLeadingZeros(micros));
+        buckets.incrementAndGet(bucket);
+    }
+
+    /**
+     * Adds statements that weren't part of a timed batch
+     */
+    public void addRoundTrips(long roundTrips) {
+        this.roundTrips.addAndGet(roundTrips);
+    }
+
+    @Override
+    public String getTable() {
+        return table;
+    }
+
+    @Override
+    public String getPhase() {
+        return phase.name();
+    }
+
+    @Override
+    public long getRows() {
+        return rows.get();
+    }
+
+    @Override
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    @Override
+    public long getRoundTrips() {
+        return roundTrips.get();
+    }
+
+    @Override
+    public long getBatches() {
+        long batches = 0;
+        for (int i = 0; i < bucketCount; i++) {
+            batches += buckets.get(i);
+        }
+        return batches;
+    }
+
+    /**
+     * @return The time spent on every batch, in nanoseconds
+     */
+    public long getNanos() {
+        return nanos.get();
+    }
+
+    @Override
+    public long getTotalMillis() {
+        return nanos.get() / 1000000;
+    }
+
+    @Override
+    public double getP50Millis() {
+        return getPercentileMillis(0.50);
+    }
+
+    @Override
+    public double getP95Millis() {
+        return getPercentileMillis(0.95);
+    }
+
+    @Override
+    public double getP99Millis() {
+        return getPercentileMillis(0.99);
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return maxNanos.get() / 1000000.0;
+    }
+
+    /**
+     * @param fraction The fraction of batches, between 0 and 1
+     * @return The upper bound of the histogram bucket that holds the batch at that fraction, in milliseconds
+     */
+    public double getPercentileMillis(double fraction) {
+        long batches = getBatches();
+        if (batches == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(fraction * batches);
+        long seen = 0;
+        for (int i = 0; i < bucketCount; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(getMaxMillis(), (2L << i) / 1000.0);
+            }
+        }
+        return getMaxMillis();
+    }
+
+    /**
+     * @return The count of batches in each histogram bucket, the bucket at index i holding those under 2^(i+1)
+     * microseconds
+     */
+    public long[] getHistogram() {
+        long[] counts = new long[bucketCount];
+        for (int i = 0; i < bucketCount; i++) {
+            counts[i] = buckets.get(i);
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,28 @@
+package com.zenplanner.sql;
+
+/**
+ * The JMX view of a TableMetric
+ */
+public interface TableMetricMBean {
+    String getTable();
+
+    String getPhase();
+
+    long getRows();
+
+    long getBytes();
+
+    long getRoundTrips();
+
+    long getBatches();
+
+    long getTotalMillis();
+
+    double getP50Millis();
+
+    double getP95Millis();
+
+    double getP99Millis();
+
+    double getMaxMillis();
+}
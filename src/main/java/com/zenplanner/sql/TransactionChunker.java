@@ -0,0 +1,94 @@
+package com.zenplanner.sql;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Groups the writes to a table into transactions of CommitRows rows or CommitBatches batches, whichever comes first,
+ * instead of committing every statement on its own. Each commit waits for the log to be flushed, so fewer, larger
+ * transactions spend less time waiting on it. With neither option set, the destination stays in autocommit.
+ *
+ * A transaction is open on a connection from its first write until it reaches the limit, or until commit() is called
+ * once the table's changes have all been applied.
+ */
+public class TransactionChunker {
+    private final Table table;
+    private final Map<Connection, Chunk> open = new ConcurrentHashMap<>();
+
+    public TransactionChunker(Table table) {
+        this.table = table;
+    }
+
+    /**
+     * @return True if writes are grouped into transactions
+     */
+    public boolean isEnabled() {
+        SyncOptions options = table.getOptions();
+        return options.getCommitRows() > 0 || options.getCommitBatches() > 0;
+    }
+
+    /**
+     * Starts a transaction on the connection, if there isn't one open already, before a batch is written
+     *
+     * @param con The destination connection
+     * @throws SQLException
+     */
+    public void begin(Connection con) throws SQLException {
+        if (!isEnabled() || open.containsKey(con)) {
+            return;
+        }
+        con.setAutoCommit(false);
+        open.put(con, new Chunk());
+    }
+
+    /**
+     * Counts a batch that has been written, and commits once the transaction has reached the limit
+     *
+     * @param con The destination connection
+     * @param rows The number of rows in the batch
+     * @throws SQLException
+     */
+    public void written(Connection con, long rows) throws SQLException {
+        Chunk chunk = open.get(con);
+        if (chunk == null) {
+            return;
+        }
+        chunk.rows += rows;
+        chunk.batches++;
+        SyncOptions options = table.getOptions();
+        if ((options.getCommitRows() > 0 && chunk.rows >= options.getCommitRows())
+                || (options.getCommitBatches() > 0 && chunk.batches >= options.getCommitBatches())) {
+            con.commit();
+            chunk.rows = 0;
+            chunk.batches = 0;
+        }
+    }
+
+    /**
+     * Commits the open transaction, if there is one, and returns the connection to autocommit
+     *
+     * @param con The destination connection
+     * @throws SQLException
+     */
+    public void commit(Connection con) throws SQLException {
+        if (open.remove(con) == null) {
+            return;
+        }
+        con.commit();
+        con.setAutoCommit(true);
+    }
+
+    /**
+     * Forgets the transactions of a previous run, whose connections have since been closed
+     */
+    public void reset() {
+        open.clear();
+    }
+
+    private static class Chunk {
+        private long rows;
+        private int batches;
+    }
+}
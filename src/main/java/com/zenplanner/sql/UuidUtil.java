@@ -40,11 +40,18 @@ public class UuidUtil {
      * @return A UUID
      */
     public static UUID byteArrayToUuid(byte[] bytes) {
-        ByteBuffer bb = transformUuid(bytes);
-        long hi = bb.getLong();
-        long low = bb.getLong();
-        UUID uuid = new UUID(hi, low);
-        return uuid;
+        if (bytes.length != 16) {
+            throw new RuntimeException("Invalid UUID bytes!");
+        }
+        // Same as transformUuid(), but straight into the longs: time_low, time_mid and time_hi are byte swapped
+        long hi = (bytes[3] & 0xFFL) << 56 | (bytes[2] & 0xFFL) << 48 | (bytes[1] & 0xFFL) << 40
+                | (bytes[0] & 0xFFL) << 32 | (bytes[5] & 0xFFL) << 24 | (bytes[4] & 0xFFL) << 16
+                | (bytes[7] & 0xFFL) << 8 | (bytes[6] & 0xFFL);
+        long low = 0;
+        for (int i = 8; i < 16; i++) {
+            low = (low << 8) | (bytes[i] & 0xFFL);
+        }
+        return new UUID(hi, low);
     }
 
     /**
@@ -55,51 +62,42 @@ public class UuidUtil {
      * @return An integer that is either positive, negative, or zero
      */
     public static int sqlUuidCompare(UUID leftUuid, UUID rightUuid) {
-        // TODO: uuidToByteArray creates garbage! Use getMostSignificantBits() and bitwise logic to compare unboxed
-        byte[] leftBytes = uuidToByteArray(leftUuid);
-        byte[] rightBytes = uuidToByteArray(rightUuid);
-
-        // Compare node
-        for(int i = 10; i < 16; i++) {
-            int val = (leftBytes[i] & 0xFF) - (rightBytes[i] & 0xFF);
-            if(val != 0) {
-                return val;
-            }
+        long leftHi = leftUuid.getMostSignificantBits();
+        long rightHi = rightUuid.getMostSignificantBits();
+        long leftLow = leftUuid.getLeastSignificantBits();
+        long rightLow = rightUuid.getLeastSignificantBits();
+
+        // Compare node, the low 6 bytes, which are stored in order
+        int val = Long.compare(leftLow & 0xFFFFFFFFFFFFL, rightLow & 0xFFFFFFFFFFFFL);
+        if(val != 0) {
+            return val;
         }
 
-        // Compare clock_seq
-        for(int i = 8; i < 10; i++) {
-            int val = (leftBytes[i] & 0xFF) - (rightBytes[i] & 0xFF);
-            if(val != 0) {
-                return val;
-            }
+        // Compare clock_seq, also stored in order
+        val = Long.compare(leftLow >>> 48, rightLow >>> 48);
+        if(val != 0) {
+            return val;
         }
 
-        // Compare time_hi
-        for(int i = 6; i < 8; i++) {
-            int val = (leftBytes[i] & 0xFF) - (rightBytes[i] & 0xFF);
-            if(val != 0) {
-                return val;
-            }
+        // Compare time_hi, stored byte swapped
+        val = Integer.compare(swap16((int) leftHi), swap16((int) rightHi));
+        if(val != 0) {
+            return val;
         }
 
-        // Compare time_mid
-        for(int i = 4; i < 6; i++) {
-            int val = (leftBytes[i] & 0xFF) - (rightBytes[i] & 0xFF);
-            if(val != 0) {
-                return val;
-            }
+        // Compare time_mid, stored byte swapped
+        val = Integer.compare(swap16((int) (leftHi >>> 16)), swap16((int) (rightHi >>> 16)));
+        if(val != 0) {
+            return val;
         }
 
-        // Compare time_low
-        for(int i = 0; i < 4; i++) {
-            int val = (leftBytes[i] & 0xFF) - (rightBytes[i] & 0xFF);
-            if(val != 0) {
-                return val;
-            }
-        }
+        // Compare time_low, stored byte swapped
+        return Integer.compareUnsigned(Integer.reverseBytes((int) (leftHi >>> 32)),
+                Integer.reverseBytes((int) (rightHi >>> 32)));
+    }
 
-        return 0; // They are equal!
+    private static int swap16(int val) {
+        return ((val & 0xFF) << 8) | ((val >>> 8) & 0xFF);
     }
 
     /**
@@ -0,0 +1,83 @@
+package com.zenplanner.sql;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * The connections owned by a single sync worker. The apply pair is only opened when it is first needed. Closing them
+ * also evicts their statements from the StatementCache.
+ */
+public class WorkerConnections implements AutoCloseable {
+    private final ConnectionFactory factory;
+    private final StatementCache statements;
+    private Connection source;
+    private Connection dest;
+    private Connection applySource;
+    private Connection applyDest;
+
+    public WorkerConnections(ConnectionFactory factory, StatementCache statements) {
+        this.factory = factory;
+        this.statements = statements;
+    }
+
+    /**
+     * @return The source connection used to compare tables
+     */
+    public Connection getSource() throws SQLException {
+        if (source == null) {
+            source = factory.openSource();
+        }
+        return source;
+    }
+
+    /**
+     * @return The destination connection used to compare tables
+     */
+    public Connection getDest() throws SQLException {
+        if (dest == null) {
+            dest = factory.openDestination();
+        }
+        return dest;
+    }
+
+    /**
+     * @return A second source connection, used to read changed rows while the comparison is still running
+     */
+    public Connection getApplySource() throws SQLException {
+        if (applySource == null) {
+            applySource = factory.openSource();
+        }
+        return applySource;
+    }
+
+    /**
+     * @return A second destination connection, used to write changes while the comparison is still running
+     */
+    public Connection getApplyDest() throws SQLException {
+        if (applyDest == null) {
+            applyDest = factory.openDestination();
+        }
+        return applyDest;
+    }
+
+    @Override
+    public void close() throws SQLException {
+        SQLException error = null;
+        for (Connection con : new Connection[]{source, dest, applySource, applyDest}) {
+            if (con == null) {
+                continue;
+            }
+            statements.evict(con);
+            try {
+                con.close();
+            } catch (SQLException ex) {
+                if (error == null) {
+                    error = ex;
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+}
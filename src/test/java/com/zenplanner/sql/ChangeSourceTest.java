@@ -0,0 +1,185 @@
+package com.zenplanner.sql;
+
+import junit.framework.Assert;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Feeds the changes of a FakeChangeSource to the real change sinks, which apply them to a Table over FakeConnections,
+ * and checks the statements that reach the destination
+ */
+public class ChangeSourceTest extends TestCase {
+    private static final Map<String, List<Object>> noFilters = new HashMap<>();
+
+    public ChangeSourceTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(ChangeSourceTest.class);
+    }
+
+    public void testNetChanges() throws Exception {
+        FakeChangeSource source = new FakeChangeSource();
+        byte[] since = recordNetChanges(source);
+        Table table = TestTables.createTable(SyncOptions.RowHash.MD5, false);
+        FakeConnection src = createSource(table);
+        FakeConnection dst = new FakeConnection(table);
+        AtomicLong modCount = new AtomicLong();
+
+        ChangeSink sink = new ChangeCollector(table, src.getConnection(), dst.getConnection(), true, modCount,
+                new AtomicLong());
+        readInto(source, since, table, sink);
+        sink.finish();
+        assertNetChanges(dst);
+        Assert.assertEquals(4L, modCount.get());
+    }
+
+    public void testPipeline() throws Exception {
+        FakeChangeSource source = new FakeChangeSource();
+        byte[] since = recordNetChanges(source);
+        Table table = TestTables.createTable(SyncOptions.RowHash.MD5, false);
+        FakeConnection src = createSource(table);
+        FakeConnection dst = new FakeConnection(table);
+        AtomicLong modCount = new AtomicLong();
+
+        ChangeSink sink = new ChangePipeline(table, src.getConnection(), dst.getConnection(), true, 2, modCount,
+                new AtomicLong());
+        readInto(source, since, table, sink);
+        sink.finish();
+        assertNetChanges(dst);
+        Assert.assertEquals(4L, modCount.get());
+    }
+
+    public void testDeletesNotAllowed() throws Exception {
+        FakeChangeSource source = new FakeChangeSource();
+        byte[] since = source.readVersion(null);
+        source.record(DbComparator.ChangeType.INSERT, TestTables.key(1));
+        source.record(DbComparator.ChangeType.DELETE, TestTables.key(2));
+        Table table = TestTables.createTable(SyncOptions.RowHash.MD5, false);
+        FakeConnection src = createSource(table);
+        FakeConnection dst = new FakeConnection(table);
+        AtomicLong modCount = new AtomicLong();
+
+        ChangeSink sink = new ChangeCollector(table, src.getConnection(), dst.getConnection(), false, modCount,
+                new AtomicLong());
+        readInto(source, since, table, sink);
+        sink.finish();
+        Assert.assertEquals(1, dst.getStatements("INSERT").size());
+        Assert.assertTrue(dst.getStatements("INSERT").get(0).endsWith("[1, one]"));
+        Assert.assertEquals(0, dst.getStatements("DELETE").size());
+        Assert.assertEquals(1L, modCount.get());
+    }
+
+    public void testUnconfirmedUpdates() throws Exception {
+        FakeChangeSource source = new FakeChangeSource();
+        byte[] since = source.readVersion(null);
+        source.record(DbComparator.ChangeType.UPDATE, TestTables.key(1));
+        source.record(DbComparator.ChangeType.UPDATE, TestTables.key(2));
+        Table table = TestTables.createTable(SyncOptions.RowHash.CHECKSUM, false);
+        FakeConnection src = createSource(table);
+        FakeConnection dst = new FakeConnection(table);
+        dst.addRow(1L, "one"); // Already the same, so the prefilter's candidate is dropped
+        dst.addRow(2L, "old");
+        AtomicLong modCount = new AtomicLong();
+
+        ChangeSink sink = new ChangeCollector(table, src.getConnection(), dst.getConnection(), true, modCount,
+                new AtomicLong());
+        readInto(source, since, table, sink);
+        sink.finish();
+        List<String> updates = dst.getStatements("UPDATE");
+        Assert.assertEquals(1, updates.size());
+        Assert.assertTrue(updates.get(0).endsWith("[two, 2]"));
+        Assert.assertEquals(1L, modCount.get());
+    }
+
+    public void testMergeWithVanishedUpserts() throws Exception {
+        FakeChangeSource source = new FakeChangeSource();
+        byte[] since = source.readVersion(null);
+        source.record(DbComparator.ChangeType.INSERT, TestTables.key(5)); // Deleted from the source since
+        source.record(DbComparator.ChangeType.DELETE, TestTables.key(3));
+        source.record(DbComparator.ChangeType.DELETE, TestTables.key(4));
+        Table table = TestTables.createTable(SyncOptions.RowHash.MD5, false);
+        table.getOptions().setApplyMode(SyncOptions.ApplyMode.MERGE);
+        FakeConnection src = createSource(table);
+        FakeConnection dst = new FakeConnection(table);
+        AtomicLong currentMod = new AtomicLong();
+
+        ChangeSink sink = new ChangeCollector(table, src.getConnection(), dst.getConnection(), true, new AtomicLong(),
+                currentMod);
+        readInto(source, since, table, sink);
+        sink.finish();
+        Assert.assertEquals(1, dst.getStatements("MERGE").size());
+        Assert.assertEquals(0, dst.getStatements("INSERT INTO #DbSyncRows").size());
+        Assert.assertEquals(1, dst.getStatements("TRUNCATE TABLE #DbSyncKeys").size());
+        // The MERGE's update count, which FakeConnection always reports as 1, not the number of keys
+        Assert.assertEquals(1L, currentMod.get());
+    }
+
+    public void testCleanup() throws Exception {
+        FakeChangeSource source = new FakeChangeSource();
+        byte[] since = source.readVersion(null);
+        source.record(DbComparator.ChangeType.INSERT, TestTables.key(1));
+        long version = source.record(DbComparator.ChangeType.INSERT, TestTables.key(2));
+        Assert.assertTrue(source.isValid(null, null, since));
+        source.cleanup(version);
+        Assert.assertFalse(source.isValid(null, null, since));
+        Assert.assertTrue(source.isValid(null, null, source.readVersion(null)));
+    }
+
+    /**
+     * Records changes that net to an update of 1, an insert of 2, and deletes of 3 and 4
+     *
+     * @return The version to read the changes since
+     */
+    private static byte[] recordNetChanges(FakeChangeSource source) {
+        source.record(DbComparator.ChangeType.INSERT, TestTables.key(1));
+        byte[] since = source.readVersion(null);
+        source.record(DbComparator.ChangeType.UPDATE, TestTables.key(1));
+        source.record(DbComparator.ChangeType.INSERT, TestTables.key(2));
+        source.record(DbComparator.ChangeType.UPDATE, TestTables.key(2));
+        source.record(DbComparator.ChangeType.DELETE, TestTables.key(3));
+        source.record(DbComparator.ChangeType.UPDATE, TestTables.key(4));
+        source.record(DbComparator.ChangeType.DELETE, TestTables.key(4));
+        return since;
+    }
+
+    private static void assertNetChanges(FakeConnection dst) {
+        List<String> deletes = dst.getStatements("DELETE");
+        Assert.assertEquals(1, deletes.size());
+        // Padded to the smallest key bucket by repeating the last key, see Table.getKeyBucket()
+        Assert.assertTrue(deletes.get(0), deletes.get(0).endsWith(" [3, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4, 4]"));
+        List<String> inserts = dst.getStatements("INSERT");
+        Assert.assertEquals(1, inserts.size());
+        Assert.assertTrue(inserts.get(0), inserts.get(0).endsWith("[2, two]"));
+        List<String> updates = dst.getStatements("UPDATE");
+        Assert.assertEquals(1, updates.size());
+        Assert.assertTrue(updates.get(0), updates.get(0).endsWith("[one, 1]"));
+    }
+
+    private static void readInto(ChangeSource source, byte[] since, Table table, final ChangeSink sink)
+            throws Exception {
+        source.readChanges(null, table, noFilters, since, new ChangeSource.Listener() {
+            @Override
+            public void changed(DbComparator.ChangeType change, Key key) throws Exception {
+                sink.add(change, key);
+            }
+        });
+    }
+
+    /**
+     * @return A source that holds rows 1 and 2
+     */
+    private static FakeConnection createSource(Table table) {
+        FakeConnection src = new FakeConnection(table);
+        src.addRow(1L, "one");
+        src.addRow(2L, "two");
+        return src;
+    }
+}
@@ -0,0 +1,48 @@
+package com.zenplanner.sql;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+public class ConstraintJournalTest extends TestCase {
+
+    public ConstraintJournalTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(ConstraintJournalTest.class);
+    }
+
+    public void testReplay() throws Exception {
+        File file = File.createTempFile("dbsync", ".journal");
+        file.delete();
+        ConstraintJournal journal = new ConstraintJournal(file);
+        assertTrue(journal.readDisabled().isEmpty());
+
+        journal.disabling("Orders", Arrays.asList("FK_Orders_Customers", "CK_Orders_Total"));
+        journal.disabling("Lines", Arrays.asList("FK_Lines_Orders"));
+        journal.enabled("Orders", Arrays.asList("FK_Orders_Customers"));
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write("ENABLE\tLin".getBytes("UTF-8")); // Cut short by a crash
+        }
+
+        Map<String, List<String>> disabled = journal.readDisabled();
+        assertEquals(2, disabled.size());
+        assertEquals(Arrays.asList("CK_Orders_Total"), disabled.get("Orders"));
+        assertEquals(Arrays.asList("FK_Lines_Orders"), disabled.get("Lines"));
+
+        journal.enabled("Orders", Arrays.asList("CK_Orders_Total"));
+        journal.enabled("Lines", Arrays.asList("FK_Lines_Orders"));
+        assertTrue(journal.readDisabled().isEmpty());
+
+        journal.delete();
+        assertFalse(file.exists());
+    }
+}
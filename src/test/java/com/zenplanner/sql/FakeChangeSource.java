@@ -0,0 +1,92 @@
+package com.zenplanner.sql;
+
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An in-memory change source, for exercising the delta path without SQL Server. Changes are recorded with increasing
+ * versions, and read back the way CHANGETABLE(CHANGES ...) nets them: one change per key, an insert if the key was
+ * inserted after the version, otherwise its last change.
+ */
+public class FakeChangeSource extends ChangeSource {
+    private final List<Change> journal = new ArrayList<>();
+    private long version;
+    private long minValid;
+
+    /**
+     * Records a change to a row
+     *
+     * @return The version of the change
+     */
+    public synchronized long record(DbComparator.ChangeType change, Key key) {
+        journal.add(new Change(++version, change, key));
+        return version;
+    }
+
+    /**
+     * Forgets the changes up to a version, like the change tracking cleanup task
+     */
+    public synchronized void cleanup(long version) {
+        minValid = version;
+    }
+
+    @Override
+    public String getName() {
+        return "FakeVersion";
+    }
+
+    @Override
+    public boolean canTrack(Connection con, Table table) {
+        return true;
+    }
+
+    @Override
+    public synchronized byte[] readVersion(Connection con) {
+        return toBytes(version);
+    }
+
+    @Override
+    public synchronized boolean isValid(Connection con, Table table, byte[] since) {
+        return minValid <= ByteBuffer.wrap(since).getLong();
+    }
+
+    @Override
+    public synchronized void readChanges(Connection con, Table table, Map<String, List<Object>> filters, byte[] since,
+                                         Listener listener) throws Exception {
+        long start = ByteBuffer.wrap(since).getLong();
+        Map<Key, DbComparator.ChangeType> net = new LinkedHashMap<>();
+        for (Change change : journal) {
+            if (change.version <= start) {
+                continue;
+            }
+            DbComparator.ChangeType last = net.get(change.key);
+            if (last == DbComparator.ChangeType.INSERT && change.type != DbComparator.ChangeType.DELETE) {
+                continue; // Still an insert
+            }
+            net.put(change.key, change.type);
+        }
+        for (Map.Entry<Key, DbComparator.ChangeType> entry : net.entrySet()) {
+            listener.changed(entry.getValue(), entry.getKey());
+        }
+    }
+
+    public static byte[] toBytes(long version) {
+        return ByteBuffer.allocate(8).putLong(version).array();
+    }
+
+    private static class Change {
+        private final long version;
+        private final DbComparator.ChangeType type;
+        private final Key key;
+
+        private Change(long version, DbComparator.ChangeType type, Key key) {
+            this.version = version;
+            this.type = type;
+            this.key = key;
+        }
+    }
+}
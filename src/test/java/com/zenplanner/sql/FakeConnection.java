@@ -0,0 +1,321 @@
+package com.zenplanner.sql;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A JDBC connection to an in-memory copy of one table, for exercising Table without SQL Server. Every statement that
+ * reaches it is recorded with its parameters instead of being run. Queries return the stored rows whose primary keys
+ * are among the parameters, or every row if there are none, with all of the table's columns.
+ */
+public class FakeConnection {
+    private final Table table;
+    private final List<Column> columns;
+    private final Map<List<Object>, Object[]> rows = new LinkedHashMap<>();
+    private final List<String> statements = new ArrayList<>();
+    private final Connection con;
+
+    public FakeConnection(Table table) {
+        this.table = table;
+        this.columns = new ArrayList<>(table.values());
+        this.con = proxy(Connection.class, new ConnectionHandler());
+    }
+
+    public Connection getConnection() {
+        return con;
+    }
+
+    /**
+     * Stores a row
+     *
+     * @param values The value of each column, in the table's column order
+     */
+    public void addRow(Object... values) {
+        List<Object> key = new ArrayList<>();
+        for (int i = 0; i < columns.size(); i++) {
+            if (columns.get(i).isPrimaryKey()) {
+                key.add(normalize(Table.javaToSql(values[i])));
+            }
+        }
+        rows.put(key, values);
+    }
+
+    /**
+     * @return Every statement run so far, with its parameters, in order
+     */
+    public List<String> getStatements() {
+        return statements;
+    }
+
+    /**
+     * @return The statements run so far that start with a prefix, ignoring case
+     */
+    public List<String> getStatements(String prefix) {
+        List<String> matches = new ArrayList<>();
+        for (String sql : statements) {
+            if (sql.regionMatches(true, 0, prefix, 0, prefix.length())) {
+                matches.add(sql);
+            }
+        }
+        return matches;
+    }
+
+    private static Object normalize(Object val) {
+        return val instanceof byte[] ? ByteBuffer.wrap((byte[]) val) : val;
+    }
+
+    private static String format(Object val) {
+        if (val instanceof byte[] && ((byte[]) val).length == 16) {
+            return UuidUtil.byteArrayToUuid((byte[]) val).toString();
+        }
+        if (val instanceof byte[]) {
+            return Arrays.toString((byte[]) val);
+        }
+        return String.valueOf(val);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(FakeConnection.class.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+
+    /**
+     * Answers the methods every JDBC object shares, or returns null if the method is not one of them
+     */
+    private static Object invokeCommon(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            case "toString":
+                return "Fake" + method.getDeclaringClass().getSimpleName();
+            case "close":
+            case "clearWarnings":
+                return Void.TYPE;
+            case "isClosed":
+                return false;
+            default:
+                return null;
+        }
+    }
+
+    private static Object unsupported(Method method) throws SQLException {
+        throw new SQLException("Not supported by FakeConnection: " + method.getName());
+    }
+
+    private class ConnectionHandler implements InvocationHandler {
+        private boolean autoCommit = true;
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            Object common = invokeCommon(proxy, method, args);
+            if (common != null) {
+                return common == Void.TYPE ? null : common;
+            }
+            switch (method.getName()) {
+                case "prepareStatement":
+                    return proxy(PreparedStatement.class, new StatementHandler((String) args[0]));
+                case "createStatement":
+                    return proxy(Statement.class, new StatementHandler(null));
+                case "getAutoCommit":
+                    return autoCommit;
+                case "setAutoCommit":
+                    autoCommit = (Boolean) args[0];
+                    return null;
+                case "commit":
+                    statements.add("COMMIT");
+                    return null;
+                case "rollback":
+                    statements.add("ROLLBACK");
+                    return null;
+                default:
+                    return unsupported(method);
+            }
+        }
+    }
+
+    private class StatementHandler implements InvocationHandler {
+        private final String sql;
+        private final Map<Integer, Object> params = new TreeMap<>();
+        private final List<String> batch = new ArrayList<>();
+
+        private StatementHandler(String sql) {
+            this.sql = sql;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            Object common = invokeCommon(proxy, method, args);
+            if (common != null) {
+                return common == Void.TYPE ? null : common;
+            }
+            String name = method.getName();
+            if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+                params.put((Integer) args[0], "setNull".equals(name) ? null : args[1]);
+                return null;
+            }
+            switch (name) {
+                case "clearParameters":
+                    params.clear();
+                    return null;
+                case "addBatch":
+                    batch.add(describe(args));
+                    return null;
+                case "executeBatch":
+                    statements.addAll(batch);
+                    int[] counts = new int[batch.size()];
+                    Arrays.fill(counts, 1);
+                    batch.clear();
+                    return counts;
+                case "execute":
+                    statements.add(describe(args));
+                    return false;
+                case "executeUpdate":
+                    statements.add(describe(args));
+                    return 1;
+                case "executeQuery":
+                    statements.add(describe(args));
+                    return query();
+                case "getConnection":
+                    return con;
+                default:
+                    return unsupported(method);
+            }
+        }
+
+        private String describe(Object[] args) {
+            String text = args != null && args.length > 0 ? (String) args[0] : sql;
+            if (params.isEmpty()) {
+                return text;
+            }
+            List<String> vals = new ArrayList<>();
+            for (Object val : params.values()) {
+                vals.add(format(val));
+            }
+            return text + " " + vals;
+        }
+
+        private ResultSet query() {
+            int pkSize = table.getPk().size();
+            Set<List<Object>> keys = new HashSet<>();
+            List<Object> vals = new ArrayList<>(params.values());
+            for (int i = 0; i + pkSize <= vals.size(); i += pkSize) {
+                List<Object> key = new ArrayList<>();
+                for (Object val : vals.subList(i, i + pkSize)) {
+                    key.add(normalize(val));
+                }
+                keys.add(key);
+            }
+            List<Object[]> results = new ArrayList<>();
+            for (Map.Entry<List<Object>, Object[]> entry : rows.entrySet()) {
+                if (keys.isEmpty() || keys.contains(entry.getKey())) {
+                    results.add(entry.getValue());
+                }
+            }
+            return proxy(ResultSet.class, new ResultSetHandler(results));
+        }
+    }
+
+    private class ResultSetHandler implements InvocationHandler {
+        private final List<Object[]> results;
+        private int row = -1;
+        private boolean wasNull;
+
+        private ResultSetHandler(List<Object[]> results) {
+            this.results = results;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            Object common = invokeCommon(proxy, method, args);
+            if (common != null) {
+                return common == Void.TYPE ? null : common;
+            }
+            String name = method.getName();
+            switch (name) {
+                case "next":
+                    return ++row < results.size();
+                case "wasNull":
+                    return wasNull;
+                case "isBeforeFirst":
+                    return row < 0 && !results.isEmpty();
+                case "isAfterLast":
+                    return row >= results.size() && !results.isEmpty();
+                case "getRow":
+                    return row >= 0 && row < results.size() ? row + 1 : 0;
+                case "findColumn":
+                    return findColumn((String) args[0]);
+                case "getMetaData":
+                    return proxy(ResultSetMetaData.class, new MetaDataHandler());
+                default:
+                    break;
+            }
+            if (!name.startsWith("get") || args == null || args.length != 1) {
+                return unsupported(method);
+            }
+            int ordinal = args[0] instanceof String ? findColumn((String) args[0]) : (Integer) args[0];
+            Object val = results.get(row)[ordinal - 1];
+            wasNull = val == null;
+            switch (name) {
+                case "getObject":
+                    return val;
+                case "getString":
+                    return val == null ? null : val.toString();
+                case "getLong":
+                    return val == null ? 0L : ((Number) val).longValue();
+                case "getInt":
+                    return val == null ? 0 : ((Number) val).intValue();
+                case "getBytes":
+                    return (byte[]) Table.javaToSql(val);
+                default:
+                    return unsupported(method);
+            }
+        }
+
+        private int findColumn(String name) throws SQLException {
+            for (int i = 0; i < columns.size(); i++) {
+                if (columns.get(i).getColumnName().equalsIgnoreCase(name)) {
+                    return i + 1;
+                }
+            }
+            throw new SQLException("Unknown column: " + name);
+        }
+    }
+
+    private class MetaDataHandler implements InvocationHandler {
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            Object common = invokeCommon(proxy, method, args);
+            if (common != null) {
+                return common == Void.TYPE ? null : common;
+            }
+            switch (method.getName()) {
+                case "getColumnCount":
+                    return columns.size();
+                case "getColumnName":
+                case "getColumnLabel":
+                    return columns.get((Integer) args[0] - 1).getColumnName();
+                default:
+                    return unsupported(method);
+            }
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.zenplanner.sql;
+
+import junit.framework.Assert;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Checks that KeyComparator and the bitwise UuidUtil.sqlUuidCompare() order keys exactly like the original
+ * byte array implementation of Key.compareTo(), which is kept here as the reference
+ */
+public class KeyComparatorTest extends TestCase {
+    private static final int rounds = 200000;
+
+    public KeyComparatorTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(KeyComparatorTest.class);
+    }
+
+    public void testUuidOrder() {
+        Random rand = new Random(42);
+        for (int i = 0; i < rounds; i++) {
+            UUID left = randomUuid(rand);
+            UUID right = rand.nextInt(4) == 0 ? left : nearbyUuid(rand, left);
+            Assert.assertEquals(left + " vs " + right, Integer.signum(referenceUuidCompare(left, right)),
+                    Integer.signum(UuidUtil.sqlUuidCompare(left, right)));
+        }
+    }
+
+    public void testEveryUuidByte() {
+        // Each byte on its own, at the extremes, so that sign handling of every group is covered
+        for (int i = 0; i < 16; i++) {
+            for (int b : new int[]{0x00, 0x01, 0x7F, 0x80, 0xFF}) {
+                for (int c : new int[]{0x00, 0x01, 0x7F, 0x80, 0xFF}) {
+                    byte[] leftBytes = new byte[16];
+                    byte[] rightBytes = new byte[16];
+                    leftBytes[i] = (byte) b;
+                    rightBytes[i] = (byte) c;
+                    UUID left = UuidUtil.byteArrayToUuid(leftBytes);
+                    UUID right = UuidUtil.byteArrayToUuid(rightBytes);
+                    Assert.assertEquals(Integer.signum(referenceUuidCompare(left, right)),
+                            Integer.signum(UuidUtil.sqlUuidCompare(left, right)));
+                }
+            }
+        }
+    }
+
+    public void testBigintKeys() {
+        checkShape(new String[]{"bigint"});
+    }
+
+    public void testUuidKeys() {
+        checkShape(new String[]{"uniqueidentifier"});
+    }
+
+    public void testCompositeKeys() {
+        checkShape(new String[]{"int", "uniqueidentifier"});
+        checkShape(new String[]{"uniqueidentifier", "bigint", "nvarchar"});
+        checkShape(new String[]{"varchar", "int"});
+    }
+
+    public void testNullKeys() {
+        Table table = createTable(new String[]{"bigint"});
+        KeyComparator cmp = table.getKeyComparator();
+        Key key = new Key();
+        key.add(1L);
+        Assert.assertEquals(0, cmp.compare(null, null));
+        Assert.assertEquals(Key.compare(null, key), cmp.compare(null, key));
+        Assert.assertEquals(Key.compare(key, null), cmp.compare(key, null));
+    }
+
+    public void testSortOrder() {
+        Table table = createTable(new String[]{"uniqueidentifier", "int"});
+        Random rand = new Random(7);
+        List<Key> keys = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            keys.add(randomKey(rand, table, null));
+        }
+        List<Key> expected = new ArrayList<>(keys);
+        Collections.sort(expected, (left, right) -> referenceCompare(left, right));
+        List<Key> actual = new ArrayList<>(keys);
+        Collections.sort(actual, table.getKeyComparator());
+        for (int i = 0; i < expected.size(); i++) {
+            Assert.assertEquals(0, referenceCompare(expected.get(i), actual.get(i)));
+        }
+    }
+
+    private void checkShape(String[] types) {
+        Table table = createTable(types);
+        KeyComparator cmp = table.getKeyComparator();
+        Random rand = new Random(types.length * 31 + types[0].hashCode());
+        for (int i = 0; i < rounds; i++) {
+            Key left = randomKey(rand, table, null);
+            Key right = randomKey(rand, table, rand.nextBoolean() ? left : null);
+            int expected = Integer.signum(referenceCompare(left, right));
+            Assert.assertEquals(left + " vs " + right, expected, Integer.signum(cmp.compare(left, right)));
+            Assert.assertEquals(left + " vs " + right, expected, Integer.signum(Key.compare(left, right)));
+        }
+    }
+
+    private static Table createTable(String[] types) {
+        Table table = new Table("test");
+        for (int i = 0; i < types.length; i++) {
+            Column col = new Column();
+            col.setColumnName("c" + i);
+            col.setDataType(types[i]);
+            col.setPrimaryKey(true);
+            table.put(col.getColumnName(), col);
+        }
+        return table;
+    }
+
+    /**
+     * Makes a random key, with values drawn from small ranges so that ties are common. If like is given, some of its
+     * values are copied so that the interesting cases where leading columns match come up often.
+     */
+    private static Key randomKey(Random rand, Table table, Key like) {
+        Key key = new Key();
+        List<Column> pk = table.getPk();
+        for (int i = 0; i < pk.size(); i++) {
+            if (like != null && rand.nextInt(3) > 0) {
+                Comparable val = like.get(i);
+                key.add(val instanceof UUID ? nearbyUuid(rand, (UUID) val) : val);
+                continue;
+            }
+            String type = pk.get(i).getDataType();
+            if ("int".equals(type)) {
+                key.add(rand.nextInt(7) - 3);
+            } else if ("bigint".equals(type)) {
+                key.add(rand.nextBoolean() ? rand.nextLong() : (long) (rand.nextInt(7) - 3));
+            } else if ("uniqueidentifier".equals(type)) {
+                key.add(randomUuid(rand));
+            } else {
+                key.add("k" + rand.nextInt(5));
+            }
+        }
+        return key;
+    }
+
+    private static UUID randomUuid(Random rand) {
+        return new UUID(rand.nextLong(), rand.nextLong());
+    }
+
+    /**
+     * @return A copy of the UUID with zero or more of its bytes changed
+     */
+    private static UUID nearbyUuid(Random rand, UUID uuid) {
+        byte[] bytes = UuidUtil.uuidToByteArray(uuid);
+        int changes = rand.nextInt(3);
+        for (int i = 0; i < changes; i++) {
+            bytes[rand.nextInt(16)] = (byte) rand.nextInt(256);
+        }
+        return UuidUtil.byteArrayToUuid(bytes);
+    }
+
+    /**
+     * The original Key.compareTo(), with the original UUID comparison
+     */
+    @SuppressWarnings("unchecked")
+    private static int referenceCompare(Key left, Key right) {
+        int len = Math.max(left.size(), right.size());
+        for (int i = 0; i < len; i++) {
+            Comparable thisVal = i < left.size() ? left.get(i) : null;
+            Comparable otherVal = i < right.size() ? right.get(i) : null;
+            if (thisVal == null && otherVal == null) {
+                continue;
+            }
+            if (otherVal == null) {
+                return 1;
+            }
+            if (thisVal == null) {
+                return -1;
+            }
+            int val;
+            if (thisVal instanceof UUID && otherVal instanceof UUID) {
+                val = referenceUuidCompare((UUID) thisVal, (UUID) otherVal);
+            } else {
+                val = thisVal.compareTo(otherVal);
+            }
+            if (val != 0) {
+                return val;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * The original UuidUtil.sqlUuidCompare(), which compares the SQL byte layout group by group
+     */
+    private static int referenceUuidCompare(UUID leftUuid, UUID rightUuid) {
+        byte[] leftBytes = UuidUtil.uuidToByteArray(leftUuid);
+        byte[] rightBytes = UuidUtil.uuidToByteArray(rightUuid);
+        int[][] groups = {{10, 16}, {8, 10}, {6, 8}, {4, 6}, {0, 4}}; // node, clock_seq, time_hi, time_mid, time_low
+        for (int[] group : groups) {
+            for (int i = group[0]; i < group[1]; i++) {
+                int val = (leftBytes[i] & 0xFF) - (rightBytes[i] & 0xFF);
+                if (val != 0) {
+                    return val;
+                }
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,86 @@
+package com.zenplanner.sql;
+
+import junit.framework.Assert;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks that key lookups, prefilter confirmation and bucket hashes follow the table's RowHash option, against
+ * FakeConnection tables
+ */
+public class RowHashTest extends TestCase {
+    private static final Map<String, List<Object>> noFilters = new HashMap<>();
+
+    public RowHashTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(RowHashTest.class);
+    }
+
+    public void testLookupsFollowRowHash() throws Exception {
+        Table table = TestTables.createTable(SyncOptions.RowHash.CLIENT, true);
+        FakeConnection src = new FakeConnection(table);
+        FakeConnection dst = new FakeConnection(table);
+        src.addRow(1L, "same");
+        src.addRow(2L, "changed");
+        dst.addRow(1L, "same");
+        dst.addRow(2L, "original");
+
+        List<Key> keys = Arrays.asList(TestTables.key(1), TestTables.key(2));
+        Map<Key, byte[]> srcHashes = table.readHashes(src.getConnection(), keys);
+        Map<Key, byte[]> dstHashes = table.readHashes(dst.getConnection(), keys);
+        Assert.assertTrue(Arrays.equals(srcHashes.get(TestTables.key(1)), dstHashes.get(TestTables.key(1))));
+        Assert.assertFalse(Arrays.equals(srcHashes.get(TestTables.key(2)), dstHashes.get(TestTables.key(2))));
+        Assert.assertFalse(src.getStatements().get(0).contains("HASHBYTES"));
+    }
+
+    public void testConfirmationSeesLongStrings() throws Exception {
+        Table table = TestTables.createTable(SyncOptions.RowHash.CHECKSUM, true);
+        FakeConnection src = new FakeConnection(table);
+        FakeConnection dst = new FakeConnection(table);
+        String text = new String(new char[600]).replace('\0', 'x');
+        src.addRow(1L, text);
+        src.addRow(2L, text + "y");
+        dst.addRow(1L, text);
+        dst.addRow(2L, text + "z"); // Differs past the 500 characters that MD5 hashes
+
+        List<Key> keys = Arrays.asList(TestTables.key(1), TestTables.key(2));
+        List<Key> changed = table.confirmChanges(src.getConnection(), dst.getConnection(), keys);
+        Assert.assertEquals("[[2]]", changed.toString());
+        Assert.assertFalse(src.getStatements().get(0).contains("HASHBYTES"));
+    }
+
+    public void testBucketHashFollowsRowHash() {
+        String md5 = writeBucketQuery(SyncOptions.RowHash.MD5);
+        Assert.assertTrue(md5.contains("HASHBYTES"));
+        String checksum = writeBucketQuery(SyncOptions.RowHash.CHECKSUM);
+        Assert.assertTrue(checksum.contains("BINARY_CHECKSUM"));
+        Assert.assertFalse(checksum.contains("HASHBYTES"));
+
+        // The server can't compute the client hash, so its buckets fall back to MD5, see ClientRowHash
+        String client = writeBucketQuery(SyncOptions.RowHash.CLIENT);
+        Assert.assertTrue(client.contains("HASHBYTES"));
+    }
+
+    public void testChecksumSeesNoncomparableColumns() {
+        Table table = TestTables.createTable(SyncOptions.RowHash.CHECKSUM, true);
+        table.put("notes", TestTables.createColumn("notes", "ntext", false));
+        String select = table.getRowHash().writeSelect(table);
+        // BINARY_CHECKSUM would skip the ntext column itself, so a change to it would never reach the confirmation
+        Assert.assertTrue(select, select.contains("HASHBYTES('md5', CAST([notes] AS varbinary(max)))"));
+        Assert.assertFalse(select, select.contains(", [notes]"));
+        Assert.assertTrue(select, select.contains("[name]"));
+    }
+
+    private static String writeBucketQuery(SyncOptions.RowHash rowHash) {
+        return TestTables.createTable(rowHash, true).writeBucketQuery(noFilters, new KeyRange(null, null), 2);
+    }
+}
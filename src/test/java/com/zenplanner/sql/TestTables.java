@@ -0,0 +1,40 @@
+package com.zenplanner.sql;
+
+/**
+ * Builds the tables and keys that the tests run against FakeConnection
+ */
+public class TestTables {
+
+    /**
+     * @param rowHash    How the table's rows are hashed
+     * @param keyStaging True to stage keys in temp tables, which FakeConnection only records rather than runs
+     * @return A table with a bigint primary key id and an nvarchar name
+     */
+    public static Table createTable(SyncOptions.RowHash rowHash, boolean keyStaging) {
+        Table table = new Table("fake");
+        table.put("id", createColumn("id", "bigint", true));
+        table.put("name", createColumn("name", "nvarchar", false));
+        SyncOptions options = new SyncOptions();
+        options.setKeyStaging(keyStaging);
+        options.setRowHash(rowHash);
+        table.setOptions(options);
+        return table;
+    }
+
+    public static Column createColumn(String name, String dataType, boolean primaryKey) {
+        Column col = new Column();
+        col.setColumnName(name);
+        col.setDataType(dataType);
+        col.setPrimaryKey(primaryKey);
+        return col;
+    }
+
+    /**
+     * @return The key of a createTable() row
+     */
+    public static Key key(long id) {
+        Key key = new Key();
+        key.add(id);
+        return key;
+    }
+}